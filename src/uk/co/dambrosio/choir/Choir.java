@@ -3,11 +3,17 @@
  */
 package uk.co.dambrosio.choir;
 
+import uk.co.dambrosio.choir.client.AnnouncedCatalog;
 import uk.co.dambrosio.choir.client.Client;
+import uk.co.dambrosio.choir.client.DataPlane;
+import uk.co.dambrosio.choir.common.SocketTransport;
+import uk.co.dambrosio.choir.common.Transport;
+import uk.co.dambrosio.choir.server.ReplicatedState;
 import uk.co.dambrosio.choir.server.ServerMain;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioSystem;
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 
@@ -15,16 +21,19 @@ import java.net.UnknownHostException;
  * @author Giulio D'Ambrosio
  */
 public class Choir {
-	private static final String CHOIR_MULTICAST_ADDR ="239.255.49.1";
-	private static final char CHOIR_MULTICAST_PORT =9871;
+	static final String CHOIR_MULTICAST_ADDR ="239.255.49.1";
+	static final char CHOIR_MULTICAST_PORT =9871;
 	private static final String CHOIR_MULTICAST_AUDIO_PATH ="./audiosamples/";
 	private static final char CHOIR_SERVER_PORT =9872;
+	/**
+	 * After becoming the server, the local client looks for it up to this many times
+	 */
+	private static final int SERVER_LOOKUP_ATTEMPTS =30;
+	private static final long SERVER_LOOKUP_INTERVAL_MILLISECONDS =100L;
 	/**
 	 * @param args command line arguments
 	 */
 	public static void main(String[] args) {
-		ServerMain serverMain;
-		Client client;
 		String	groupAddress= CHOIR_MULTICAST_ADDR;
 		char groupPort= CHOIR_MULTICAST_PORT;
 		String	audioPath= CHOIR_MULTICAST_AUDIO_PATH;
@@ -40,51 +49,100 @@ public class Choir {
         groupPort = commandParameterParser.getGroupPort();
         audioPath = commandParameterParser.getAudioPath();
 
+		try {
+			runPeer(new SocketTransport(), groupAddress, groupPort, audioPath, Client.getDefaultStateDirectory());
+		} catch (UnknownHostException e) {
+			System.out.println("Can't connect to: "+groupAddress+": "+e.getMessage());
+			System.exit(-1);
+		} catch (IOException e) {
+			System.out.println("Can't connect to: " + groupAddress + ": " + e.getMessage());
+			System.exit(-1);
+		} catch (InterruptedException e) {
+			System.exit(-1);
+		} catch (Exception e) {
+			System.out.println("Error: "+e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Runs a peer: it connects to the server, or becomes the server, and does it again every
+	 * time the server goes away. It returns only by throwing.
+	 *
+	 * @param transport the network the peer is on
+	 * @param stateDirectory where the peer keeps its catalog index and the last known server
+	 */
+	static void runPeer(Transport transport, String groupAddress, char groupPort, String audioPath,
+						File stateDirectory) throws Exception {
+		ServerMain serverMain;
+		Client client;
+		AnnouncedCatalog announcedCatalog = new AnnouncedCatalog();
+		ReplicatedState takeOverState = null;
+		// Set when the server this peer was connected to went away
+		boolean serverLost = false;
+		// Created once: playback and streaming go on while the control connection is re-established
+		DataPlane dataPlane = null;
+
         while (true) {
 			serverMain =null;
-			try {
-				client=new Client(groupAddress, groupPort, audioPath);
-				if (!client.connect()) {
-					System.err.println("No active server found: becoming a serverMain");
-					serverMain =new ServerMain(groupAddress,groupPort, CHOIR_SERVER_PORT,client);
-					serverMain.start();
-				}
-				int numr=0;
-				while (true){
-					if (client.isConnected()){
+			if (dataPlane == null) {
+				dataPlane = new DataPlane(transport, groupAddress, groupPort);
+			}
+			client=new Client(dataPlane, audioPath, announcedCatalog, stateDirectory);
+			if (takeOverState != null) {
+				// This peer was the standby of a server that went away: it takes over straight away
+				System.err.println("The server is gone: taking over as standby");
+				serverMain =new ServerMain(groupAddress,groupPort, CHOIR_SERVER_PORT,client);
+				serverMain.restore(takeOverState);
+				serverMain.start();
+				takeOverState = null;
+				client.connect(false);
+			} else if (!client.connect(serverLost)) {
+				System.err.println("No active server found: becoming a serverMain");
+				serverMain =new ServerMain(groupAddress,groupPort, CHOIR_SERVER_PORT,client);
+				serverMain.start();
+			}
+			int numr=0;
+			while (true){
+				if (client.isConnected()){
+					try {
 						client.start();
-						break;
-					}
-					if (numr++>2) {
-						System.err.println("Could not establish a connection with the serverMain: bailing out");
+					} catch (IOException e) {
+						// The server went away during the handshake, e.g. stepping down in favour
+						// of a server with a higher rank: looking for a server again
+						System.err.printf("Lost the server while connecting: %s", e.getMessage());
+						System.err.println();
 						client.stop();
-						break;
+						if (serverMain != null) {
+							serverMain.stop();
+						}
 					}
-					System.err.println("Looking for a serverMain");
-					Thread.sleep(1000);
+					break;
 				}
+				if (numr++>SERVER_LOOKUP_ATTEMPTS) {
+					System.err.println("Could not establish a connection with the serverMain: bailing out");
+					client.stop();
+					break;
+				}
+				Thread.sleep(SERVER_LOOKUP_INTERVAL_MILLISECONDS);
+			}
 
                 // Waiting for the threads to end.
-				if (serverMain !=null && serverMain.getRunningThread()!=null) {
-					serverMain.getRunningThread().join();
-				}
-				if (client.getRunningThread()!=null) {
-					client.getRunningThread().join();
+			if (serverMain !=null && serverMain.getRunningThread()!=null) {
+				serverMain.getRunningThread().join();
+			}
+			if (client.getRunningThread()!=null) {
+				client.getRunningThread().join();
+			}
+			if (serverMain == null) {
+				takeOverState = client.getStandbyState();
+				if (takeOverState != null && client.isServerAlive()) {
+					// The connection ended but the server is still there: no take over
+					System.err.println("The server is still alive: reconnecting as a client");
+					takeOverState = null;
 				}
-					
-	
-			} catch (UnknownHostException e) {
-				System.out.println("Can't connect to: "+groupAddress+": "+e.getMessage());
-				System.exit(-1);
-			} catch (IOException e) {
-				System.out.println("Can't connect to: " + groupAddress + ": " + e.getMessage());
-				System.exit(-1);
-			} catch (InterruptedException e) {
-				System.exit(-1);
-			} catch (Exception e) {
-				System.out.println("Error: "+e.getMessage());
-				System.exit(-1);
 			}
+			serverLost = serverMain == null && takeOverState == null;
 		}
 	}
 
@@ -0,0 +1,80 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import uk.co.dambrosio.choir.common.InMemoryNetwork;
+
+/**
+ * Runs a whole choir in one process, on an {@link InMemoryNetwork}: for measuring how the group
+ * behaves with many peers without as many machines.
+ * <p>
+ * Peer i shares the i-th subdirectory of the audio files path, or the path itself if it has no
+ * subdirectories and i is 0; the other peers share nothing. Unless the choir.sink system
+ * property says otherwise the peers play to the null sink. Each peer keeps its state in its own
+ * directory, under a scratch directory.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class Simulation {
+	private static final long STATISTICS_INTERVAL_MILLISECONDS =10000L;
+
+	/**
+	 * @param args audio files path and number of peers
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.out.println("Usage: simulation <audio-files-path> <peers>");
+			System.exit(-1);
+		}
+		File audioPath = new File(args[0]);
+		int peers = Integer.parseInt(args[1]);
+
+		if (System.getProperty("choir.sink") == null) {
+			System.setProperty("choir.sink", "null");
+		}
+		File home = Files.createTempDirectory("choir-simulation").toFile();
+
+		File[] sharedPaths = audioPath.listFiles(File::isDirectory);
+		if (sharedPaths == null || sharedPaths.length == 0) {
+			sharedPaths = new File[]{audioPath};
+		}
+		Arrays.sort(sharedPaths);
+
+		InMemoryNetwork network = new InMemoryNetwork();
+		for (int peer = 0; peer < peers; peer++) {
+			File peerHome = new File(home, "peer-" + peer);
+			File peerPath = peer < sharedPaths.length ? sharedPaths[peer] : new File(peerHome, "audio");
+			peerPath.mkdirs();
+			startPeer(network, peer, peerPath.getAbsolutePath(), new File(peerHome, ".choir"));
+		}
+		System.err.printf("Simulating %d peers, state in %s", peers, home);
+		System.err.println();
+
+		while (true) {
+			Thread.sleep(STATISTICS_INTERVAL_MILLISECONDS);
+			System.err.printf("Network: %s", network);
+			System.err.println();
+		}
+	}
+
+	private static void startPeer(final InMemoryNetwork network, final int peer, final String peerPath,
+								  final File stateDirectory) {
+		Thread thread = new Thread(() -> {
+			try {
+				Choir.runPeer(network.newPeer(), Choir.CHOIR_MULTICAST_ADDR, Choir.CHOIR_MULTICAST_PORT, peerPath,
+						stateDirectory);
+			} catch (Exception e) {
+				System.err.printf("Peer %d stopped: %s", peer, e);
+				System.err.println();
+			}
+		}, "Peer " + peer);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+import uk.co.dambrosio.choir.common.CatalogDigest;
+
+/**
+ * The catalog that this peer has announced to the server, as the server is expected to know it.
+ * An instance outlives the {@link Client} that created it, so that after a reconnection the new
+ * client only needs to announce what changed in the meantime.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class AnnouncedCatalog {
+    /**
+     * Random identifier of this peer, used by the server to find the catalog it remembers
+     */
+    private final long peerId;
+
+    private final HashMap<Long, String> titles = new HashMap<>();
+
+    private long digest = CatalogDigest.EMPTY;
+
+    public AnnouncedCatalog() {
+        super();
+        peerId = new SecureRandom().nextLong();
+    }
+
+    public final long getPeerId() {
+        return peerId;
+    }
+
+    public final synchronized long getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return true if the very same audio file (same id and title) has already been announced
+     */
+    public final synchronized boolean contains(final AudioFile audioFile) {
+        return audioFile.getMusicTitle().equals(titles.get(audioFile.getMusicId()));
+    }
+
+    public final synchronized void add(final AudioFile audioFile) {
+        String previousTitle = titles.put(audioFile.getMusicId(), audioFile.getMusicTitle());
+        if (previousTitle != null) {
+            digest -= CatalogDigest.entryHash(audioFile.getMusicId(), previousTitle);
+        }
+        digest = CatalogDigest.add(digest, audioFile);
+    }
+
+    public final synchronized void remove(final long musicId) {
+        String previousTitle = titles.remove(musicId);
+        if (previousTitle != null) {
+            digest -= CatalogDigest.entryHash(musicId, previousTitle);
+        }
+    }
+
+    /**
+     * @return the ids of the announced audio files
+     */
+    public final synchronized ArrayList<Long> getMusicIds() {
+        return new ArrayList<>(titles.keySet());
+    }
+
+    /**
+     * Forgets every announcement: the whole catalog will have to be announced again
+     */
+    public final synchronized void clear() {
+        titles.clear();
+        digest = CatalogDigest.EMPTY;
+    }
+
+    public final synchronized int size() {
+        return titles.size();
+    }
+}
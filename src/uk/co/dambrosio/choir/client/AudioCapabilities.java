@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Finds out which audio formats can be rendered on this machine, by asking every mixer
+ * for the formats supported by its source data lines.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class AudioCapabilities {
+    private AudioCapabilities() {
+    }
+
+    /**
+     * @return the renderable audio formats, as templates for {@link AudioFormat#matches(AudioFormat)}
+     */
+    public static List<AudioFormat> getRenderableAudioFormats() {
+        LinkedHashMap<String, AudioFormat> audioFormats = new LinkedHashMap<>();
+        for (Mixer.Info mixerInfo : AudioSystem.getMixerInfo()) {
+            Line.Info[] lineInfos;
+            try {
+                lineInfos = AudioSystem.getMixer(mixerInfo).getSourceLineInfo();
+            } catch (IllegalArgumentException | SecurityException e) {
+                continue;
+            }
+            for (Line.Info lineInfo : lineInfos) {
+                if (lineInfo instanceof DataLine.Info
+                        && SourceDataLine.class.isAssignableFrom(lineInfo.getLineClass())) {
+                    for (AudioFormat audioFormat : ((DataLine.Info) lineInfo).getFormats()) {
+                        audioFormats.putIfAbsent(audioFormat.toString(), audioFormat);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(audioFormats.values());
+    }
+}
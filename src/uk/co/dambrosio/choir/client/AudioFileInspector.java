@@ -0,0 +1,139 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decides whether a file is an audio file that can be shared.
+ * Files without the extension of a supported audio file type are rejected by name.
+ * Files that have not changed since they were last inspected are admitted (or rejected) using
+ * the {@link CatalogIndex} only, without being opened; the others are identified by their header
+ * where possible, and by Java Sound otherwise, and get an id computed from their content.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class AudioFileInspector {
+    /**
+     * Extensions of the audio file types supported by the installed Java Sound providers
+     */
+    private static final Set<String> AUDIO_FILE_EXTENSIONS = getAudioFileExtensions();
+
+    private final CatalogIndex catalogIndex;
+
+    private final AtomicInteger indexedFiles = new AtomicInteger(0);
+
+    private final AtomicInteger probedFiles = new AtomicInteger(0);
+
+    public AudioFileInspector(final CatalogIndex catalogIndex) {
+        super();
+        this.catalogIndex = catalogIndex;
+    }
+
+    /**
+     * @return the audio file, or null if the file is not a supported audio file
+     */
+    public final ClientAudioFile inspect(final File file) {
+        if (!hasAudioFileExtension(file)) {
+            return null;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        CatalogIndex.Entry entry = catalogIndex.lookup(file, size, lastModified);
+        if (entry != null) {
+            indexedFiles.incrementAndGet();
+            return entry.toAudioFile(file);
+        }
+
+        probedFiles.incrementAndGet();
+        ClientAudioFile audioFile;
+        try {
+            audioFile = probe(file);
+        } catch (IOException e) {
+            // Not indexed: the file may be readable next time
+            System.err.printf(
+                    "File %s can't be opened",
+                    file
+            );
+            System.err.println();
+            return null;
+        }
+        if (audioFile != null) {
+            audioFile.setByteLength(size);
+        }
+        catalogIndex.put(file, size, lastModified, audioFile);
+        return audioFile;
+    }
+
+    /**
+     * Makes the results of the inspections done so far durable
+     */
+    public final void flushIndex() {
+        catalogIndex.flush();
+    }
+
+    /**
+     * @return the number of files admitted or rejected using the index only
+     */
+    public final int getIndexedFiles() {
+        return indexedFiles.get();
+    }
+
+    /**
+     * @return the number of files that had to be opened
+     */
+    public final int getProbedFiles() {
+        return probedFiles.get();
+    }
+
+    /**
+     * @return true if the file name has the extension of a supported audio file type
+     */
+    public static boolean hasAudioFileExtension(final File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && AUDIO_FILE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static Set<String> getAudioFileExtensions() {
+        HashSet<String> extensions = new HashSet<>(Arrays.asList("wav", "wave", "aif", "aiff", "aifc", "au", "snd"));
+        for (AudioFileFormat.Type type : AudioSystem.getAudioFileTypes()) {
+            extensions.add(type.getExtension().toLowerCase(Locale.ROOT));
+        }
+        return extensions;
+    }
+
+    /**
+     * Reads the file header to find out whether it is an audio file
+     */
+    private ClientAudioFile probe(final File file) throws IOException {
+        AudioFileFormat audioFileFormat = AudioHeaderSniffer.sniff(file);
+        try {
+            if (audioFileFormat == null) {
+                audioFileFormat = AudioSystem.getAudioFileFormat(file);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            System.err.printf(
+                    "File %s is not an audio file or has an unsupported format",
+                    file
+            );
+            System.err.println();
+            return null;
+        }
+        ClientAudioFile audioFile = new ClientAudioFile(file, ContentHash.of(file));
+        audioFile.setAudioFormat(audioFileFormat.getFormat());
+        audioFile.setFrameLength(audioFileFormat.getFrameLength());
+        return audioFile;
+    }
+}
@@ -3,14 +3,11 @@ package uk.co.dambrosio.choir.client;
 import com.sun.istack.internal.NotNull;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
 import java.util.Calendar;
 
 public class AudioFileStreamingPlan {
-    private static final int AUDIO_PACKET_PAYLOAD_TARGET_SIZE = 1000;
     public static final double MILLISECONDS_IN_A_SECOND = 1000.0d;
     public static final int BYTES_IN_A_KILOBYTE = 1024;
 
@@ -32,13 +29,55 @@ public class AudioFileStreamingPlan {
 
     public AudioFileStreamingPlan(@NotNull ClientAudioFile audioFile)
             throws UnsupportedAudioFileException, IOException {
+        this(audioFile, StreamingParameters.forAudioFile(audioFile));
+    }
+
+    /**
+     * Creates a plan using parameters computed in advance for the audio file
+     */
+    public AudioFileStreamingPlan(@NotNull ClientAudioFile audioFile, @NotNull StreamingParameters parameters)
+            throws FileNotFoundException {
         this.audioFile = audioFile;
-        extractAudioFormat();
-        validateAudioFormat();
-        calculateParameters();
+        applyParameters(parameters);
         createStreamAndBuffer(audioFile);
     }
 
+    /**
+     * Reads in memory the beginning of the audio file, so that the first packets can be
+     * sent without waiting for the disk
+     *
+     * @param seconds how many seconds of audio to read
+     */
+    public void preload(final double seconds) throws IOException {
+        byte[] preloadedData = new byte[(int) Math.min(Integer.MAX_VALUE, Math.ceil(audioFrameSize * seconds))];
+        int length = 0;
+        int read;
+        while (length < preloadedData.length
+                && (read = inputStream.read(preloadedData, length, preloadedData.length - length)) >= 0) {
+            length += read;
+        }
+        inputStream = new SequenceInputStream(new ByteArrayInputStream(preloadedData, 0, length), inputStream);
+    }
+
+    /**
+     * Skips the beginning of the audio file, when the streaming is taken over from another peer
+     *
+     * @param bytes how many bytes of the file have already been streamed
+     */
+    public void skip(final long bytes) throws IOException {
+        long remaining = bytes;
+        long skipped;
+        while (remaining > 0) {
+            if ((skipped = inputStream.skip(remaining)) <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new EOFException("Audio file is shorter than " + bytes + " bytes");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
     public void fillAudioBuffer() throws IOException {
         frameBufferContentLength = inputStream.read(frameBuffer, 0, frameBuffer.length);
     }
@@ -69,9 +108,9 @@ public class AudioFileStreamingPlan {
 
     public void outputAudioFileStreamingInfo() {
         System.err.printf(
-                "Starting streaming: '%s' (id=%d)",
+                "Starting streaming: '%s' (id=%016x)",
                 audioFile.getMusicTitle(),
-                (int) audioFile.getMusicId()
+                audioFile.getMusicId()
         );
         System.err.println();
         System.err.printf(
@@ -133,31 +172,14 @@ public class AudioFileStreamingPlan {
                 / targetPacketsPerSecond;
     }
 
-    private void extractAudioFormat() throws UnsupportedAudioFileException, IOException {
-        AudioInputStream audioInputStream;
-        audioInputStream = AudioSystem.getAudioInputStream(audioFile.getFile());
-        audioFormat = audioInputStream.getFormat();
-        audioInputStream.close();
-    }
-
-    private void validateAudioFormat() throws UnsupportedAudioFileException {
-        if (audioFormat.getFrameSize() == AudioSystem.NOT_SPECIFIED) {
-            throw new UnsupportedAudioFileException("Frame size is not specified in the audio file");
-        }
-    }
-
-    private void calculateParameters() throws UnsupportedAudioFileException {
-        audioFrameSize = audioFormat.getFrameSize();
-        if (audioFormat.getFrameRate() != AudioSystem.NOT_SPECIFIED) {
-            audioFrameSize *= (int) audioFormat.getFrameRate();
-        }
-        targetAudioBytesPerMsec = audioFrameSize / MILLISECONDS_IN_A_SECOND;
-
-        // This is to keep each packet size the same...
-        targetPacketsPerSecond = (int) Math.round(((double) audioFrameSize) / AUDIO_PACKET_PAYLOAD_TARGET_SIZE);
-        actualPacketPayloadSize = (int) Math.ceil(((double) audioFrameSize) / targetPacketsPerSecond);
-        targetPauseBetweenPackets = (int) Math.floor(MILLISECONDS_IN_A_SECOND / targetPacketsPerSecond);
-        adjustmentToPauseBetweenPackets = (((targetPacketsPerSecond * actualPacketPayloadSize - audioFrameSize) / targetAudioBytesPerMsec)) / targetPacketsPerSecond;
+    private void applyParameters(final StreamingParameters parameters) {
+        audioFormat = parameters.audioFormat;
+        audioFrameSize = parameters.audioFrameSize;
+        targetAudioBytesPerMsec = parameters.targetAudioBytesPerMsec;
+        targetPacketsPerSecond = parameters.targetPacketsPerSecond;
+        actualPacketPayloadSize = parameters.actualPacketPayloadSize;
+        targetPauseBetweenPackets = parameters.targetPauseBetweenPackets;
+        adjustmentToPauseBetweenPackets = parameters.initialAdjustmentToPauseBetweenPackets;
     }
 
     private void createStreamAndBuffer(ClientAudioFile audioFile) throws FileNotFoundException {
@@ -0,0 +1,207 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Reads the format of WAVE, AIFF and AU files from the first bytes of the file only.
+ * Whenever the header is not fully understood the caller is expected to fall back to
+ * {@link AudioSystem#getAudioFileFormat(File)}.
+ *
+ * @author Giulio D'Ambrosio
+ */
+final class AudioHeaderSniffer {
+    /**
+     * Number of bytes read from the beginning of the file
+     */
+    static final int HEADER_SIZE_BYTES = 512;
+
+    private static final int RIFF_MAGIC = 0x52494646;
+
+    private static final int WAVE_MAGIC = 0x57415645;
+
+    private static final int FORM_MAGIC = 0x464f524d;
+
+    private static final int AIFF_MAGIC = 0x41494646;
+
+    private static final int SND_MAGIC = 0x2e736e64;
+
+    private static final int WAVE_FORMAT_PCM = 1;
+
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+    private static final int WAVE_FORMAT_ALAW = 6;
+
+    private static final int WAVE_FORMAT_MULAW = 7;
+
+    private static final int AU_ENCODING_MULAW = 1;
+
+    private static final int AU_ENCODING_ALAW = 27;
+
+    private static final int AU_UNKNOWN_SIZE = 0xffffffff;
+
+    private AudioHeaderSniffer() {
+    }
+
+    /**
+     * @return the format of the file, or null if it could not be read from the header
+     * @throws IOException if the file could not be read
+     */
+    static AudioFileFormat sniff(final File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Reads until the buffer is full or the file ends
+            }
+        }
+        header.flip();
+        if (header.remaining() < 12) {
+            return null;
+        }
+        header.order(ByteOrder.BIG_ENDIAN);
+        int magic = header.getInt(0);
+        if (magic == RIFF_MAGIC && header.getInt(8) == WAVE_MAGIC) {
+            return sniffWave(header);
+        }
+        if (magic == FORM_MAGIC && header.getInt(8) == AIFF_MAGIC) {
+            return sniffAiff(header);
+        }
+        if (magic == SND_MAGIC) {
+            return sniffAu(header);
+        }
+        return null;
+    }
+
+    private static AudioFileFormat sniffWave(final ByteBuffer header) {
+        AudioFormat format = null;
+        int position = 12;
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8 <= header.limit()) {
+            int chunkId = header.order(ByteOrder.BIG_ENDIAN).getInt(position);
+            long chunkSize = header.order(ByteOrder.LITTLE_ENDIAN).getInt(position + 4) & 0xffffffffL;
+            int chunkData = position + 8;
+            if (chunkId == 0x666d7420) { // "fmt "
+                if (chunkData + 16 > header.limit()) {
+                    return null;
+                }
+                int formatTag = header.getShort(chunkData) & 0xffff;
+                int channels = header.getShort(chunkData + 2) & 0xffff;
+                int sampleRate = header.getInt(chunkData + 4);
+                int blockAlign = header.getShort(chunkData + 12) & 0xffff;
+                int bitsPerSample = header.getShort(chunkData + 14) & 0xffff;
+                AudioFormat.Encoding encoding;
+                switch (formatTag) {
+                    case WAVE_FORMAT_PCM:
+                        encoding = bitsPerSample <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+                        break;
+                    case WAVE_FORMAT_IEEE_FLOAT:
+                        encoding = AudioFormat.Encoding.PCM_FLOAT;
+                        break;
+                    case WAVE_FORMAT_ALAW:
+                        encoding = AudioFormat.Encoding.ALAW;
+                        break;
+                    case WAVE_FORMAT_MULAW:
+                        encoding = AudioFormat.Encoding.ULAW;
+                        break;
+                    default:
+                        return null;
+                }
+                if (channels == 0 || blockAlign == 0 || sampleRate <= 0) {
+                    return null;
+                }
+                format = new AudioFormat(encoding, sampleRate, bitsPerSample, channels, blockAlign, sampleRate, false);
+            } else if (chunkId == 0x64617461) { // "data"
+                if (format == null) {
+                    return null;
+                }
+                return new AudioFileFormat(AudioFileFormat.Type.WAVE, format,
+                        (int) Math.min(Integer.MAX_VALUE, chunkSize / format.getFrameSize()));
+            }
+            // Chunks are word aligned
+            position = (int) Math.min(Integer.MAX_VALUE, chunkData + chunkSize + (chunkSize & 1));
+        }
+        // The data chunk is beyond the header: the length is not known
+        return null;
+    }
+
+    private static AudioFileFormat sniffAiff(final ByteBuffer header) {
+        int position = 12;
+        header.order(ByteOrder.BIG_ENDIAN);
+        while (position + 8 <= header.limit()) {
+            int chunkId = header.getInt(position);
+            long chunkSize = header.getInt(position + 4) & 0xffffffffL;
+            int chunkData = position + 8;
+            if (chunkId == 0x434f4d4d) { // "COMM"
+                if (chunkData + 18 > header.limit()) {
+                    return null;
+                }
+                int channels = header.getShort(chunkData) & 0xffff;
+                long sampleFrames = header.getInt(chunkData + 2) & 0xffffffffL;
+                int sampleSize = header.getShort(chunkData + 6) & 0xffff;
+                double sampleRate = readExtended(header, chunkData + 8);
+                if (channels == 0 || sampleSize == 0 || !(sampleRate > 0)) {
+                    return null;
+                }
+                AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, (float) sampleRate, sampleSize,
+                        channels, ((sampleSize + 7) / 8) * channels, (float) sampleRate, true);
+                return new AudioFileFormat(AudioFileFormat.Type.AIFF, format, (int) Math.min(Integer.MAX_VALUE, sampleFrames));
+            }
+            position = (int) Math.min(Integer.MAX_VALUE, chunkData + chunkSize + (chunkSize & 1));
+        }
+        return null;
+    }
+
+    private static AudioFileFormat sniffAu(final ByteBuffer header) {
+        if (header.limit() < 24) {
+            return null;
+        }
+        header.order(ByteOrder.BIG_ENDIAN);
+        int dataSize = header.getInt(8);
+        int auEncoding = header.getInt(12);
+        int sampleRate = header.getInt(16);
+        int channels = header.getInt(20);
+        AudioFormat.Encoding encoding;
+        int sampleSize;
+        if (auEncoding >= 2 && auEncoding <= 5) {
+            encoding = AudioFormat.Encoding.PCM_SIGNED;
+            sampleSize = (auEncoding - 1) * 8;
+        } else if (auEncoding == AU_ENCODING_MULAW) {
+            encoding = AudioFormat.Encoding.ULAW;
+            sampleSize = 8;
+        } else if (auEncoding == AU_ENCODING_ALAW) {
+            encoding = AudioFormat.Encoding.ALAW;
+            sampleSize = 8;
+        } else {
+            return null;
+        }
+        if (channels <= 0 || sampleRate <= 0) {
+            return null;
+        }
+        int frameSize = (sampleSize / 8) * channels;
+        AudioFormat format = new AudioFormat(encoding, sampleRate, sampleSize, channels, frameSize, sampleRate, true);
+        int frameLength = dataSize == AU_UNKNOWN_SIZE ? AudioSystem.NOT_SPECIFIED : (dataSize & 0x7fffffff) / frameSize;
+        return new AudioFileFormat(AudioFileFormat.Type.AU, format, frameLength);
+    }
+
+    /**
+     * Reads an 80 bit IEEE 754 extended precision number, as used by AIFF for the sample rate
+     */
+    private static double readExtended(final ByteBuffer buffer, final int position) {
+        int exponent = buffer.getShort(position) & 0x7fff;
+        boolean negative = (buffer.getShort(position) & 0x8000) != 0;
+        long mantissa = buffer.getLong(position + 2);
+        double value = Math.scalb((double) (mantissa >>> 11), exponent - 16383 - 52);
+        return negative ? -value : value;
+    }
+}
@@ -59,7 +59,11 @@ public class AudioPacketInputStream extends InputStream {
             throw new IndexOutOfBoundsException();
         }
 
-        while (bufferOffset < maxRequestedLength) {
+        while (maxRequestedLength > 0) {
+            if (resultLength > 0 && streamOffset >= chunksQueue.getNextAvailableStreamOffset()) {
+                // Returns what has been read, rather than waiting for the next packet
+                break;
+            }
             AudioStreamChunk audioStreamChunk = chunksQueue.getOrWaitForChunkContainingStreamOffset(streamOffset);
             if (audioStreamChunk != null) {
                 int copiedBytes = audioStreamChunk.copyDataAtStreamOffset(streamOffset, buffer, bufferOffset, maxRequestedLength);
@@ -74,14 +78,54 @@ public class AudioPacketInputStream extends InputStream {
             }
         }
 
-        return resultLength;
+        return resultLength == 0 && maxRequestedLength > 0 ? -1 : resultLength;
+    }
+
+    /**
+     * Passes the next bytes of the stream to the consumer without copying them: they are a
+     * contiguous region of a received packet. Waits for the packet if it has not arrived yet.
+     *
+     * @param maxRequestedLength maximum number of bytes to pass
+     * @return the number of bytes passed, or -1 at the end of the stream
+     */
+    public int readRegion(@NotNull RegionConsumer consumer, int maxRequestedLength) {
+        AudioStreamChunk audioStreamChunk = chunksQueue.getOrWaitForChunkContainingStreamOffset(streamOffset);
+        if (audioStreamChunk == null) {
+            return -1;
+        }
+        int passedBytes = audioStreamChunk.passDataAtStreamOffset(streamOffset, consumer, maxRequestedLength);
+        streamOffset += passedBytes;
+        freeUnreachableAudioChunksInQueue();
+        return passedBytes;
+    }
+
+    /**
+     * Skips without reading: the skipped bytes may not have been received yet
+     *
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || (chunksQueue.isClosed() && streamOffset >= chunksQueue.getNextAvailableStreamOffset())) {
+            return 0L;
+        }
+        streamOffset += n;
+        freeUnreachableAudioChunksInQueue();
+        return n;
+    }
+
+    /**
+     * @return the offset in the stream of the next byte to read
+     */
+    public long getStreamOffset() {
+        return streamOffset;
     }
 
     /**
      * @see java.io.InputStream#available()
      */
     public int available() throws IOException {
-        return (int) (chunksQueue.getNextAvailableStreamOffset() - streamOffset);
+        return (int) Math.max(0L, chunksQueue.getNextAvailableStreamOffset() - streamOffset);
     }
 
     /**
@@ -127,6 +171,13 @@ public class AudioPacketInputStream extends InputStream {
         }
     }
 
+    /**
+     * Receives the regions of the stream passed by {@link #readRegion(RegionConsumer, int)}
+     */
+    public interface RegionConsumer {
+        void accept(byte[] data, int offset, int length);
+    }
+
     /**
      * This class is used to mark a rollback position in this input stream.
      * The rollback is available until the current position in the stream exceeds the maximum distance allowed
@@ -2,12 +2,14 @@ package uk.co.dambrosio.choir.client;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import com.sun.istack.internal.NotNull;
 import com.sun.istack.internal.Nullable;
 import uk.co.dambrosio.choir.common.PacketDispatcher;
+import uk.co.dambrosio.choir.common.RunningStatistics;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketBegin;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketDataChunk;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd;
@@ -32,6 +34,43 @@ public class AudioPacketStreamWriter implements Runnable {
 
     private PacketDispatcher packetDispatcher;
 
+    private final GroupClock groupClock;
+
+    /**
+     * Audio bytes in a second, to compute the presentation timestamps
+     */
+    private final int bytesPerSecond;
+
+    /**
+     * Byte of the audio file the streaming starts from: not zero when the stream is taken over
+     * from another peer, and the receivers have already got the begin packet
+     */
+    private long resumeOffset = 0L;
+
+    /**
+     * Byte of the stream sent by the previous peer, and the instant of the group timeline it is
+     * played at, when the stream is taken over
+     */
+    private long timelineOffset = 0L;
+
+    private long timelineNanos = 0L;
+
+    /**
+     * True when the stream has been handed over to another peer, that will send the end packet
+     */
+    private volatile boolean handedOver = false;
+
+    /**
+     * Time the streaming of this audio file has been requested, in nanoseconds
+     */
+    private long requestedNanos = 0L;
+
+    /**
+     * Statistics of the delay between the request and the first audio packet sent, in milliseconds
+     */
+    @Nullable
+    private final RunningStatistics firstPacketDelayStatistics;
+
     /**
      * The thread for this runnable
      */
@@ -42,15 +81,36 @@ public class AudioPacketStreamWriter implements Runnable {
             @NotNull final ClientAudioFile audioFile,
             @NotNull final PacketDispatcher packetDispatcher,
             @NotNull final InetAddress multicastGroupAddress,
-            @NotNull final char multicastGroupPort
+            @NotNull final char multicastGroupPort,
+            @NotNull final GroupClock groupClock
     ) throws IOException, UnsupportedAudioFileException {
+        this(audioFile, StreamingParameters.forAudioFile(audioFile), packetDispatcher,
+                multicastGroupAddress, multicastGroupPort, groupClock, null);
+    }
+
+    /**
+     * @param streamingParameters        parameters computed in advance for the audio file
+     * @param groupClock                 timeline of the presentation timestamps
+     * @param firstPacketDelayStatistics where to record the delay of the first audio packet, or null
+     */
+    public AudioPacketStreamWriter(
+            @NotNull final ClientAudioFile audioFile,
+            @NotNull final StreamingParameters streamingParameters,
+            @NotNull final PacketDispatcher packetDispatcher,
+            @NotNull final InetAddress multicastGroupAddress,
+            @NotNull final char multicastGroupPort,
+            @NotNull final GroupClock groupClock,
+            @Nullable final RunningStatistics firstPacketDelayStatistics
+    ) throws IOException {
         super();
         this.multicastGroupAddress = multicastGroupAddress;
         this.multicastGroupPort = multicastGroupPort;
         this.audioFile = audioFile;
         this.packetDispatcher = packetDispatcher;
-        streamingPlan = new AudioFileStreamingPlan(audioFile);
-        streamingPlan.outputAudioFileStreamingInfo();
+        this.groupClock = groupClock;
+        this.bytesPerSecond = streamingParameters.audioFrameSize;
+        this.firstPacketDelayStatistics = firstPacketDelayStatistics;
+        streamingPlan = new AudioFileStreamingPlan(audioFile, streamingParameters);
     }
 
     /**
@@ -60,10 +120,59 @@ public class AudioPacketStreamWriter implements Runnable {
         return runningThread != null && runningThread.isAlive();
     }
 
+    /**
+     * @return the audio file streamed by this writer
+     */
+    public final ClientAudioFile getAudioFile() {
+        return audioFile;
+    }
+
+    /**
+     * Reads in memory the beginning of the audio file, before the streaming is requested
+     *
+     * @param seconds how many seconds of audio to read
+     */
+    public final void preload(final double seconds) throws IOException {
+        streamingPlan.preload(seconds);
+    }
+
+    /**
+     * Starts the streaming from a byte of the audio file, taking over a stream interrupted on
+     * another peer
+     *
+     * @param offset         how many bytes of the file have already been streamed
+     * @param timelineOffset a byte already streamed by the other peer
+     * @param timelineNanos  instant of the group timeline at which timelineOffset is played
+     */
+    public final void resumeAt(final long offset, final long timelineOffset, final long timelineNanos)
+            throws IOException {
+        streamingPlan.skip(offset);
+        resumeOffset = offset;
+        this.timelineOffset = timelineOffset;
+        this.timelineNanos = timelineNanos;
+    }
+
+    /**
+     * Releases the resources of a writer that will not be started
+     */
+    public final void discard() {
+        streamingPlan.close();
+    }
+
     /**
      * Creates and starts a thread for this task
      */
     public final void startThread() {
+        startThread(System.nanoTime());
+    }
+
+    /**
+     * Creates and starts a thread for this task
+     *
+     * @param requestedNanos time the streaming has been requested, as given by {@link System#nanoTime()}
+     */
+    public final void startThread(final long requestedNanos) {
+        this.requestedNanos = requestedNanos;
         alive = true;
         runningThread = new Thread(this);
         runningThread.start();
@@ -77,28 +186,55 @@ public class AudioPacketStreamWriter implements Runnable {
         runningThread.interrupt();
     }
 
+    /**
+     * Stops the thread without sending the end packet, as the stream goes on from another peer
+     */
+    public final void handOver() {
+        handedOver = true;
+        stopThread();
+    }
+
     /**
      * @see java.lang.Runnable#run()
      */
     @Override
     public final void run() {
         PacketDataChunk dataChunk;
+        boolean firstPacket = true;
+        GroupClock.Anchor presentationStart = null;
+        long streamedBytes = resumeOffset;
 
-        notifyBeginOfStream();
+        if (resumeOffset == 0L) {
+            notifyBeginOfStream();
+        } else {
+            // The stream taken over goes on at the pace of the receivers
+            presentationStart = groupClock.anchor(timelineNanos - TimeUnit.SECONDS.toNanos(timelineOffset) / bytesPerSecond);
+        }
 
         while (alive) {
             try {
                 streamingPlan.fillAudioBuffer();
                 if (alive = streamingPlan.getFrameBufferContentLength() >= 0) {
                     streamingPlan.waitForTimeToSendPacket();
+                    if (presentationStart == null) {
+                        // The first packet is played after the playout delay, the others follow at the audio rate
+                        presentationStart = groupClock.anchor(groupClock.now() + GroupClock.PLAYOUT_DELAY_NANOSECONDS);
+                    }
                     dataChunk = new PacketDataChunk(
                         audioFile.getMusicId(),
+                        presentationStart.getGroupNanos() + TimeUnit.SECONDS.toNanos(streamedBytes) / bytesPerSecond,
+                        streamedBytes,
                         streamingPlan.getFrameBuffer(),
                         (char) streamingPlan.getFrameBufferContentLength(),
                         multicastGroupAddress,
                         multicastGroupPort
                     );
                     packetDispatcher.send(dataChunk);
+                    streamedBytes += streamingPlan.getFrameBufferContentLength();
+                    if (firstPacket) {
+                        firstPacket = false;
+                        firstPacketSent();
+                    }
                 }
             } catch (IOException e) {
                 alive = false;
@@ -109,13 +245,34 @@ public class AudioPacketStreamWriter implements Runnable {
             }
         }
 
-        notifyEndOfStream();
+        if (!handedOver) {
+            notifyEndOfStream();
+        }
 
         streamingPlan.close();
         System.err.println("The audio stream writer has completed...");
     }
 
 
+    /**
+     * Records how long it took to send the first audio packet
+     */
+    private void firstPacketSent() {
+        double delayMilliseconds = (System.nanoTime() - requestedNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        streamingPlan.outputAudioFileStreamingInfo();
+        if (firstPacketDelayStatistics != null) {
+            firstPacketDelayStatistics.add(delayMilliseconds);
+            System.err.printf(
+                    "\tfirst packet sent %.2f ms after the request (%s)",
+                    delayMilliseconds,
+                    firstPacketDelayStatistics
+            );
+        } else {
+            System.err.printf("\tfirst packet sent %.2f ms after the request", delayMilliseconds);
+        }
+        System.err.println();
+    }
+
     private void notifyBeginOfStream() {
         try {
             packetDispatcher.send(new PacketBegin(audioFile, multicastGroupAddress, multicastGroupPort));
@@ -4,24 +4,31 @@
 package uk.co.dambrosio.choir.client;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 //import javax.sound.sampled.FloatControl;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 import com.sun.istack.internal.NotNull;
 import uk.co.dambrosio.choir.common.AudioDataPacketListener;
 import uk.co.dambrosio.choir.common.AudioEndPacketListener;
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.common.PacketDispatcher;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketDataChunk;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd;
 
 /**
- * Plays an audio file
+ * Plays an audio file.
+ * The playout follows the timeline of the group: the first audio frame is played at the
+ * presentation time of the stream, and while playing the position of the line is compared with
+ * the one expected by the timeline. When they drift apart, audio is skipped or silence is
+ * inserted, so that all the clients play the same content at the same time.
  *
  * @author Giulio D'Ambrosio
  */
@@ -30,44 +37,43 @@ public class AudioPlayer implements
         AudioEndPacketListener,
         Runnable {
     /**
-     * Minimum number of frames to collect in the buffer.
-     * When this number of frames is not available playing stops and and buffering starts
+     * Length of the blocks of audio written to the line: the playout position is checked
+     * after each of them
      */
-    private static final int MIN_BUFFERED_FRAMES_TO_KEEP_PLAYING = 2;
+    private static final int WRITE_BLOCK_MILLISECONDS = 20;
 
     /**
-     * Maximum number of frames to collect before starting to play
+     * The playout is corrected by skipping audio or inserting silence when it is further than
+     * this from the group timeline; smaller skews are corrected by the {@link DriftCompensator}
      */
-    private static final int MAX_BUFFERED_FRAMES_TO_COLLECT_BEFORE_PLAYING = 4;
+    private static final long CORRECTION_THRESHOLD_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(40);
 
     /**
-     * This flag is used to stopThread thread execution
+     * The skew is recorded in the statistics once every this many blocks
      */
-    private boolean alive = true;
+    private static final int SKEW_SAMPLING_BLOCKS = 25;
 
     /**
-     * True when the player is collecting frames in the buffer before starting to play
+     * This flag is used to stopThread thread execution
      */
-    private boolean buffering = true;
+    private volatile boolean alive = true;
 
     /**
-     * Thread running this task
+     * Stages of the playback: started when the player runs, buffering while it waits for the
+     * presentation time, playing once the line has started, finished when the player has been
+     * unregistered from the dispatcher. The stages not reached are cancelled when it finishes.
      */
-    private Thread runningThread = null;
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
 
-    private char currentlyPlayingMusicId;
+    private final CompletableFuture<Void> buffering = new CompletableFuture<>();
 
-    private String currentlyPlayingMusicTitle;
+    private final CompletableFuture<Void> playing = new CompletableFuture<>();
 
-    /**
-     * Minimum number of bytes of data to be available in order to continue to play
-     */
-    private int minBufferedSize;
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
 
-    /**
-     * Bytes of data to collect in the buffer before starting to play
-     */
-    private int maxBufferedSize;
+    private long currentlyPlayingMusicId;
+
+    private String currentlyPlayingMusicTitle;
 
     private final @NotNull
     AudioStreamChunksQueue incomingPackets = new AudioStreamChunksQueue();
@@ -79,48 +85,117 @@ public class AudioPlayer implements
      */
     private ClientPlaylistStreamingManager clientPlaylistStreamingManager;
 
+    private final GroupClock groupClock;
+
+    /**
+     * Presentation timestamp of the first received audio packet, and its offset in the stream
+     */
+    private volatile long firstPacketPresentationNanos = 0L;
+
+    private volatile long firstPacketStreamOffset = -1L;
+
+    /**
+     * Instant of the group timeline at which the first audio frame is to be played, or null if the
+     * playout can't be aligned to the timeline
+     */
+    private GroupClock.Anchor presentationStart = null;
+
+    private float frameRate;
+
+    private int frameSize;
+
+    /**
+     * Frames of silence written to the line, and frames of audio skipped, to align the playout
+     */
+    private long silenceFrames = 0L;
+
+    private long skippedFrames = 0L;
+
+    /**
+     * Resampler keeping the playout on the timeline, or null if the audio format can't be resampled
+     * or the sink does not drift from the group clock
+     */
+    private DriftCompensator driftCompensator = null;
+
+    /**
+     * The effect of a correction is measured only after the line buffer has been played
+     */
+    private long nextCorrectionNanos = 0L;
+
     private AudioInputStream ais;
-    private SourceDataLine sdl;
+
+    /**
+     * The stream of the received packets, read directly after the header when the audio is PCM
+     */
+    private AudioPacketInputStream audioInput;
+
+    /**
+     * Offset in the stream where the audio data ends, when played directly from the received
+     * packets, or -1 when the audio is read from {@link #ais}
+     */
+    private long directEndOffset = -1L;
+
+    /**
+     * A frame split between two packets, completed with the next one
+     */
+    private byte[] partialFrame;
+
+    private int partialFrameLength = 0;
+    private AudioSink sink;
+
+    /**
+     * Position of the sink when it was opened: a line may have played previous tracks
+     */
+    private long sinkStartFrame = 0L;
     private byte[] buffer;
 
-    public AudioPlayer(final char currentlyPlayingMusicId, final String currentlyPlayingMusicTitle,
+    public AudioPlayer(final long currentlyPlayingMusicId, final String currentlyPlayingMusicTitle,
                        final ClientPlaylistStreamingManager clientPlaylistStreamingManager) throws Exception {
         super();
         this.currentlyPlayingMusicId = currentlyPlayingMusicId;
         this.currentlyPlayingMusicTitle = currentlyPlayingMusicTitle;
         this.packetDispatcher = clientPlaylistStreamingManager.getIncomingPacketDispatcher();
         this.clientPlaylistStreamingManager = clientPlaylistStreamingManager;
+        this.groupClock = clientPlaylistStreamingManager.getGroupClock();
         packetDispatcher.registerListener((AudioDataPacketListener) this);
         packetDispatcher.registerListener((AudioEndPacketListener) this);
     }
 
     /**
-     * Ultime operazioni di pulizia. Se non era stato fatto precedentemente,
-     * viene rimosso questo oggetto dagli ascoltatori registrati in
-     * {@link #packetDispatcher}
-     *
-     * @throws Throwable
+     * Scollega questa istanza dalla sorgente di pacchetti multicast e dal gestore della
+     * playlist, e completa {@link #getFinished()}.
      */
-    protected final void finalize() throws Throwable {
-        super.finalize();
+    private void finish() {
         packetDispatcher.unregisterListener((AudioEndPacketListener) this);
         packetDispatcher.unregisterListener((AudioDataPacketListener) this);
-    }
-
-    /**
-     * Scollega questa istanza dalla sorgente di pacchetti multicast.
-     */
-    private void destroy() {
-        if (currentlyPlayingMusicId != (char) -1) {
+        if (currentlyPlayingMusicId != AudioFile.NO_MUSIC_ID) {
             clientPlaylistStreamingManager.notifyEndOfAudioPlayer(this);
-            currentlyPlayingMusicId = (char) -1;
         }
+        buffering.cancel(false);
+        playing.cancel(false);
+        finished.complete(null);
+    }
+
+    public final CompletableFuture<Void> getStarted() {
+        return started;
+    }
+
+    public final CompletableFuture<Void> getBuffering() {
+        return buffering;
+    }
+
+    public final CompletableFuture<Void> getPlaying() {
+        return playing;
+    }
+
+    public final CompletableFuture<Void> getFinished() {
+        return finished;
     }
 
     /**
      * @return the currentlyPlayingMusicId
      */
-    public final char getCurrentlyPlayingMusicId() {
+    public final long getCurrentlyPlayingMusicId() {
         return currentlyPlayingMusicId;
     }
 
@@ -132,28 +207,46 @@ public class AudioPlayer implements
     private boolean startPlaying() {
         boolean success = true;
         AudioFormat af;
-        int bufferSize;
         try {
-            ais = AudioSystem.getAudioInputStream(new AudioPacketInputStream(incomingPackets));
+            audioInput = new AudioPacketInputStream(incomingPackets);
+            ais = AudioSystem.getAudioInputStream(audioInput);
             af = ais.getFormat();
-            sdl = AudioSystem.getSourceDataLine(af);
-
-            // Inizializza un buffer di dimensione adeguata a contenere un
-            // secondo di audio
-            bufferSize = (int) (af.getSampleRate() * af.getFrameSize());
-            buffer = new byte[bufferSize];
-            minBufferedSize = bufferSize * MIN_BUFFERED_FRAMES_TO_KEEP_PLAYING;
-            maxBufferedSize = bufferSize * MAX_BUFFERED_FRAMES_TO_COLLECT_BEFORE_PLAYING;
-
-            // Apre il canale audio e imposta il volume master al massimo
-            sdl.open(af);
-//			if (sdl.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-//				 FloatControl volume = (FloatControl) sdl.getControl(
+
+            frameRate = af.getFrameRate();
+            frameSize = af.getFrameSize();
+            if (frameRate != AudioSystem.NOT_SPECIFIED && frameSize != AudioSystem.NOT_SPECIFIED) {
+                // Blocchi brevi, per controllare spesso la posizione della riproduzione
+                buffer = new byte[Math.max(1, Math.round(frameRate * WRITE_BLOCK_MILLISECONDS / 1000f)) * frameSize];
+                if (firstPacketStreamOffset >= 0) {
+                    presentationStart = groupClock.anchor(firstPacketPresentationNanos
+                            - (long) (firstPacketStreamOffset * 1e9d / (frameRate * frameSize)));
+                }
+                if (af.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                        || af.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED) {
+                    // Dopo l'intestazione i dati PCM sono scritti sul canale direttamente dai
+                    // pacchetti ricevuti
+                    directEndOffset = ais.getFrameLength() == AudioSystem.NOT_SPECIFIED ? Long.MAX_VALUE
+                            : audioInput.getStreamOffset() + ais.getFrameLength() * frameSize;
+                    partialFrame = new byte[frameSize];
+                }
+            } else {
+                // Inizializza un buffer di dimensione adeguata a contenere un
+                // secondo di audio
+                buffer = new byte[(int) (af.getSampleRate() * Math.max(1, af.getFrameSize()))];
+            }
+
+            // Ottiene il canale audio, già aperto se il brano precedente aveva lo stesso
+            // formato, e imposta il volume master al massimo
+            sink = AudioSinks.open(af, currentlyPlayingMusicTitle, clientPlaylistStreamingManager.getLineManager());
+            sinkStartFrame = sink.getLongFramePosition();
+            if (presentationStart != null && sink.hasOwnClock()) {
+                driftCompensator = DriftCompensator.of(af, clientPlaylistStreamingManager.getDriftCorrection());
+            }
+//			if (sink.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
+//				 FloatControl volume = (FloatControl) sink.getControl(
 //				 FloatControl.Type.MASTER_GAIN );
 //				 volume.setValue( volume.getMaximum() );
 //			}
-            // Avvia la riproduzione dell'audio
-            sdl.start();
         } catch (IllegalArgumentException e) {
             // e.printStackTrace();
             success = false;
@@ -180,117 +273,104 @@ public class AudioPlayer implements
     }
 
     /**
-     * Riceve un pacchetto di dati audio. Viene notificato su questo stesso
-     * oggetto la disponibilità di nuovi dati, se il thread che esegue la
-     * riproduzione audio è in modalità {@link #buffering}.
+     * Riceve un pacchetto di dati audio.
      */
     @Override
     public final void packetArrived(final PacketDataChunk packet) {
         if (alive && packet.musicId == currentlyPlayingMusicId) {
-            incomingPackets.addAudioChunkData(packet.audioData, packet.audioData.length);
-            if (buffering || !alive) {
-                synchronized (this) {
-                    notify();
-                }
+            long nextStreamOffset = incomingPackets.getNextAvailableStreamOffset();
+            if (packet.streamOffset + packet.audioData.length <= nextStreamOffset) {
+                // Già ricevuti: lo streaming è passato a un altro client
+                return;
             }
+            if (firstPacketStreamOffset < 0) {
+                firstPacketPresentationNanos = packet.presentationNanos;
+                firstPacketStreamOffset = packet.streamOffset;
+            }
+            if (packet.streamOffset > nextStreamOffset) {
+                // Pacchetti persi: il silenzio mantiene i frame allineati alla timeline
+                byte[] silence = new byte[(int) (packet.streamOffset - nextStreamOffset)];
+                incomingPackets.addAudioChunkData(silence, silence.length);
+                nextStreamOffset = packet.streamOffset;
+            }
+            byte[] audioData = packet.audioData;
+            if (packet.streamOffset < nextStreamOffset) {
+                audioData = Arrays.copyOfRange(audioData, (int) (nextStreamOffset - packet.streamOffset), audioData.length);
+            }
+            incomingPackets.addAudioChunkData(audioData, audioData.length);
         }
     }
 
     /**
      * Gestisce l'arrivo di un pacchetto di tipo end, riguardo il brano
-     * corrente. Se il thread di riproduzione audio è in attesa di dati (
-     * {@link #buffering}) segnala su questo stesso oggetto la fine dei dati.
+     * corrente: la riproduzione termina con i dati già ricevuti.
      */
     @Override
     public final void packetArrived(final PacketEnd packet) {
         if (alive && packet.musicId == currentlyPlayingMusicId) {
             incomingPackets.close();
-            if (buffering) {
-                synchronized (this) {
-                    notify();
-                }
-            }
         }
     }
 
     /**
-     * Interrompe la riproduzione di un brano e chiude il thread associato a
-     * questa istanza.
+     * Interrompe la riproduzione di un brano, senza attenderne la fine. Se il riproduttore
+     * non era ancora stato eseguito, termina subito.
      *
-     * @throws InterruptedException
-     * @throws IOException
+     * @return {@link #getFinished()}
      */
-    public final void stop() throws InterruptedException, IOException {
+    public final CompletableFuture<Void> stop() {
         System.err.println("AudioPlayer is stopping...");
         alive = false;
         incomingPackets.close();
         synchronized (this) {
             notify();
         }
-        if (runningThread != null && runningThread.isAlive()) {
-            runningThread.join();
+        if (started.cancel(false)) {
+            finish();
         }
-        destroy();
+        return finished;
     }
 
     /**
-     * Ciclo principale: apre la periferica audio di riproduzione, attende che
-     * l'input stream a pacchetti abbia riempito il buffer e legge/scrive i dati
-     * audio fino al termine dello stream in ingresso, o fino alla terminazione
-     * forzata (tramite chiamata a {@link #stop()}).
+     * Ciclo principale: apre la periferica audio di riproduzione, attende l'istante di
+     * presentazione del brano e legge/scrive i dati audio fino al termine dello stream in
+     * ingresso, o fino alla terminazione forzata (tramite chiamata a {@link #stop()}).
+     * Dopo ogni blocco la riproduzione viene riallineata alla timeline del gruppo.
      */
     @Override
     public final void run() {
-        int dotcount;
-        // Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-        if (!(alive = startPlaying())) {
+        if (!started.complete(null)) {
+            // Interrotto prima di essere eseguito
+            return;
+        }
+        if (!alive || !startPlaying()) {
             // Il thread terminerà perchè non è riuscito ad aprire il brano
             System.out.println("AudioPlayer will skip this file...");
         } else {
-
-            // Legge, a blocchi, i dati dall'AudioInputStream e li scrive sul
-            // canale audio
             int l = 1;
+            int blocks = 0;
             try {
-
-                while (alive && l >= 0) {
-                    if (alive
-                            && (buffering = !incomingPackets.isClosed()
-                            && incomingPackets.getNextAvailableStreamOffset() < minBufferedSize)) {
-                        // Quando i dati disponibili scendono sotto la soglia
-                        // minima, riattende la bufferizzazione del
-                        // massimo del buffer
-                        sdl.stop();
-                        for (dotcount = 0; alive && buffering; dotcount++) {
-                            if (dotcount == 0) {
-                                System.err.printf(
-                                        "AudioPlayer: filling up the buffer with %d Kb",
-                                        (maxBufferedSize - incomingPackets.getNextAvailableStreamOffset()) / 1024
-                                );
-                                System.err.println();
-                            } else if (dotcount % 780 == 0) {
-                                System.err.println(".");
-                            } else if (dotcount % 10 == 0) {
-                                System.err.print(".");
-                            }
-                            synchronized (this) {
-                                wait();
-                            }
-                            if (!(buffering = !incomingPackets.isClosed()
-                                    && incomingPackets.getNextAvailableStreamOffset() < maxBufferedSize)) {
-                                sdl.start();
-                                System.err.println("\n\tstarting playback");
-                            }
-                        }
+                buffering.complete(null);
+                waitForPresentationStart();
+                sink.start();
+                playing.complete(null);
+                // Scrive i dati ricevuti direttamente sul canale audio, a blocchi
+                while (alive && l >= 0 && directEndOffset >= 0) {
+                    l = playDirectBlock();
+                    if (presentationStart != null) {
+                        keepAligned(++blocks % SKEW_SAMPLING_BLOCKS == 0);
                     }
-
-                    // Legge i dati dallo stream audio e li scrive nel
-                    // dispositivo audio
+                }
+                // Altrimenti legge, a blocchi, i dati dall'AudioInputStream e li scrive sul
+                // canale audio
+                while (alive && l >= 0 && directEndOffset < 0) {
                     l = ais.read(buffer);
-                    if (l >= 0) {
-                        sdl.write(buffer, 0, l);
+                    if (l > 0) {
+                        play(buffer, 0, l);
+                    }
+                    if (presentationStart != null) {
+                        keepAligned(++blocks % SKEW_SAMPLING_BLOCKS == 0);
                     }
-
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -299,19 +379,168 @@ public class AudioPlayer implements
             }
             // Wait for the running audio to finish
             if (alive) {
-                sdl.drain();
+                sink.drain();
             }
-            sdl.stop();
-            sdl.close();
+            sink.release();
             incomingPackets.close();
             System.out.printf(
                     "Streaming completed for '%s'",
                     currentlyPlayingMusicTitle
             );
             System.out.println();
+            if (AudioSinks.isLine()) {
+                System.err.printf("\taudio lines: %s", clientPlaylistStreamingManager.getLineManager());
+                System.err.println();
+            }
+            if (presentationStart != null) {
+                System.err.printf(
+                        "\tplayout skew ms: %s. Clock %s",
+                        clientPlaylistStreamingManager.getPlayoutSkewStatistics(),
+                        groupClock
+                );
+                System.err.println();
+            }
+            if (driftCompensator != null) {
+                clientPlaylistStreamingManager.setDriftCorrection(driftCompensator.getDrift());
+                System.err.printf("\tdrift compensation: %s", driftCompensator);
+                System.err.println();
+            }
         }
-        packetDispatcher.unregisterListener((AudioEndPacketListener) this);
-        packetDispatcher.unregisterListener((AudioDataPacketListener) this);
-        destroy();
+        finish();
+    }
+
+    /**
+     * Writes a block of audio to the line, straight from the received packets
+     *
+     * @return the number of bytes written, or -1 at the end of the audio data
+     */
+    private int playDirectBlock() {
+        int written = 0;
+        int l = 0;
+        while (alive && written < buffer.length) {
+            int maxLength = (int) Math.min(buffer.length - written, directEndOffset - audioInput.getStreamOffset());
+            if (maxLength <= 0 || (l = audioInput.readRegion(this::playRegion, maxLength)) < 0) {
+                return written > 0 ? written : -1;
+            }
+            written += l;
+        }
+        return written;
+    }
+
+    /**
+     * Plays the whole frames of a region of a received packet, keeping the frame split with the
+     * next packet, if any, to complete it
+     */
+    private void playRegion(final byte[] data, final int offset, final int length) {
+        int regionOffset = offset;
+        int regionLength = length;
+        if (partialFrameLength > 0) {
+            int completing = Math.min(frameSize - partialFrameLength, regionLength);
+            System.arraycopy(data, regionOffset, partialFrame, partialFrameLength, completing);
+            partialFrameLength += completing;
+            regionOffset += completing;
+            regionLength -= completing;
+            if (partialFrameLength == frameSize) {
+                play(partialFrame, 0, frameSize);
+                partialFrameLength = 0;
+            }
+        }
+        int wholeFramesLength = regionLength - regionLength % frameSize;
+        if (wholeFramesLength > 0) {
+            play(data, regionOffset, wholeFramesLength);
+        }
+        System.arraycopy(data, regionOffset + wholeFramesLength, partialFrame, partialFrameLength,
+                regionLength - wholeFramesLength);
+        partialFrameLength += regionLength - wholeFramesLength;
+    }
+
+    /**
+     * Writes whole frames to the line, resampled by the {@link DriftCompensator} if there is one
+     */
+    private void play(final byte[] data, final int offset, final int length) {
+        if (driftCompensator != null) {
+            sink.write(driftCompensator.getOutput(), 0, driftCompensator.resample(data, offset, length));
+        } else {
+            sink.write(data, offset, length);
+        }
+    }
+
+    /**
+     * Waits for the local time at which the first audio frame is to be played
+     */
+    private void waitForPresentationStart() throws InterruptedException {
+        if (presentationStart == null) {
+            return;
+        }
+        long waitNanos;
+        while (alive && (waitNanos = groupClock.toLocalNanos(presentationStart.getGroupNanos()) - System.nanoTime()) > 0) {
+            synchronized (this) {
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        }
+    }
+
+    /**
+     * Compares the audio frame being played with the one expected by the group timeline.
+     * A small skew adjusts the rate of the {@link DriftCompensator}; above the threshold, a late
+     * playout skips audio and an early one is delayed by writing silence.
+     *
+     * @param recordSkew true to record the skew in the statistics
+     */
+    private void keepAligned(final boolean recordSkew) throws IOException {
+        long now = System.nanoTime();
+        long expectedFrame = (long) ((groupClock.toGroupNanos(now) - presentationStart.getGroupNanos()) * frameRate / 1e9d);
+        long playedFrame = sink.getLongFramePosition() - sinkStartFrame - silenceFrames + skippedFrames
+                - (driftCompensator != null ? driftCompensator.getInsertedFrames() : 0L);
+        long skewNanos = (long) ((playedFrame - expectedFrame) * 1e9d / frameRate);
+        if (recordSkew) {
+            clientPlaylistStreamingManager.getPlayoutSkewStatistics().add(skewNanos / 1e6d);
+        }
+        if (now < nextCorrectionNanos) {
+            return;
+        }
+        if (Math.abs(skewNanos) <= CORRECTION_THRESHOLD_NANOSECONDS) {
+            if (driftCompensator != null) {
+                driftCompensator.skewMeasured(skewNanos, now);
+            }
+            return;
+        }
+        if (driftCompensator != null) {
+            driftCompensator.skewCorrected();
+        }
+        long frames = Math.abs(playedFrame - expectedFrame);
+        if (skewNanos < 0) {
+            skipFrames(frames);
+        } else {
+            writeSilence(frames);
+        }
+        nextCorrectionNanos = now + (long) (sink.getBufferSize() / (double) frameSize * 1e9d / frameRate);
+    }
+
+    private void skipFrames(final long frames) throws IOException {
+        long remaining = frames * frameSize;
+        long skipped;
+        if (directEndOffset >= 0 && partialFrameLength > 0) {
+            // The frame already started is one of the skipped ones
+            remaining -= partialFrameLength;
+            partialFrameLength = 0;
+        }
+        while (remaining > 0 && (skipped = directEndOffset >= 0 ? audioInput.skip(remaining) : ais.skip(remaining)) > 0) {
+            remaining -= skipped;
+            skippedFrames += skipped / frameSize;
+        }
+    }
+
+    private void writeSilence(final long frames) {
+        byte silence = sink.getFormat().getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED ? (byte) 0x80 : 0;
+        byte[] block = new byte[buffer.length];
+        Arrays.fill(block, silence);
+        long remaining = frames * frameSize;
+        while (alive && remaining > 0) {
+            int length = (int) Math.min(block.length, remaining);
+            sink.write(block, 0, length);
+            remaining -= length;
+        }
+        silenceFrames += frames;
     }
 }
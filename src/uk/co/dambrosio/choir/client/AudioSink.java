@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Where {@link AudioPlayer} writes the audio of a track: the part of
+ * {@link javax.sound.sampled.SourceDataLine} the player uses, so that the audio can also go
+ * somewhere else than a sound card. The sinks are created by {@link AudioSinks}.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public interface AudioSink {
+    AudioFormat getFormat();
+
+    /**
+     * Starts consuming the written audio
+     */
+    void start();
+
+    /**
+     * Writes whole frames, blocking while the buffer of the sink is full
+     *
+     * @return the number of bytes written
+     */
+    int write(byte[] data, int offset, int length);
+
+    /**
+     * Waits until the written audio has been consumed
+     */
+    void drain();
+
+    /**
+     * @return the number of frames consumed since the sink has been opened
+     */
+    long getLongFramePosition();
+
+    /**
+     * @return the size in bytes of the buffer of the sink
+     */
+    int getBufferSize();
+
+    /**
+     * @return true if the sink consumes the audio at the pace of its own clock, which drifts
+     * from the clock of the group
+     */
+    boolean hasOwnClock();
+
+    /**
+     * Gives back the sink at the end of the track: the audio still buffered is discarded
+     */
+    void release();
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * Creates the {@link AudioSink} selected by the choir.sink system property:
+ * <ul>
+ * <li><code>line</code>, the default: the sound card</li>
+ * <li><code>null</code>: the audio is discarded at the pace of a sound card, for receivers
+ * without one</li>
+ * <li><code>file</code>: each track is written to a WAV file in the choir.sink.dir directory</li>
+ * <li><code>checksum</code>: the checksum of each track is logged</li>
+ * </ul>
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class AudioSinks {
+    private static final String SINK = System.getProperty("choir.sink", "line");
+
+    private static final List<String> SINKS = Arrays.asList("line", "null", "file", "checksum");
+
+    private static final File SINK_DIRECTORY = new File(System.getProperty("choir.sink.dir",
+            System.getProperty("java.io.tmpdir")));
+
+    private AudioSinks() {
+    }
+
+    /**
+     * @return true if the audio is played on the sound card: otherwise any format can be played
+     * @throws IllegalArgumentException if choir.sink names an unknown sink
+     */
+    public static boolean isLine() {
+        return "line".equals(getSink());
+    }
+
+    /**
+     * @param format      format of the audio of the track
+     * @param musicTitle  title of the track
+     * @param lineManager manager of the lines of the sound card
+     * @return the sink for the track
+     * @throws LineUnavailableException if the line of the sound card can't be opened
+     * @throws IOException              if the file can't be created
+     * @throws IllegalArgumentException if choir.sink names an unknown sink
+     */
+    public static AudioSink open(final AudioFormat format, final String musicTitle,
+                                 final SourceDataLineManager lineManager) throws LineUnavailableException, IOException {
+        switch (getSink()) {
+            case "null":
+                return new NullAudioSink(format);
+            case "file":
+                return new FileAudioSink(format, SINK_DIRECTORY, musicTitle);
+            case "checksum":
+                return new ChecksumAudioSink(format, musicTitle);
+            default:
+                return new LineAudioSink(lineManager.acquire(format), lineManager);
+        }
+    }
+
+    /**
+     * A misspelt sink is rejected rather than played on the sound card
+     */
+    private static String getSink() {
+        if (!SINKS.contains(SINK)) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown audio sink '%s' in choir.sink: expected one of %s",
+                    SINK,
+                    String.join(", ", SINKS)
+            ));
+        }
+        return SINK;
+    }
+}
@@ -51,6 +51,18 @@ public class AudioStreamChunk {
         return copiedBytes;
     }
 
+    /**
+     * Passes the data at the given stream offset to the consumer, without copying it
+     *
+     * @return the number of bytes passed
+     */
+    public int passDataAtStreamOffset(long streamOffset, @NotNull AudioPacketInputStream.RegionConsumer consumer, int maxRequestedLength) {
+        int chunkOffset = streamOffsetToChunkOffset(streamOffset);
+        int passedBytes = Math.min((int) dataLength - chunkOffset, maxRequestedLength);
+        consumer.accept(data, chunkOffset, passedBytes);
+        return passedBytes;
+    }
+
     private int streamOffsetToChunkOffset(long originOffset) {
         return (int) (originOffset - startStreamOffset);
     }
@@ -7,8 +7,8 @@ import java.util.LinkedList;
 
 public class AudioStreamChunksQueue {
     private LinkedList<AudioStreamChunk> chunksList = new LinkedList<>();
-    private long nextAvailableStreamOffset = 0;
-    private boolean closed = false;
+    private volatile long nextAvailableStreamOffset = 0;
+    private volatile boolean closed = false;
 
     public void addAudioChunkData(@NotNull byte[] audioChunkData, long audioChunkDataSize) {
         AudioStreamChunk audioStreamChunk = new AudioStreamChunk(audioChunkData, audioChunkDataSize, nextAvailableStreamOffset);
@@ -32,12 +32,12 @@ public class AudioStreamChunksQueue {
 
     synchronized public AudioStreamChunk getOrWaitForChunkContainingStreamOffset(long offset) {
         AudioStreamChunk result = getAudioChunkContainingStreamOffset(offset);
-        if (result == null && ! isClosed()) {
+        while (result == null && !isClosed()) {
             try {
                 wait();
                 result = getAudioChunkContainingStreamOffset(offset);
             } catch (InterruptedException e) {
-                result = null;
+                break;
             }
         }
         return result;
@@ -53,8 +53,9 @@ public class AudioStreamChunksQueue {
     }
 
     synchronized public void freeChunksBehindStreamOffset(long offset) {
-        while (chunksList.size() > 0 && chunksList.peekLast().endStreamOffset - 1 < offset) {
-            chunksList.removeLast();
+        // The oldest chunks are at the front: the lookup of the next offset then finds it first
+        while (chunksList.size() > 0 && chunksList.peekFirst().endStreamOffset <= offset) {
+            chunksList.removeFirst();
         }
     }
 
@@ -68,5 +69,7 @@ public class AudioStreamChunksQueue {
 
     synchronized public void close() {
         closed = true;
+        // Wakes up the reader waiting for the next chunk
+        notifyAll();
     }
 }
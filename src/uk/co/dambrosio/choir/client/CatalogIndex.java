@@ -0,0 +1,372 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.sound.sampled.AudioFormat;
+
+import uk.co.dambrosio.choir.data.packet.Packet;
+
+/**
+ * Persistent index of the files found in an audio directory, keyed by path, size and last
+ * modification time. For each file the index remembers whether it is an audio file, and if so
+ * its music id, audio format and length, so that unchanged files can be admitted to the
+ * catalog without being opened.
+ * <p>
+ * The index file is an append-only sequence of records, each one superseding any previous
+ * record for the same path. It is memory-mapped to be read when the index is opened, new records
+ * are appended at its end, and it is rewritten without the superseded records by {@link #compact()}
+ * when these outnumber the live ones.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class CatalogIndex {
+    private static final int INDEX_MAGIC = 0x43484958;
+
+    private static final int INDEX_VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int APPEND_BUFFER_SIZE = 64 * 1024;
+
+
+    private final File indexFile;
+
+    /**
+     * Null if the index could not be opened: the index then only lives in memory
+     */
+    private FileChannel channel = null;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Paths looked up or added since the index was opened
+     */
+    private final HashSet<String> seenPaths = new HashSet<>();
+
+    /**
+     * Number of records in the index file, superseded ones included
+     */
+    private int numRecords = 0;
+
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream(APPEND_BUFFER_SIZE);
+
+    private final DataOutputStream pendingRecordsStream = new DataOutputStream(pendingRecords);
+
+    private CatalogIndex(final File indexFile) {
+        super();
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Opens the index of an audio directory. If the index file can't be opened, the returned
+     * index works in memory only.
+     *
+     * @param stateDirectory directory of the peer the index file is kept in
+     */
+    public static CatalogIndex open(final File audioPath, final File stateDirectory) {
+        File indexFile = indexFileFor(audioPath, stateDirectory);
+        CatalogIndex index = new CatalogIndex(indexFile);
+        try {
+            Files.createDirectories(indexFile.getParentFile().toPath());
+            index.channel = FileChannel.open(indexFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index.load();
+        } catch (IOException e) {
+            System.err.printf(
+                    "Could not open the catalog index %s: %s",
+                    indexFile,
+                    e.getMessage()
+            );
+            System.err.println();
+            index.close();
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    private static File indexFileFor(final File audioPath, final File stateDirectory) {
+        String canonicalPath;
+        try {
+            canonicalPath = audioPath.getCanonicalPath();
+        } catch (IOException e) {
+            canonicalPath = audioPath.getAbsolutePath();
+        }
+        return new File(stateDirectory,
+                String.format("catalog-%08x.idx", canonicalPath.hashCode()));
+    }
+
+    /**
+     * Looks up a file in the index.
+     *
+     * @return the index entry, or null if the file is unknown or has changed since it was indexed
+     */
+    public final synchronized Entry lookup(final File file, final long size, final long lastModified) {
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+        seenPaths.add(path);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Adds a file to the index.
+     *
+     * @param audioFile the audio file found, or null if the file is not an audio file
+     */
+    public final synchronized void put(final File file, final long size, final long lastModified,
+                                       final ClientAudioFile audioFile) {
+        Entry entry = new Entry(file.getAbsolutePath(), size, lastModified, audioFile);
+        entries.put(entry.path, entry);
+        seenPaths.add(entry.path);
+        if (channel == null) {
+            return;
+        }
+        try {
+            entry.write(pendingRecordsStream);
+            numRecords++;
+            if (pendingRecords.size() >= APPEND_BUFFER_SIZE) {
+                flush();
+            }
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /**
+     * Writes the pending records to the index file
+     */
+    public final synchronized void flush() {
+        if (channel == null || pendingRecords.size() == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pendingRecords.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            pendingRecords.reset();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /**
+     * Forgets the files that have not been seen since the index was opened. If the superseded
+     * records outnumber the live ones, the index file is rewritten.
+     * To be called when the whole audio directory has been scanned.
+     */
+    public final synchronized void compact() {
+        entries.keySet().retainAll(seenPaths);
+        flush();
+        if (channel == null || numRecords <= 2 * entries.size()) {
+            return;
+        }
+        File compactedFile = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel compactedChannel = FileChannel.open(compactedFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            compactedChannel.write(header());
+            for (Entry entry : entries.values()) {
+                entry.write(pendingRecordsStream);
+                if (pendingRecords.size() >= APPEND_BUFFER_SIZE) {
+                    compactedChannel.write(ByteBuffer.wrap(pendingRecords.toByteArray()));
+                    pendingRecords.reset();
+                }
+            }
+            compactedChannel.write(ByteBuffer.wrap(pendingRecords.toByteArray()));
+            pendingRecords.reset();
+            compactedChannel.force(false);
+        } catch (IOException e) {
+            pendingRecords.reset();
+            System.err.printf(
+                    "Could not compact the catalog index %s: %s",
+                    indexFile,
+                    e.getMessage()
+            );
+            System.err.println();
+            return;
+        }
+        try {
+            channel.close();
+            Files.move(compactedFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            numRecords = entries.size();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    public final synchronized void close() {
+        flush();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Warning: error while closing the catalog index");
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads the whole index file. A truncated record at the end of the file (left by an
+     * interrupted append) is discarded.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            reset();
+            return;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION) {
+            reset();
+            return;
+        }
+        long validLength = HEADER_SIZE;
+        while (buffer.remaining() >= 4) {
+            int recordLength = buffer.getInt();
+            if (recordLength <= 0 || recordLength > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            buffer.get(record);
+            try {
+                Entry entry = Entry.read(new DataInputStream(new ByteArrayInputStream(record)));
+                entries.put(entry.path, entry);
+                numRecords++;
+            } catch (EOFException e) {
+                break;
+            }
+            validLength = buffer.position();
+        }
+        if (validLength < size) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        channel.write(header(), 0);
+        channel.position(HEADER_SIZE);
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(INDEX_MAGIC);
+        header.putInt(INDEX_VERSION);
+        header.flip();
+        return header;
+    }
+
+    private void disable(final IOException e) {
+        System.err.printf(
+                "Error while writing the catalog index %s: %s. The index won't be updated.",
+                indexFile,
+                e.getMessage()
+        );
+        System.err.println();
+        pendingRecords.reset();
+        try {
+            channel.close();
+        } catch (IOException e1) {
+            // Nothing to do
+        }
+        channel = null;
+    }
+
+    /**
+     * A file known to the index
+     */
+    public static final class Entry {
+        final String path;
+        final long size;
+        final long lastModified;
+        final long musicId;
+        /**
+         * Null if the file is not an audio file
+         */
+        final AudioFormat audioFormat;
+        final long frameLength;
+
+        private Entry(final String path, final long size, final long lastModified, final long musicId,
+                      final AudioFormat audioFormat, final long frameLength) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.musicId = musicId;
+            this.audioFormat = audioFormat;
+            this.frameLength = frameLength;
+        }
+
+        Entry(final String path, final long size, final long lastModified, final ClientAudioFile audioFile) {
+            this(path, size, lastModified,
+                    audioFile != null ? audioFile.getMusicId() : 0L,
+                    audioFile != null ? audioFile.getAudioFormat() : null,
+                    audioFile != null ? audioFile.getFrameLength() : 0L);
+        }
+
+        public boolean isAudioFile() {
+            return audioFormat != null;
+        }
+
+        /**
+         * @return the audio file described by this entry, or null if this is not an audio file
+         */
+        public ClientAudioFile toAudioFile(final File file) {
+            if (!isAudioFile()) {
+                return null;
+            }
+            ClientAudioFile audioFile = new ClientAudioFile(file, musicId);
+            audioFile.setByteLength(size);
+            audioFile.setAudioFormat(audioFormat);
+            audioFile.setFrameLength(frameLength);
+            return audioFile;
+        }
+
+        private void write(final DataOutputStream dos) throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+            DataOutputStream rds = new DataOutputStream(record);
+            Packet.writeLengthPrefixedString(rds, path);
+            rds.writeLong(size);
+            rds.writeLong(lastModified);
+            rds.writeLong(musicId);
+            Packet.writeAudioFormat(rds, audioFormat);
+            if (audioFormat != null) {
+                rds.writeLong(frameLength);
+            }
+            dos.writeInt(record.size());
+            record.writeTo(dos);
+        }
+
+        private static Entry read(final DataInputStream record) throws IOException {
+            String path = Packet.readLengthPrefixedString(record);
+            long size = record.readLong();
+            long lastModified = record.readLong();
+            long musicId = record.readLong();
+            AudioFormat audioFormat = Packet.readAudioFormat(record);
+            long frameLength = audioFormat != null ? record.readLong() : 0L;
+            return new Entry(path, size, lastModified, musicId, audioFormat, frameLength);
+        }
+    }
+}
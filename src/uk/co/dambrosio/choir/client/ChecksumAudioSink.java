@@ -0,0 +1,44 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Computes the CRC-32 of the audio of a track, at the pace of a {@link NullAudioSink}, and logs
+ * it at the end of the track: receivers that played the same audio log the same checksum.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class ChecksumAudioSink extends NullAudioSink {
+    private final String musicTitle;
+
+    private final CRC32 checksum = new CRC32();
+
+    private long length = 0L;
+
+    public ChecksumAudioSink(final AudioFormat format, final String musicTitle) {
+        super(format);
+        this.musicTitle = musicTitle;
+    }
+
+    @Override
+    protected final void consume(final byte[] data, final int offset, final int length) {
+        checksum.update(data, offset, length);
+        this.length += length;
+    }
+
+    @Override
+    protected final void released() {
+        System.out.printf(
+                "Audio checksum of '%s': %08x, %d bytes",
+                musicTitle,
+                checksum.getValue(),
+                length
+        );
+        System.out.println();
+    }
+}
@@ -3,27 +3,60 @@
  */
 package uk.co.dambrosio.choir.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sun.istack.internal.NotNull;
+import uk.co.dambrosio.choir.common.AudioFile;
+import uk.co.dambrosio.choir.common.Election;
+import uk.co.dambrosio.choir.common.Heartbeat;
+import uk.co.dambrosio.choir.common.HelloPacketListener;
+import uk.co.dambrosio.choir.common.JoinPacketListener;
 import uk.co.dambrosio.choir.common.PacketDispatcher;
+import uk.co.dambrosio.choir.common.RunningStatistics;
+import uk.co.dambrosio.choir.common.Transport;
 import uk.co.dambrosio.choir.data.packet.datagram.PacketHello;
 import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
-import uk.co.dambrosio.choir.data.packet.Packet;
-import uk.co.dambrosio.choir.data.packet.stream.PacketMusic;
+import uk.co.dambrosio.choir.data.packet.stream.PacketCapabilities;
+import uk.co.dambrosio.choir.data.packet.stream.PacketCatalog;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPing;
 import uk.co.dambrosio.choir.data.packet.stream.PacketPlay;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPong;
+import uk.co.dambrosio.choir.data.packet.stream.PacketReplica;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPrepare;
+import uk.co.dambrosio.choir.data.packet.stream.PacketStop;
+import uk.co.dambrosio.choir.data.packet.stream.PacketTime;
+import uk.co.dambrosio.choir.data.packet.stream.StreamPacket;
+import uk.co.dambrosio.choir.data.packet.stream.PacketSync;
+import uk.co.dambrosio.choir.data.packet.stream.PacketWithdraw;
+import uk.co.dambrosio.choir.server.ReplicatedState;
 
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 /**
@@ -32,39 +65,124 @@ import javax.sound.sampled.UnsupportedAudioFileException;
  * @author Giulio D'Ambrosio
  */
 public class Client implements Runnable {
-    private static final int WAITING_FOR_SERVER_TIMEOUT_IN_SECONDS = 5;
+    /**
+     * Durata minima della finestra di ascolto del gruppo multicast, a cui si aggiunge
+     * un intervallo casuale fino a {@link #LISTEN_WINDOW_JITTER_MILLISECONDS}
+     */
+    private static final long LISTEN_WINDOW_MILLISECONDS = 200L;
+
+    private static final long LISTEN_WINDOW_JITTER_MILLISECONDS = 200L;
+
+    /**
+     * Intervallo tra due pacchetti join durante la finestra di ascolto: un join perso o ignorato
+     * dal server viene ripetuto prima che il client si proponga come server
+     */
+    private static final long LISTEN_WINDOW_JOIN_INTERVAL_MILLISECONDS = 100L;
+
+    /**
+     * Tempo concesso al vincitore dell'elezione per diventare server e farsi sentire
+     */
+    private static final long WAITING_FOR_ELECTED_SERVER_MILLISECONDS = 2000L;
+
+    /**
+     * Durata della verifica con cui lo standby accerta che il server sia scomparso prima di
+     * prenderne il posto: una frazione dell'intervallo di heartbeat, entro il quale deve subentrare
+     */
+    private static final long SERVER_PROBE_MILLISECONDS = Heartbeat.INTERVAL_MILLISECONDS / 2;
+
+    private static final int KNOWN_SERVER_CONNECT_TIMEOUT_MILLISECONDS = 300;
+
+    /**
+     * Intervallo con cui il connettore controlla l'arrivo di un pacchetto hello
+     */
+    private static final long CONNECTOR_POLL_INTERVAL_MILLISECONDS = 50L;
+
+    /**
+     * Intervallo iniziale tra due pacchetti join dopo la finestra di ascolto, raddoppiato ad ogni
+     * tentativo fino a {@link #MAX_JOIN_INTERVAL_MILLISECONDS}
+     */
+    private static final long MIN_JOIN_INTERVAL_MILLISECONDS = 250L;
+
+    private static final long MAX_JOIN_INTERVAL_MILLISECONDS = 4000L;
 
     private static final int AUDIO_FILES_HASH_MAP_SIZE = 512;
 
-    @NotNull
-    private PacketDispatcher packetDispatcher;
+    private static final int SERVER_STREAM_BUFFER_SIZE = 64 * 1024;
 
-    private MulticastSocket multicastSocket = null;
+    private static final int MAX_CACHED_STREAMING_PARAMETERS = 1024;
 
-    @NotNull
-    private InetAddress multicastGroupAddress;
+    /**
+     * Campioni di sincronizzazione dell'orologio richiesti subito dopo la connessione; in seguito
+     * ne viene richiesto uno ad ogni heartbeat del server
+     */
+    private static final int CLOCK_SAMPLES_AT_CONNECTION = 4;
+
+    /**
+     * Secondi di audio letti in anticipo quando il server annuncia il prossimo brano
+     */
+    private static final double PRELOADED_AUDIO_SECONDS = 3.0d;
 
-    private char multicastGroupPort;
+    /**
+     * Directory dello stato del peer nella home dell'utente, se non ne viene indicata un'altra
+     */
+    private static final String DEFAULT_STATE_DIRECTORY = ".choir";
+
+    /**
+     * Il gruppo multicast, con la riproduzione e lo streaming dei brani: sopravvive alle
+     * riconnessioni al server
+     */
+    @NotNull
+    private final DataPlane dataPlane;
 
     @NotNull
-    private Socket serverSocket;
+    private Transport.Connection serverSocket;
 
     private DataOutputStream serverStream;
 
+    private DataInputStream serverInputStream;
+
     @NotNull
     private InetAddress serverAddress;
 
     private char serverPort;
 
     /**
-     * Istanza del gestore della playlist di riproduzione brani
+     * Thread che prepara lo streaming del prossimo brano annunciato dal server
+     */
+    private final ExecutorService preparationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Client preparation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Lo streaming del prossimo brano, in preparazione o già pronto.
+     * Usato solo dal thread principale del client.
+     */
+    private Future<AudioPacketStreamWriter> preparedStreamWriter = null;
+
+    /**
+     * Id dell'ultimo brano preparato, finché non viene usato o scartato: letto dalla cache dei brani
+     * ricevuti, che non deve eliminarlo
      */
-    private ClientPlaylistStreamingManager clientPlaylistStreamingManager = null;
+    private volatile long preparedMusicId = AudioFile.NO_MUSIC_ID;
 
     /**
-     * Istanza del thread che manda in streaming un brano audio
+     * Parametri di streaming dei brani riprodotti di recente, per id del brano
      */
-    private AudioPacketStreamWriter audioPacketStreamWriter = null;
+    private final LinkedHashMap<Long, StreamingParameters> streamingParametersCache =
+            new LinkedHashMap<Long, StreamingParameters>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, StreamingParameters> eldest) {
+                    return size() > MAX_CACHED_STREAMING_PARAMETERS;
+                }
+            };
+
+    /**
+     * Statistiche del ritardo, in millisecondi, tra la ricezione di un pacchetto play
+     * e l'invio del primo pacchetto audio
+     */
+    private final RunningStatistics playToFirstDataStatistics = new RunningStatistics();
 
     /**
      * Istanza del thread che tenta di ricevere l'indirizzo del server dal
@@ -80,7 +198,18 @@ public class Client implements Runnable {
     /**
      * Flag: true se ha ricevuto un pacchetto HELO.
      */
-    private boolean connected = false;
+    private volatile boolean connected = false;
+
+    /**
+     * Flag: true se ha ricevuto un pacchetto JOIN da un client con rango più alto,
+     * che vincerà l'elezione del server
+     */
+    private volatile boolean outranked = false;
+
+    /**
+     * Stato del server replicato presso questo client, se è stato scelto come standby
+     */
+    private volatile ReplicatedState standbyState = null;
 
     /**
      * Flag: false se il client è chiuso o in chiusura
@@ -92,34 +221,149 @@ public class Client implements Runnable {
      */
     private String audioPath;
 
+    /**
+     * Directory dello stato del peer: l'indice del catalogo e l'ultimo server conosciuto
+     */
+    private final File stateDirectory;
+
     /**
      * L'insieme dei brani resi disponibili da questo client (memorizzate come
      * associazioni
      */
-    private final ConcurrentHashMap<Integer, ClientAudioFile> audioFiles = new ConcurrentHashMap<>(AUDIO_FILES_HASH_MAP_SIZE);
+    private final ConcurrentHashMap<Long, ClientAudioFile> audioFiles = new ConcurrentHashMap<>(AUDIO_FILES_HASH_MAP_SIZE);
 
     /**
      * Contatore del numero di file audio resi disponibili {@link #audioFiles}
      */
     private int numAudioFiles = 0;
 
+    /**
+     * I brani resi disponibili da questo client, per percorso del file
+     */
+    private final ConcurrentHashMap<File, ClientAudioFile> audioFilesByPath = new ConcurrentHashMap<>(AUDIO_FILES_HASH_MAP_SIZE);
+
+    /**
+     * Istanza del thread che tiene sotto osservazione {@link #audioPath}
+     */
+    private DirectoryWatcher directoryWatcher = null;
+
+    /**
+     * File audio in attesa di essere comunicati al server, in blocchi di
+     * {@link PacketCatalog#MAX_ENTRIES_PER_PACKET} elementi
+     */
+    private final ConcurrentLinkedQueue<ClientAudioFile> pendingAnnouncements = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger numPendingAnnouncements = new AtomicInteger(0);
+
+    /**
+     * Il catalogo che il server conosce di questo client: sopravvive alle
+     * riconnessioni, per comunicare al server solamente le differenze
+     */
+    private final AnnouncedCatalog announcedCatalog;
+
+    /**
+     * Indice persistente dei file presenti in {@link #audioPath}
+     */
+    private CatalogIndex catalogIndex = null;
+
+    /**
+     * Riceve dalla cache dei brani ricevuti i brani da condividere con il gruppo
+     */
+    private final StreamCache.Listener streamCacheListener = new StreamCache.Listener() {
+        @Override
+        public boolean isShared(final long musicId) {
+            return getAudioFile(musicId) != null;
+        }
+
+        @Override
+        public boolean isInUse(final long musicId) {
+            return dataPlane.isStreaming(musicId) || preparedMusicId == musicId;
+        }
+
+        @Override
+        public void audioFileCached(final ClientAudioFile audioFile) {
+            if (!alive || !putAudioFile(audioFile)) {
+                return;
+            }
+            try {
+                notifyNewAudioFile(audioFile);
+                flushAudioFileAnnouncements();
+            } catch (IOException e) {
+                // Il server lo riceverà alla prossima connessione
+            }
+        }
+
+        @Override
+        public void audioFileEvicted(final ClientAudioFile audioFile) {
+            if (getAudioFile(audioFile.getMusicId()) != audioFile) {
+                return;
+            }
+            removeAudioFile(audioFile);
+            try {
+                withdrawAudioFiles(Collections.singletonList(audioFile.getMusicId()));
+            } catch (IOException e) {
+                // Il server lo scoprirà alla prossima connessione
+            }
+        }
+    };
+
     /**
      * Costruttore.
      *
-     * @param strGroupAddress Indirizzo del gruppo multicast a cui collegarsi
-     * @param multicastGroupPort       Porta del gruppo multicast a cui collegarsi
-     * @param audioPath       Percorso dei file audio da rendere disponibili al gruppo
+     * @param dataPlane Gruppo multicast a cui collegarsi
+     * @param audioPath Percorso dei file audio da rendere disponibili al gruppo
      * @throws IOException
      */
     public Client(
             @NotNull
-            final String strGroupAddress,
-            @NotNull
-            final char multicastGroupPort,
+            final DataPlane dataPlane,
             @NotNull
             final String audioPath
+    ) throws IOException {
+        this(dataPlane, audioPath, new AnnouncedCatalog());
+    }
+
+    /**
+     * Costruttore.
+     *
+     * @param dataPlane        Gruppo multicast a cui collegarsi, condiviso con i client precedenti
+     * @param audioPath        Percorso dei file audio da rendere disponibili al gruppo
+     * @param announcedCatalog Catalogo comunicato al server da un client precedente
+     * @throws IOException
+     */
+    public Client(
+            @NotNull
+            final DataPlane dataPlane,
+            @NotNull
+            final String audioPath,
+            @NotNull
+            final AnnouncedCatalog announcedCatalog
+    ) throws IOException {
+        this(dataPlane, audioPath, announcedCatalog, getDefaultStateDirectory());
+    }
+
+    /**
+     * Costruttore.
+     *
+     * @param dataPlane        Gruppo multicast a cui collegarsi, condiviso con i client precedenti
+     * @param audioPath        Percorso dei file audio da rendere disponibili al gruppo
+     * @param announcedCatalog Catalogo comunicato al server da un client precedente
+     * @param stateDirectory   Directory dello stato del peer
+     * @throws IOException
+     */
+    public Client(
+            @NotNull
+            final DataPlane dataPlane,
+            @NotNull
+            final String audioPath,
+            @NotNull
+            final AnnouncedCatalog announcedCatalog,
+            @NotNull
+            final File stateDirectory
     ) throws IOException {
         super();
+        this.stateDirectory = stateDirectory;
+        this.announcedCatalog = announcedCatalog;
         File aPath = new File(audioPath);
         if (!aPath.isDirectory()) {
             throw new IOException(audioPath
@@ -129,82 +373,106 @@ public class Client implements Runnable {
             throw new IOException(audioPath
                     + " can't be read");
         }
-        this.multicastGroupAddress = InetAddress.getByName(strGroupAddress);
-        this.multicastGroupPort = multicastGroupPort;
+        this.dataPlane = dataPlane;
         this.audioPath = audioPath;
     }
 
     /**
      * Tenta di connettersi al grouppo multicast del uk.co.dambrosio.choir mandando un
-     * pacchetto join, ed attendendo la risposta hello. Se la risposta non
-     * giunge in tempo, il metodo restituisce false. Il metodo genera un thread
-     * che tenta di connettersi ad intervalli regolari
+     * pacchetto join, ed attendendo la risposta hello. Il metodo genera un thread
+     * che tenta di connettersi ad intervalli regolari.
+     * <p>
+     * Before listening to the group the last known server is tried directly. Then the group is
+     * listened for a short randomized window: if no server answers and no peer with a higher
+     * rank has been heard ({@link Election}), the method returns false and this peer is expected
+     * to become the server. A peer that has been outranked waits for the winner instead, and so
+     * does a peer that has just lost its server, giving the standby the time to take over.
      *
+     * @param serverLost true if this peer was connected to a server that went away
      * @return true in caso di riuscita connessione
      * @throws IOException
      */
-    public final boolean connect() throws IOException {
+    public final boolean connect(final boolean serverLost) throws IOException {
         if (isConnected()) {
             return true;
         }
-        if (multicastSocket == null) {
-            System.err.printf(
-                    "Trying to connect to multicast group: %s:%d",
-                    multicastGroupAddress,
-                    (int) multicastGroupPort
-            );
-            System.err.println();
-            multicastSocket = new MulticastSocket(multicastGroupPort);
-            multicastSocket.joinGroup(multicastGroupAddress);
-            multicastSocket.setSoTimeout(1000);
+        if (connectToKnownServer()) {
+            return true;
         }
+        final long listenWindowMilliseconds =
+                LISTEN_WINDOW_MILLISECONDS + (long) (Math.random() * LISTEN_WINDOW_JITTER_MILLISECONDS);
         connector = new Thread(new Runnable() {
+            private final HelloPacketListener helloListener = this::helloReceived;
+
+            private final JoinPacketListener joinListener = this::joinReceived;
+
             public void run() {
-                while (!Client.this.isConnected() && Client.this.alive) {
-                    sendJoinMessage();
-                    receiveHelloMessage();
+                PacketDispatcher packetDispatcher = getPacketDispatcher();
+                packetDispatcher.registerListener(helloListener);
+                packetDispatcher.registerListener(joinListener);
+                listenWindowEndTimestamp = Calendar.getInstance().getTimeInMillis() + listenWindowMilliseconds;
+                try {
+                    while (!Client.this.isConnected() && Client.this.alive) {
+                        sendJoinMessage();
+                        Thread.sleep(CONNECTOR_POLL_INTERVAL_MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    // Connessione abbandonata
+                } finally {
+                    packetDispatcher.unregisterListener(helloListener);
+                    packetDispatcher.unregisterListener(joinListener);
                 }
             }
 
-            private void receiveHelloMessage() {
-                PacketHello pktHello;
-                DatagramPacket dp;
-                try {
-
-                    dp = new DatagramPacket(new byte[Packet.MAX_PACKET_PAYLOAD_SIZE], Packet.MAX_PACKET_PAYLOAD_SIZE);
-
-                    Client.this.multicastSocket.receive(dp);
+            private void helloReceived(final PacketHello pktHello) {
+                if (Client.this.isConnected()) {
+                    return;
+                }
+                Client.this.serverAddress = pktHello.serverAddress;
+                Client.this.serverPort = pktHello.serverPort;
+                Client.this.setConnected(true);
+                System.err.printf(
+                        "ServerMain answered from %s:%d",
+                        serverAddress,
+                        (int) serverPort
+                );
+                System.err.println();
+                KnownServer.save(stateDirectory, serverAddress, serverPort);
+            }
 
-                    pktHello = new PacketHello(dp);
-                    Client.this.serverAddress = pktHello.serverAddress;
-                    Client.this.serverPort = pktHello.serverPort;
-                    Client.this.setConnected(true);
-                    System.err.printf(
-                            "ServerMain answered from %s:%d",
-                            serverAddress,
-                            (int) serverPort
-                    );
-                    System.err.println();
-                } catch (UnexpectedPacketException e) {
-                    // Packet is not the expected Hello
-                } catch (SocketTimeoutException e) {
-                    // Packet did not arrive
-                } catch (IOException e) {
-                    // Error while listening: bail out
-                    e.printStackTrace();
-                    alive = false;
+            private void joinReceived(final uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket.PacketJoin pktJoin) {
+                if (!outranked && pktJoin.peerId != getPeerId()
+                        && Election.outranks(pktJoin.priority, pktJoin.peerId, Election.LOCAL_PRIORITY, getPeerId())) {
+                    outranked = true;
+                    System.err.println("Another peer with higher rank is looking for a server: waiting for it");
                 }
             }
 
+            /**
+             * Il primo join viene inviato subito, così che i peer che si avviano insieme si
+             * conoscano, e viene ripetuto a intervalli brevi fino alla fine della finestra di
+             * ascolto; l'intervallo viene poi raddoppiato dopo ogni join senza risposta, così che
+             * molti client che si avviano insieme non inondino il gruppo.
+             */
             private void sendJoinMessage() {
                 uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket.PacketJoin pktJoin;
 
-                if (isTimestampAtLeastOneSecondOld(lastJoinMessageSentTimestamp)) {
+                if (Calendar.getInstance().getTimeInMillis() >= nextJoinMessageTimestamp) {
                     try {
-                        pktJoin = new uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket.PacketJoin(multicastGroupAddress, multicastGroupPort);
-                        Client.this.multicastSocket.send(pktJoin.getRawPacket());
+                        pktJoin = new uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket.PacketJoin(
+                                Election.LOCAL_PRIORITY, getPeerId(),
+                                dataPlane.getMulticastGroupAddress(), dataPlane.getMulticastGroupPort());
+                        getPacketDispatcher().send(pktJoin);
                         System.err.println("join request sent");
-                        lastJoinMessageSentTimestamp = Calendar.getInstance().getTimeInMillis();
+                        long now = Calendar.getInstance().getTimeInMillis();
+                        if (now < listenWindowEndTimestamp) {
+                            nextJoinMessageTimestamp = now + LISTEN_WINDOW_JOIN_INTERVAL_MILLISECONDS;
+                        } else {
+                            nextJoinMessageTimestamp = now
+                                    + joinIntervalMilliseconds / 2
+                                    + (long) (Math.random() * joinIntervalMilliseconds);
+                            joinIntervalMilliseconds = Math.min(MAX_JOIN_INTERVAL_MILLISECONDS, joinIntervalMilliseconds * 2);
+                        }
                     } catch (IOException e) {
                         // Error while listening: bail out
                         e.printStackTrace();
@@ -213,45 +481,92 @@ public class Client implements Runnable {
                 }
             }
 
-            private boolean isTimestampAtLeastOneSecondOld(long lastTimestamp) {
-                return (Calendar.getInstance().getTimeInMillis() - lastTimestamp) >= 1000;
-            }
+            private long joinIntervalMilliseconds = MIN_JOIN_INTERVAL_MILLISECONDS;
+
+            private long nextJoinMessageTimestamp = 0L;
 
-            private long lastJoinMessageSentTimestamp = 0L;
+            private long listenWindowEndTimestamp;
         });
         connector.start();
         try {
-            connector.join(WAITING_FOR_SERVER_TIMEOUT_IN_SECONDS * 1000, 0);
+            connector.join(listenWindowMilliseconds);
+            if (!isConnected() && (outranked || serverLost)) {
+                connector.join(WAITING_FOR_ELECTED_SERVER_MILLISECONDS);
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
         return isConnected();
     }
 
+    /**
+     * Tenta di connettersi direttamente all'ultimo server conosciuto
+     *
+     * @return true se la connessione è riuscita
+     */
+    private boolean connectToKnownServer() {
+        InetSocketAddress knownServer = KnownServer.load(stateDirectory);
+        if (knownServer == null) {
+            return false;
+        }
+        try {
+            serverSocket = dataPlane.getTransport().connect(knownServer, KNOWN_SERVER_CONNECT_TIMEOUT_MILLISECONDS);
+        } catch (IOException e) {
+            return false;
+        }
+        serverAddress = knownServer.getAddress();
+        serverPort = (char) knownServer.getPort();
+        setConnected(true);
+        System.err.printf("Connected to the last known server at %s:%d", serverAddress, (int) serverPort);
+        System.err.println();
+        return true;
+    }
+
+    /**
+     * @return la directory dello stato del peer nella home dell'utente
+     */
+    public static File getDefaultStateDirectory() {
+        return new File(System.getProperty("user.home"), DEFAULT_STATE_DIRECTORY);
+    }
+
+    /**
+     * @return l'identificativo casuale di questo peer
+     */
+    public final long getPeerId() {
+        return announcedCatalog.getPeerId();
+    }
+
     /**
      * Ciclo principale del client. Riceve pacchetti di tipo play dal server, e
      * genera un'istanza della classe AudioPacketStreamWriter per riprodurne il
      * contenuto verso il gruppo multicast.
+     * I pacchetti di tipo prepare annunciano il brano successivo, che viene
+     * preparato in anticipo.
      */
     @Override
     public final void run() {
         if (isConnected()) {
-            PacketPlay pktPlay;
-            ClientAudioFile audioFile;
+            StreamPacket packet;
+            long receivedNanos;
 
             while (alive) {
                 try {
-                    pktPlay = new PacketPlay();
-                    pktPlay.fromStream(new DataInputStream(serverSocket.getInputStream()));
-                    if ((audioFile = getAudioFile(pktPlay.musicId)) != null) {
-                        if (audioPacketStreamWriter != null && audioPacketStreamWriter.isAlive()) {
-                            audioPacketStreamWriter.stopThread();
-                        }
-                        audioPacketStreamWriter = new AudioPacketStreamWriter(audioFile, getPacketDispatcher(), multicastGroupAddress, multicastGroupPort);
-                        audioPacketStreamWriter.startThread();
+                    packet = StreamPacket.readStreamPacket(serverInputStream);
+                    receivedNanos = System.nanoTime();
+                    if (packet instanceof PacketPlay) {
+                        playAudioFile((PacketPlay) packet, receivedNanos);
+                    } else if (packet instanceof PacketStop) {
+                        dataPlane.handOverStreamWriter(((PacketStop) packet).musicId);
+                    } else if (packet instanceof PacketPrepare) {
+                        prepareAudioFile(((PacketPrepare) packet).musicId);
+                    } else if (packet instanceof PacketPing) {
+                        answerPing((PacketPing) packet);
+                    } else if (packet instanceof PacketTime) {
+                        timeReceived((PacketTime) packet, receivedNanos);
+                    } else if (packet instanceof PacketReplica) {
+                        replicaReceived((PacketReplica) packet);
                     } else {
-                        System.err.println("Stale audio file requested: "
-                                + pktPlay.musicId);
+                        throw new UnexpectedPacketException(PacketPlay.packetCode, packet.getClass().getSimpleName());
                     }
                 } catch (UnexpectedPacketException e) {
                     System.err.println("Unexpected server message");
@@ -259,6 +574,9 @@ public class Client implements Runnable {
                 } catch (SocketException e) {
                     alive = false;
                     System.err.println("Lost server connection");
+                } catch (SocketTimeoutException e) {
+                    alive = false;
+                    System.err.println("The server is not responding");
                 } catch (IOException e) {
                     e.printStackTrace();
                     alive = false;
@@ -277,16 +595,18 @@ public class Client implements Runnable {
     /**
      * Inserisce un audio file nella collezione condivisa.
      *
-     * @return false in caso di fallimento (il file era già stato incluso)
+     * @return false in caso di fallimento (il file, o una sua copia, era già stato incluso)
      */
     public final boolean putAudioFile(final ClientAudioFile audioFile) {
         synchronized (audioFiles) {
-            if (audioFiles.containsKey(audioFile.hashCode())) {
+            ClientAudioFile sameContentAudioFile = audioFiles.get(audioFile.getMusicId());
+            if (sameContentAudioFile != null) {
                 System.err.println("File duplicato: "
-                        + audioFile.getMusicTitle());
+                        + audioFile.getFile() + " ha lo stesso contenuto di " + sameContentAudioFile.getFile());
                 return false;
             }
-            audioFiles.put(audioFile.hashCode(), audioFile);
+            audioFiles.put(audioFile.getMusicId(), audioFile);
+            audioFilesByPath.put(audioFile.getFile(), audioFile);
             numAudioFiles++;
             return true;
         }
@@ -294,14 +614,43 @@ public class Client implements Runnable {
 
     public final void removeAudioFile(final ClientAudioFile audioFile) {
         synchronized (audioFiles) {
-            audioFiles.remove(audioFile.hashCode());
-            numAudioFiles--;
+            if (audioFiles.remove(audioFile.getMusicId(), audioFile)) {
+                audioFilesByPath.remove(audioFile.getFile(), audioFile);
+                numAudioFiles--;
+            }
         }
     }
 
     /**
-     * Spedisce al server un pacchetto che notifica la disponibilità di un file
-     * audio.
+     * Restituisce l'audiofile associato ad un file dato.
+     *
+     * @return audiofile associato, o null
+     */
+    public final ClientAudioFile getAudioFile(final File file) {
+        return audioFilesByPath.get(file);
+    }
+
+    /**
+     * Restituisce gli audiofile contenuti in una directory, o nelle sue sottodirectory.
+     *
+     * @return audiofile contenuti nella directory
+     */
+    public final List<ClientAudioFile> getAudioFilesUnder(final File directory) {
+        Path directoryPath = directory.toPath();
+        ArrayList<ClientAudioFile> result = new ArrayList<>();
+        for (ClientAudioFile audioFile : audioFilesByPath.values()) {
+            if (audioFile.getFile().toPath().startsWith(directoryPath)) {
+                result.add(audioFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Accoda la notifica al server della disponibilità di un file audio.
+     * Le notifiche vengono spedite in blocchi: quando la coda contiene un blocco
+     * completo viene spedito subito, altrimenti alla chiamata di
+     * {@link #flushAudioFileAnnouncements()}.
      *
      * @param audioFile file
      *                  audio
@@ -309,9 +658,254 @@ public class Client implements Runnable {
      */
     public final void notifyNewAudioFile(final ClientAudioFile audioFile)
             throws IOException {
-        PacketMusic pm = new PacketMusic(audioFile);
+        if (announcedCatalog.contains(audioFile)) {
+            // The server already knows about it since a previous connection
+            return;
+        }
+        pendingAnnouncements.add(audioFile);
+        if (numPendingAnnouncements.incrementAndGet() >= PacketCatalog.MAX_ENTRIES_PER_PACKET) {
+            flushAudioFileAnnouncements();
+        }
+    }
+
+    /**
+     * Spedisce al server tutte le notifiche di file audio in coda.
+     *
+     * @throws IOException
+     */
+    public final void flushAudioFileAnnouncements() throws IOException {
+        ArrayList<ClientAudioFile> batch = new ArrayList<>(PacketCatalog.MAX_ENTRIES_PER_PACKET);
+        ClientAudioFile audioFile;
+        int announced = 0;
+        synchronized (serverStream) {
+            while ((audioFile = pendingAnnouncements.poll()) != null) {
+                numPendingAnnouncements.decrementAndGet();
+                batch.add(audioFile);
+                if (batch.size() == PacketCatalog.MAX_ENTRIES_PER_PACKET) {
+                    announced += announceBatch(batch);
+                }
+            }
+            if (batch.size() > 0) {
+                announced += announceBatch(batch);
+            }
+            serverStream.flush();
+        }
+        if (announced > 0) {
+            System.err.printf(
+                    "Server was notified about %d audio files",
+                    announced
+            );
+            System.err.println();
+        }
+    }
+
+    private int announceBatch(final ArrayList<ClientAudioFile> batch) throws IOException {
+        int announced = batch.size();
+        new PacketCatalog(batch).toStream(serverStream);
+        for (ClientAudioFile audioFile : batch) {
+            announcedCatalog.add(audioFile);
+        }
+        batch.clear();
+        return announced;
+    }
+
+    /**
+     * Comunica al server che i file audio annunciati in precedenza, ma non più
+     * presenti nella collezione, non sono più disponibili.
+     *
+     * @throws IOException
+     */
+    public final void withdrawMissingAudioFiles() throws IOException {
+        ArrayList<Long> missingMusicIds = new ArrayList<>();
+        for (Long musicId : announcedCatalog.getMusicIds()) {
+            if (getAudioFile(musicId) == null) {
+                missingMusicIds.add(musicId);
+            }
+        }
+        withdrawAudioFiles(missingMusicIds);
+    }
+
+    /**
+     * Comunica al server che alcuni file audio non sono più disponibili.
+     *
+     * @param musicIds id dei brani
+     * @throws IOException
+     */
+    public final void withdrawAudioFiles(final Collection<Long> musicIds) throws IOException {
+        if (musicIds.isEmpty()) {
+            return;
+        }
+        ArrayList<Long> batch = new ArrayList<>(Math.min(musicIds.size(), PacketWithdraw.MAX_ENTRIES_PER_PACKET));
+        synchronized (serverStream) {
+            for (Long musicId : musicIds) {
+                batch.add(musicId);
+                announcedCatalog.remove(musicId);
+                if (batch.size() == PacketWithdraw.MAX_ENTRIES_PER_PACKET) {
+                    new PacketWithdraw(batch).toStream(serverStream);
+                    batch.clear();
+                }
+            }
+            if (batch.size() > 0) {
+                new PacketWithdraw(batch).toStream(serverStream);
+            }
+            serverStream.flush();
+        }
+        System.err.printf(
+                "Server was notified that %d audio files are no longer available",
+                musicIds.size()
+        );
+        System.err.println();
+    }
+
+    /**
+     * Scambia con il server il digest del catalogo annunciato durante la
+     * connessione precedente. Se il server non ricorda lo stesso catalogo,
+     * il catalogo dovrà essere annunciato per intero.
+     *
+     * @throws IOException
+     */
+    private void synchronizeCatalog() throws IOException {
+        PacketSync reply = new PacketSync();
+        synchronized (serverStream) {
+            new PacketSync(announcedCatalog.getPeerId(), announcedCatalog.getDigest()).toStream(serverStream);
+            serverStream.flush();
+        }
+        reply.fromStream(serverInputStream);
+        if (reply.catalogDigest != announcedCatalog.getDigest()) {
+            announcedCatalog.clear();
+            System.err.println("Server does not know this catalog: announcing it in full");
+        } else if (announcedCatalog.size() > 0) {
+            System.err.printf(
+                    "Server remembers the %d audio files announced previously: announcing only changes",
+                    announcedCatalog.size()
+            );
+            System.err.println();
+        }
+    }
+
+    /**
+     * Comunica al server i formati audio che questo client è in grado di riprodurre
+     *
+     * @throws IOException
+     */
+    private void announceCapabilities() throws IOException {
+        // Senza scheda audio ogni formato può essere riprodotto
+        boolean anyAudioFormat = !AudioSinks.isLine();
+        List<AudioFormat> audioFormats = anyAudioFormat ? new ArrayList<>()
+                : AudioCapabilities.getRenderableAudioFormats();
+        if (audioFormats.size() > PacketCapabilities.MAX_FORMATS_PER_PACKET) {
+            audioFormats = audioFormats.subList(0, PacketCapabilities.MAX_FORMATS_PER_PACKET);
+        }
+        synchronized (serverStream) {
+            new PacketCapabilities(anyAudioFormat, audioFormats).toStream(serverStream);
+            serverStream.flush();
+        }
+        if (!anyAudioFormat && audioFormats.isEmpty()) {
+            System.err.println("No audio output available: this client will not play any audio file");
+        }
+    }
+
+    /**
+     * Segue lo stato del server quando questo client è stato scelto come standby.
+     * Lo standby riceve un pacchetto ad ogni intervallo di heartbeat, quindi considera
+     * il server perso dopo due intervalli di silenzio.
+     */
+    private void replicaReceived(final PacketReplica packet) throws IOException {
+        if (!packet.standby) {
+            standbyState = null;
+            serverSocket.setSoTimeout(Heartbeat.getTimeoutMilliseconds());
+            System.err.println("This client is not the standby server anymore");
+            return;
+        }
+        if (standbyState == null) {
+            standbyState = new ReplicatedState();
+            serverSocket.setSoTimeout(2 * Heartbeat.INTERVAL_MILLISECONDS);
+            System.err.println("This client is now the standby server");
+        }
+        standbyState.apply(packet);
+    }
+
+    /**
+     * @return lo stato del server replicato presso questo client, se è lo standby, altrimenti null
+     */
+    public final ReplicatedState getStandbyState() {
+        return standbyState;
+    }
+
+    /**
+     * Verifica se il server è ancora attivo dopo la perdita della connessione di controllo,
+     * che può chiudersi anche con il server in salute: se ha espulso questo client per i
+     * pong mancati, per un timeout di lettura passeggero o perché ha lasciato il posto a un
+     * altro server. Per {@link #SERVER_PROBE_MILLISECONDS} ascolta il gruppo e tenta di
+     * riconnettersi al server: se riceve un pacchetto HELO dallo stesso server o la connessione
+     * riesce, il server è attivo e lo standby non deve prenderne il posto. I pacchetti HELO di
+     * altri server sono ignorati: un peer può essersi già proposto come server, ma lo standby
+     * ha un rango più alto e gli subentra.
+     *
+     * @return true se il server ha risposto
+     */
+    public final boolean isServerAlive() {
+        final AtomicBoolean helloHeard = new AtomicBoolean(false);
+        HelloPacketListener helloListener = pktHello -> {
+            if (pktHello.serverAddress.equals(serverAddress) && pktHello.serverPort == serverPort) {
+                helloHeard.set(true);
+            }
+        };
+        PacketDispatcher packetDispatcher = getPacketDispatcher();
+        packetDispatcher.registerListener(helloListener);
+        try {
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SERVER_PROBE_MILLISECONDS);
+            while (System.nanoTime() < deadlineNanos) {
+                if (helloHeard.get()) {
+                    return true;
+                }
+                try {
+                    dataPlane.getTransport()
+                            .connect(new InetSocketAddress(serverAddress, serverPort), KNOWN_SERVER_CONNECT_TIMEOUT_MILLISECONDS)
+                            .close();
+                    return true;
+                } catch (IOException e) {
+                    // Server non raggiungibile: si riprova fino alla scadenza
+                }
+                Thread.sleep(CONNECTOR_POLL_INTERVAL_MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            packetDispatcher.unregisterListener(helloListener);
+        }
+        return helloHeard.get();
+    }
+
+    /**
+     * Risponde al pacchetto di heartbeat del server, e ne approfitta per chiedere un nuovo
+     * campione di sincronizzazione dell'orologio
+     */
+    private void answerPing(final PacketPing ping) throws IOException {
         synchronized (serverStream) {
-            pm.toStream(serverStream);
+            new PacketPong(ping.sequence, ping.sentNanos).toStream(serverStream);
+            serverStream.flush();
+        }
+        requestTime();
+    }
+
+    /**
+     * Chiede al server l'ora della timeline del gruppo
+     */
+    private void requestTime() throws IOException {
+        synchronized (serverStream) {
+            new PacketTime(System.nanoTime()).toStream(serverStream);
+            serverStream.flush();
+        }
+    }
+
+    private void timeReceived(final PacketTime packet, final long receivedNanos) {
+        GroupClock groupClock = dataPlane.getGroupClock();
+        boolean wasSynchronized = groupClock.isSynchronized();
+        groupClock.sampleArrived(packet.clientSentNanos, packet.serverReceivedNanos, packet.serverSentNanos, receivedNanos);
+        if (!wasSynchronized) {
+            System.err.printf("Clock synchronized with the server: %s", groupClock);
+            System.err.println();
         }
     }
 
@@ -321,12 +915,147 @@ public class Client implements Runnable {
      * @param musicId id del brano richiesto.
      * @return audiofile associato
      */
-    public final ClientAudioFile getAudioFile(final char musicId) {
+    public final ClientAudioFile getAudioFile(final long musicId) {
         synchronized (audioFiles) {
-            return audioFiles.get((int) musicId);
+            return audioFiles.get(musicId);
+        }
+    }
+
+    /**
+     * Avvia lo streaming di un brano, usando lo streaming preparato in anticipo se
+     * si tratta del brano annunciato dal server. Con un offset diverso da zero lo
+     * streaming prosegue quello interrotto su un altro client, a partire dal byte indicato.
+     *
+     * @param packet        richiesta del server, con il brano e il byte da cui iniziare lo streaming
+     * @param receivedNanos istante di ricezione della richiesta
+     */
+    private void playAudioFile(final PacketPlay packet, final long receivedNanos)
+            throws IOException, UnsupportedAudioFileException {
+        long musicId = packet.musicId;
+        long offset = packet.offset;
+        AudioPacketStreamWriter streamWriter = offset == 0L ? takePreparedStreamWriter(musicId) : null;
+        if (streamWriter == null) {
+            ClientAudioFile audioFile = getAudioFile(musicId);
+            if (audioFile == null) {
+                System.err.println("Stale audio file requested: "
+                        + Long.toHexString(musicId));
+                return;
+            }
+            streamWriter = createStreamWriter(audioFile);
+            if (offset != 0L) {
+                System.err.printf("Taking over the streaming of '%s' at byte %d", audioFile.getMusicTitle(), offset);
+                System.err.println();
+                streamWriter.resumeAt(offset, packet.timelineOffset, packet.timelineNanos);
+            }
+        }
+        dataPlane.startStreamWriter(streamWriter, receivedNanos);
+    }
+
+    /**
+     * Prepara lo streaming di un brano: apre il file e ne legge l'inizio in memoria,
+     * in un thread separato.
+     *
+     * @param musicId id del brano
+     */
+    private void prepareAudioFile(final long musicId) {
+        final ClientAudioFile audioFile = getAudioFile(musicId);
+        discardPreparedStreamWriter();
+        if (audioFile == null) {
+            return;
+        }
+        preparedMusicId = musicId;
+        preparedStreamWriter = preparationExecutor.submit(() -> {
+            AudioPacketStreamWriter streamWriter = createStreamWriter(audioFile);
+            streamWriter.preload(PRELOADED_AUDIO_SECONDS);
+            return streamWriter;
+        });
+    }
+
+    /**
+     * @return lo streaming preparato per il brano dato, o null se non è stato preparato
+     */
+    private AudioPacketStreamWriter takePreparedStreamWriter(final long musicId) {
+        Future<AudioPacketStreamWriter> preparation = preparedStreamWriter;
+        if (preparation == null) {
+            return null;
+        }
+        if (preparedMusicId != musicId) {
+            // Non si attende la preparazione di un brano diverso
+            discardPreparedStreamWriter();
+            return null;
+        }
+        preparedStreamWriter = null;
+        preparedMusicId = AudioFile.NO_MUSIC_ID;
+        try {
+            return preparation.get();
+        } catch (ExecutionException e) {
+            System.err.println("Could not prepare audio streaming: " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Rilascia lo streaming preparato, se non è stato usato
+     */
+    private void discardPreparedStreamWriter() {
+        final Future<AudioPacketStreamWriter> preparation = preparedStreamWriter;
+        preparedStreamWriter = null;
+        preparedMusicId = AudioFile.NO_MUSIC_ID;
+        if (preparation != null) {
+            // Eseguito dopo la preparazione, dallo stesso thread
+            preparationExecutor.execute(() -> {
+                try {
+                    preparation.get().discard();
+                } catch (ExecutionException | InterruptedException e) {
+                    // Nulla da rilasciare
+                }
+            });
         }
     }
 
+    private AudioPacketStreamWriter createStreamWriter(final ClientAudioFile audioFile)
+            throws IOException, UnsupportedAudioFileException {
+        return new AudioPacketStreamWriter(
+                audioFile,
+                getStreamingParameters(audioFile),
+                getPacketDispatcher(),
+                dataPlane.getMulticastGroupAddress(),
+                dataPlane.getMulticastGroupPort(),
+                dataPlane.getGroupClock(),
+                playToFirstDataStatistics
+        );
+    }
+
+    /**
+     * Restituisce i parametri di streaming di un brano, calcolandoli solo se non
+     * sono già presenti nella cache.
+     */
+    private StreamingParameters getStreamingParameters(final ClientAudioFile audioFile)
+            throws IOException, UnsupportedAudioFileException {
+        StreamingParameters parameters;
+        synchronized (streamingParametersCache) {
+            parameters = streamingParametersCache.get(audioFile.getMusicId());
+        }
+        if (parameters == null) {
+            parameters = StreamingParameters.forAudioFile(audioFile);
+            synchronized (streamingParametersCache) {
+                streamingParametersCache.put(audioFile.getMusicId(), parameters);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return statistiche del ritardo, in millisecondi, tra la ricezione di un
+     * pacchetto play e l'invio del primo pacchetto audio
+     */
+    public final RunningStatistics getPlayToFirstDataStatistics() {
+        return playToFirstDataStatistics;
+    }
+
     /**
      * @return The number of available audio files
      */
@@ -343,7 +1072,7 @@ public class Client implements Runnable {
      */
     public final void start() throws IOException {
         // Se non era già connesso, tenta di nuovo di connettersi
-        if (!connect()) {
+        if (!connect(false)) {
             // Se fallisce significa che qualcosa non va con il server che gira
             // su questa
             // stessa macchina, ed esce. In teoria il client potrebbe comunque
@@ -354,10 +1083,6 @@ public class Client implements Runnable {
             alive = false;
             return;
         }
-        if (packetDispatcher == null) {
-            packetDispatcher = new PacketDispatcher(multicastGroupAddress, multicastGroupPort, multicastSocket);
-        }
-
         // Tenta di connettersi con socket tcp al server
         System.out.printf(
                 "Trying to connect to server at %s:%d",
@@ -365,25 +1090,61 @@ public class Client implements Runnable {
                 (int) serverPort
         );
         System.out.println();
-        serverSocket = new Socket(serverAddress, serverPort);
-        serverStream = new DataOutputStream(serverSocket.getOutputStream());
+        if (serverSocket == null) {
+            serverSocket = dataPlane.getTransport().connect(new InetSocketAddress(serverAddress, serverPort), 0);
+        }
+        serverSocket.setSoTimeout(Heartbeat.getTimeoutMilliseconds());
+        serverStream = new DataOutputStream(new BufferedOutputStream(serverSocket.getOutputStream(), SERVER_STREAM_BUFFER_SIZE));
+        serverInputStream = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream(), SERVER_STREAM_BUFFER_SIZE));
+        synchronizeCatalog();
+        announceCapabilities();
+        dataPlane.getGroupClock().reset();
+        for (int i = 0; i < CLOCK_SAMPLES_AT_CONNECTION; i++) {
+            requestTime();
+        }
 
         runningThread = new Thread(this);
 
-        DirectoryScanner dirScanner = new DirectoryScanner(this, new File(audioPath));
+        catalogIndex = CatalogIndex.open(new File(audioPath), stateDirectory);
+        DirectoryScanner dirScanner = new DirectoryScanner(this, new File(audioPath), catalogIndex);
 
-        Thread dirScannerThread = new Thread(dirScanner);
-        dirScannerThread.setPriority(Thread.MIN_PRIORITY);
+        directoryWatcher = new DirectoryWatcher(this, new File(audioPath), dirScanner.getAudioFileInspector());
 
-        clientPlaylistStreamingManager = new ClientPlaylistStreamingManager(getPacketDispatcher());
+        Thread dirScannerThread = new Thread(() -> {
+            shareCachedAudioFiles();
+            dirScanner.run();
+            if (alive) {
+                directoryWatcher.start();
+            }
+        });
+        dirScannerThread.setPriority(Thread.MIN_PRIORITY);
 
         runningThread.start();
 
-        packetDispatcher.start();
-
         dirScannerThread.start();
     }
 
+    /**
+     * Rende disponibili al gruppo i brani presenti nella cache dei brani ricevuti, prima della
+     * scansione di {@link #audioPath}, così che non vengano ritirati al suo termine
+     */
+    private void shareCachedAudioFiles() {
+        StreamCache streamCache = dataPlane.getStreamCache();
+        if (streamCache == null) {
+            return;
+        }
+        streamCache.setListener(streamCacheListener);
+        for (ClientAudioFile audioFile : streamCache.getAudioFiles()) {
+            if (putAudioFile(audioFile)) {
+                try {
+                    notifyNewAudioFile(audioFile);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    }
+
     public final void setConnected(boolean isConnected) {
         connected = isConnected;
     }
@@ -392,6 +1153,10 @@ public class Client implements Runnable {
         return connected;
     }
 
+    /**
+     * Chiude la connessione con il server. Il {@link DataPlane} resta attivo: il brano
+     * in riproduzione e quello in streaming proseguono fino alla fine.
+     */
     public final void stop() throws InterruptedException {
         if (alive && runningThread != null && runningThread.isAlive()) {
             runningThread.join();
@@ -400,27 +1165,29 @@ public class Client implements Runnable {
         if (connector != null && connector.isAlive()) {
             connector.join();
         }
-        if (clientPlaylistStreamingManager != null) {
-            clientPlaylistStreamingManager.stop();
+        discardPreparedStreamWriter();
+        preparationExecutor.shutdown();
+        if (dataPlane.getStreamCache() != null) {
+            dataPlane.getStreamCache().setListener(null);
         }
-        if (audioPacketStreamWriter != null) {
-            audioPacketStreamWriter.stopThread();
+        if (directoryWatcher != null) {
+            directoryWatcher.stop();
         }
-        if (packetDispatcher != null) {
-            packetDispatcher.stopNow();
+        if (catalogIndex != null) {
+            catalogIndex.close();
         }
     }
 
-    public final void setPacketDispatcher(final PacketDispatcher packetDispatcher) {
-        this.packetDispatcher = packetDispatcher;
+    public final Transport getTransport() {
+        return dataPlane.getTransport();
     }
 
     public final PacketDispatcher getPacketDispatcher() {
-        return packetDispatcher;
+        return dataPlane.getPacketDispatcher();
     }
 
     public final ClientPlaylistStreamingManager getPlaylistStreamingManager() {
-        return clientPlaylistStreamingManager;
+        return dataPlane.getPlaylistStreamingManager();
     }
 
     public final Thread getRunningThread() {
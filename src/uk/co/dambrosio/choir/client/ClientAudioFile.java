@@ -5,6 +5,9 @@ package uk.co.dambrosio.choir.client;
 
 import java.io.File;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
 import uk.co.dambrosio.choir.common.AudioFile;
 
 /**
@@ -15,27 +18,20 @@ import uk.co.dambrosio.choir.common.AudioFile;
 public class ClientAudioFile extends AudioFile {
     private File file = null;
 
-    public ClientAudioFile(final File audioFile) {
-        super();
-        setFile(audioFile);
-        setMusicId((char) hashCode());
-        setMusicTitle(getFile().getName());
-    }
+    /**
+     * Length of the audio data in frames, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    private long frameLength = AudioSystem.NOT_SPECIFIED;
 
     /**
-     * Generates the hash code for the audio file.
-     * If a {@link #file} is set in this instance, the hashcode will be the file hashcode,
-     * otherwise the hash code will be its {@link #musicId},
+     * @param audioFile the file
+     * @param musicId   the id of the file content, see {@link ContentHash}
      */
-    public final int hashCode() {
-        int result;
-        if (getFile() != null) {
-            result = getFile().hashCode();
-            result = (result >> 16) + (result & 0xffff);
-        } else {
-            return super.hashCode();
-        }
-        return result & 0xffff;
+    public ClientAudioFile(final File audioFile, final long musicId) {
+        super();
+        setFile(audioFile);
+        setMusicId(musicId);
+        setMusicTitle(getFile().getName());
     }
 
     public File getFile() {
@@ -45,4 +41,24 @@ public class ClientAudioFile extends AudioFile {
     public void setFile(File file) {
         this.file = file;
     }
+
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    public void setFrameLength(long frameLength) {
+        this.frameLength = frameLength;
+    }
+
+    /**
+     * @return the duration of the audio file in microseconds, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    @Override
+    public long getDurationMicroseconds() {
+        if (audioFormat == null || frameLength == AudioSystem.NOT_SPECIFIED
+                || audioFormat.getFrameRate() == AudioSystem.NOT_SPECIFIED) {
+            return AudioSystem.NOT_SPECIFIED;
+        }
+        return (long) (frameLength * 1000000.0d / audioFormat.getFrameRate());
+    }
 }
@@ -4,13 +4,15 @@
 package uk.co.dambrosio.choir.client;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import uk.co.dambrosio.choir.common.PacketDispatcher;
+import uk.co.dambrosio.choir.common.RunningStatistics;
 import uk.co.dambrosio.choir.common.AudioBeginPacketListener;
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketBegin;
 
 /**
@@ -25,29 +27,52 @@ import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketBegin;
 public class ClientPlaylistStreamingManager implements AudioBeginPacketListener {
     private PacketDispatcher packetDispatcher;
 
-    private ExecutorService audioPlayerExecutors;
+    /**
+     * Timeline del gruppo, su cui sono allineate le riproduzioni
+     */
+    private final GroupClock groupClock;
+
+    /**
+     * Scarto, in millisecondi, tra la posizione riprodotta e quella prevista dalla timeline
+     * del gruppo, misurato durante la riproduzione
+     */
+    private final RunningStatistics playoutSkewStatistics = new RunningStatistics();
 
-    private final ConcurrentLinkedQueue<Integer> playlist;
+    /**
+     * Correzione della deriva della scheda audio stimata nelle riproduzioni precedenti,
+     * da cui parte la riproduzione successiva
+     */
+    private volatile double driftCorrection = 0d;
 
     /**
-     * Brani disponibili.
+     * Linee audio mantenute aperte tra un brano e il successivo
      */
-    private ConcurrentHashMap<Integer, AudioPlayer> players;
+    private final SourceDataLineManager lineManager = new SourceDataLineManager();
+
+    private ExecutorService audioPlayerExecutors;
+
+    /**
+     * Riproduttori dei brani in riproduzione o in attesa, nell'ordine di arrivo
+     */
+    private final LinkedHashMap<Long, AudioPlayer> players = new LinkedHashMap<>();
 
     /**
      * Costruttore.
      *
      * @param packetDispatcher Istanza del gestore del gruppo multicast
+     * @param groupClock       Timeline del gruppo
      * @throws IOException
      */
-    public ClientPlaylistStreamingManager(final PacketDispatcher packetDispatcher)
+    public ClientPlaylistStreamingManager(final PacketDispatcher packetDispatcher, final GroupClock groupClock)
             throws IOException {
         super();
         this.packetDispatcher = packetDispatcher;
+        this.groupClock = groupClock;
         this.packetDispatcher.registerListener(this);
-        players = new ConcurrentHashMap<>();
         audioPlayerExecutors = Executors.newFixedThreadPool(1);
-        playlist = new ConcurrentLinkedQueue<>();
+        if (AudioSinks.isLine()) {
+            lineManager.warmUp();
+        }
     }
 
     /**
@@ -65,20 +90,56 @@ public class ClientPlaylistStreamingManager implements AudioBeginPacketListener
     @Override
     public final void packetArrived(final PacketBegin packet) {
         AudioPlayer player;
-        Integer musicId;
         try {
-            synchronized (playlist) {
-                musicId = (int) packet.musicId;
+            synchronized (players) {
                 player = new AudioPlayer(packet.musicId, packet.musicTitle, this);
-                playlist.add(musicId);
-                players.put(musicId, player);
-                audioPlayerExecutors.execute(player);
+                players.remove(packet.musicId);
+                players.put(packet.musicId, player);
             }
+            audioPlayerExecutors.execute(player);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    public final SourceDataLineManager getLineManager() {
+        return lineManager;
+    }
+
+    public final GroupClock getGroupClock() {
+        return groupClock;
+    }
+
+    /**
+     * @return statistiche dello scarto, in millisecondi, tra la posizione riprodotta e quella
+     * prevista dalla timeline del gruppo
+     */
+    public final RunningStatistics getPlayoutSkewStatistics() {
+        return playoutSkewStatistics;
+    }
+
+    public final double getDriftCorrection() {
+        return driftCorrection;
+    }
+
+    public final void setDriftCorrection(final double driftCorrection) {
+        this.driftCorrection = driftCorrection;
+    }
+
+    /**
+     * @return id dell'ultimo brano di cui è iniziata la riproduzione, se non è ancora
+     * terminata, o {@link AudioFile#NO_MUSIC_ID}
+     */
+    public final long getLastPlayingMusicId() {
+        long musicId = AudioFile.NO_MUSIC_ID;
+        synchronized (players) {
+            for (Long playingMusicId : players.keySet()) {
+                musicId = playingMusicId;
+            }
+        }
+        return musicId;
+    }
+
     /**
      * Termina gentilmente l'esecuzione, evitando di gestire nuove richieste di
      * riproduzione, ma completando l'eventuale riproduzione in corso.
@@ -86,59 +147,45 @@ public class ClientPlaylistStreamingManager implements AudioBeginPacketListener
     public final void stop() {
         packetDispatcher.unregisterListener(this);
         audioPlayerExecutors.shutdown();
+        lineManager.close();
     }
 
     /**
-     * Interrompe la riproduzione di un brano.
+     * Interrompe la riproduzione di un brano, senza attenderne la fine.
+     *
+     * @return future completato al termine del riproduttore del brano, o subito se il
+     * brano non è in riproduzione
      */
-    public final void stop(char musicId) {
-        Integer plid = (int) musicId;
-        AudioPlayer pl;
-        synchronized (playlist) {
-            while (playlist.contains(plid)) {
-                pl = players.get(plid);
-                try {
-                    pl.stop();
-                    playlist.wait(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    break;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    public final CompletableFuture<Void> stop(final long musicId) {
+        AudioPlayer player;
+        synchronized (players) {
+            player = players.get(musicId);
         }
+        return player == null ? CompletableFuture.completedFuture(null) : player.stop();
     }
 
     /**
-     * Attende che sia terminata la riproduzione di un brano.
+     * @param musicId id del brano di cui attendere la fine
+     * @return future completato al termine della riproduzione del brano, o già completato
+     * se il brano non è in riproduzione
      */
-    public final void waitForEndOf(final char syncMusicId) {
-        Integer musicId = (int) syncMusicId;
-        synchronized (playlist) {
-            while (playlist.contains(musicId)) {
-                try {
-                    playlist.wait();
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
+    public final CompletableFuture<Void> endOf(final long musicId) {
+        AudioPlayer player;
+        synchronized (players) {
+            player = players.get(musicId);
         }
+        return player == null ? CompletableFuture.completedFuture(null) : player.getFinished();
     }
 
     /**
      * Rimuove un riproduttore di un brano musicale aggiunto alla lista dei brani
-     * da riprodurre. Il metodo sblocca eventuali thread in attesa sul metodo
-     * {@link #waitForEndOf(char)}
+     * da riprodurre.
      *
-     * @param pl Task di riproduzione di cui attendere la fine
+     * @param pl Riproduttore terminato
      */
     public final void notifyEndOfAudioPlayer(final AudioPlayer pl) {
-        Integer plid = (int) pl.getCurrentlyPlayingMusicId();
-        synchronized (playlist) {
-            players.remove(plid);
-            playlist.remove(plid);
-            playlist.notifyAll();
+        synchronized (players) {
+            players.remove(pl.getCurrentlyPlayingMusicId(), pl);
         }
     }
 }
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+
+/**
+ * Computes the 64 bits id of an audio file from its content.
+ * Only the beginning, the middle and the end of the file are read, together with its
+ * length: this is enough to tell apart different recordings, and costs the same for a
+ * short clip and for a long album.
+ * Copies of the same file get the same id wherever they are, on every peer.
+ *
+ * @author Giulio D'Ambrosio
+ */
+final class ContentHash {
+    /**
+     * Size of each of the sampled regions of the file
+     */
+    static final int SAMPLE_SIZE_BYTES = 64 * 1024;
+
+    private static final long PRIME_1 = 0x9e3779b185ebca87L;
+
+    private static final long PRIME_2 = 0xc2b2ae3d27d4eb4fL;
+
+    private static final long PRIME_3 = 0x165667b19e3779f9L;
+
+    private ContentHash() {
+    }
+
+    /**
+     * @return the id of the file, never {@link AudioFile#NO_MUSIC_ID}
+     * @throws IOException if the file could not be read
+     */
+    static long of(final File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long hash;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            hash = size * PRIME_3;
+            if (size <= 3L * SAMPLE_SIZE_BYTES) {
+                for (long position = 0; position < size; position += SAMPLE_SIZE_BYTES) {
+                    hash = update(hash, read(channel, buffer, position));
+                }
+            } else {
+                hash = update(hash, read(channel, buffer, 0L));
+                hash = update(hash, read(channel, buffer, (size - SAMPLE_SIZE_BYTES) / 2));
+                hash = update(hash, read(channel, buffer, size - SAMPLE_SIZE_BYTES));
+            }
+        }
+        // splitmix64 finalizer
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash = hash ^ (hash >>> 31);
+        return hash == AudioFile.NO_MUSIC_ID ? 0L : hash;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final ByteBuffer buffer, final long position)
+            throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            // Reads until the buffer is full or the file ends
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long update(long hash, final ByteBuffer buffer) {
+        while (buffer.remaining() >= 8) {
+            hash ^= Long.rotateLeft(buffer.getLong() * PRIME_2, 31) * PRIME_1;
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_3;
+        }
+        while (buffer.hasRemaining()) {
+            hash ^= (buffer.get() & 0xffL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 11) * PRIME_2;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import uk.co.dambrosio.choir.common.PacketDispatcher;
+import uk.co.dambrosio.choir.common.SocketTransport;
+import uk.co.dambrosio.choir.common.Transport;
+
+/**
+ * The part of a peer that moves audio: the multicast socket with its {@link PacketDispatcher},
+ * the {@link ClientPlaylistStreamingManager} playing what is received, and the
+ * {@link AudioPacketStreamWriter} streaming a local audio file to the group, and the optional
+ * {@link StreamCache} of the received audio files.
+ * <p>
+ * The peer reaches the network through its {@link Transport}, which the {@link Client} and the
+ * server of this peer use for the control connections as well.
+ * <p>
+ * An instance outlives the {@link Client} instances, which only hold the control connection with
+ * the server: when the server goes away and the client reconnects or a new server is elected,
+ * the track being played and the one being streamed go on to their end.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class DataPlane {
+    private final Transport transport;
+
+    private final InetAddress multicastGroupAddress;
+
+    private final char multicastGroupPort;
+
+    private final PacketDispatcher packetDispatcher;
+
+    /**
+     * Timeline of the group, kept synchronized with the server by the current {@link Client}
+     */
+    private final GroupClock groupClock = new GroupClock();
+
+    private final ClientPlaylistStreamingManager playlistStreamingManager;
+
+    /**
+     * Cache of the received audio files, or null if it is not enabled
+     */
+    private final StreamCache streamCache;
+
+    /**
+     * The stream writer started last, or null
+     */
+    private AudioPacketStreamWriter streamWriter = null;
+
+    public DataPlane(final String multicastGroupAddress, final char multicastGroupPort) throws IOException {
+        this(new SocketTransport(), multicastGroupAddress, multicastGroupPort);
+    }
+
+    public DataPlane(final Transport transport, final String multicastGroupAddress,
+                     final char multicastGroupPort) throws IOException {
+        super();
+        this.transport = transport;
+        this.multicastGroupAddress = InetAddress.getByName(multicastGroupAddress);
+        this.multicastGroupPort = multicastGroupPort;
+        System.err.printf(
+                "Joining multicast group: %s:%d",
+                this.multicastGroupAddress,
+                (int) multicastGroupPort
+        );
+        System.err.println();
+        packetDispatcher = new PacketDispatcher(transport, this.multicastGroupAddress, multicastGroupPort);
+        playlistStreamingManager = new ClientPlaylistStreamingManager(packetDispatcher, groupClock);
+        streamCache = StreamCache.open(packetDispatcher);
+        packetDispatcher.start();
+    }
+
+    public final Transport getTransport() {
+        return transport;
+    }
+
+    public final InetAddress getMulticastGroupAddress() {
+        return multicastGroupAddress;
+    }
+
+    public final char getMulticastGroupPort() {
+        return multicastGroupPort;
+    }
+
+    public final PacketDispatcher getPacketDispatcher() {
+        return packetDispatcher;
+    }
+
+    public final GroupClock getGroupClock() {
+        return groupClock;
+    }
+
+    public final ClientPlaylistStreamingManager getPlaylistStreamingManager() {
+        return playlistStreamingManager;
+    }
+
+    /**
+     * @return the cache of the received audio files, or null if it is not enabled
+     */
+    public final StreamCache getStreamCache() {
+        return streamCache;
+    }
+
+    /**
+     * Starts streaming an audio file, interrupting the stream in progress if any
+     *
+     * @param requestedNanos time the streaming has been requested, as given by {@link System#nanoTime()}
+     */
+    public final synchronized void startStreamWriter(final AudioPacketStreamWriter writer, final long requestedNanos) {
+        if (streamWriter != null && streamWriter.isAlive()) {
+            streamWriter.stopThread();
+        }
+        streamWriter = writer;
+        streamWriter.startThread(requestedNanos);
+    }
+
+    /**
+     * Stops streaming an audio file that has been handed over to another peer
+     */
+    public final synchronized void handOverStreamWriter(final long musicId) {
+        if (streamWriter != null && streamWriter.isAlive() && streamWriter.getAudioFile().getMusicId() == musicId) {
+            System.err.println("Streaming handed over to another peer");
+            streamWriter.handOver();
+        }
+    }
+
+    /**
+     * @return true if an audio file of this peer is being streamed
+     */
+    public final synchronized boolean isStreaming() {
+        return streamWriter != null && streamWriter.isAlive();
+    }
+
+    /**
+     * @return true if the given audio file of this peer is being streamed
+     */
+    public final synchronized boolean isStreaming(final long musicId) {
+        return isStreaming() && streamWriter.getAudioFile().getMusicId() == musicId;
+    }
+
+    /**
+     * Stops playing and streaming, and closes the multicast socket
+     */
+    public final void stop() throws InterruptedException {
+        playlistStreamingManager.stop();
+        if (streamCache != null) {
+            streamCache.close();
+        }
+        synchronized (this) {
+            if (streamWriter != null && streamWriter.isAlive()) {
+                streamWriter.stopThread();
+            }
+        }
+        packetDispatcher.stopNow();
+    }
+}
@@ -5,168 +5,212 @@ package uk.co.dambrosio.choir.client;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-
 /**
- * Scans a directory contents and sends a music packet for each audio file
- * found.
+ * Scans a directory contents and announces to the server, in batches, each audio
+ * file found.
  * The audio files are also added to the local client collection.
+ * <p>
+ * The directory tree is walked by a fork/join pool: every directory is a task that forks
+ * one task for each subdirectory and one for each block of files.
+ * The parallelism depends on the storage: on network file systems most of the time is spent
+ * waiting for the server, so more threads are used.
  *
  * @author Giulio D'Ambrosio
  */
 public class DirectoryScanner implements Runnable {
-    private static final int AUDIO_FILE_SENDER_THREAD_POOL_SIZE = 4;
-
-    private static final int DIRECTORY_SCANNER_THREAD_POOL_SIZE = 2;
-
     /**
-     * This is a counter semaphor.
-     * It gets incremented every time a new task is added and decremented
-     * every time a task has finished.
-     * A notification on this instance is sent when the count reaches zero.
+     * Maximum number of files inspected by a single task
      */
-    private final AtomicInteger remaining = new AtomicInteger(0);
+    private static final int FILES_PER_TASK = 64;
+
+    private static final int NETWORK_STORAGE_PARALLELISM = 16;
 
-    private File scanningPath;
+    private static final List<String> NETWORK_FILE_STORE_TYPES = Arrays.asList(
+            "nfs", "nfs4", "cifs", "smbfs", "smb2", "afpfs", "fuse.sshfs", "9p", "webdav", "davfs"
+    );
 
-    private Client mainClient;
+    private final File scanningPath;
 
-    private ExecutorService senderThreadPool;
+    private final Client mainClient;
 
-    private ExecutorService scannerThreadPool;
+    private final CatalogIndex catalogIndex;
+
+    private final AudioFileInspector audioFileInspector;
+
+    /**
+     * Number of regular files visited during the scan
+     */
+    private final AtomicInteger visitedFiles = new AtomicInteger(0);
 
-    public DirectoryScanner(final Client mainClient, final File scanningPath) {
+    public DirectoryScanner(final Client mainClient, final File scanningPath, final CatalogIndex catalogIndex) {
         super();
         this.mainClient = mainClient;
         this.scanningPath = scanningPath;
-        senderThreadPool = Executors.newFixedThreadPool(AUDIO_FILE_SENDER_THREAD_POOL_SIZE);
-        scannerThreadPool = Executors.newFixedThreadPool(DIRECTORY_SCANNER_THREAD_POOL_SIZE);
+        this.catalogIndex = catalogIndex;
+        this.audioFileInspector = new AudioFileInspector(catalogIndex);
+    }
+
+    public final AudioFileInspector getAudioFileInspector() {
+        return audioFileInspector;
+    }
+
+    /**
+     * @return true if the path is on a network file system
+     */
+    static boolean isOnNetworkFileStore(final Path path) {
+        try {
+            return NETWORK_FILE_STORE_TYPES.contains(Files.getFileStore(path).type().toLowerCase());
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
-     * Launches the
+     * Scans the whole directory tree, then announces the audio files found and withdraws
+     * the ones that have been announced in the past but don't exist anymore
      */
     @Override
     public final void run() {
-        remaining.set(1);
-        scanDir(scanningPath);
+        Path root = scanningPath.toPath();
+        int parallelism = isOnNetworkFileStore(root)
+                ? NETWORK_STORAGE_PARALLELISM
+                : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool scannerPool = new ForkJoinPool(parallelism);
+        long startNanos = System.nanoTime();
+        try {
+            scannerPool.invoke(new ScanDirectory(root));
+        } finally {
+            scannerPool.shutdownNow();
+        }
+        long elapsedMilliseconds = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
 
+        catalogIndex.compact();
         try {
-            synchronized (remaining) {
-                remaining.wait();
-            }
-        } catch (InterruptedException e) {
+            mainClient.flushAudioFileAnnouncements();
+            mainClient.withdrawMissingAudioFiles();
+        } catch (IOException e) {
             e.printStackTrace();
         }
-
-        scannerThreadPool.shutdownNow();
-        senderThreadPool.shutdownNow();
         System.out.printf(
                 "Completed scanning directory %s for audio files: %d audio files found and notified to the server",
                 scanningPath,
                 mainClient.getNumAudioFiles()
         );
         System.out.println();
+        System.out.printf(
+                "Scanned %d files in %d ms with %d threads (%.1f files/s)",
+                visitedFiles.get(),
+                elapsedMilliseconds,
+                parallelism,
+                visitedFiles.get() * 1000.0d / elapsedMilliseconds
+        );
+        System.out.println();
+        System.out.printf(
+                "Catalog index: %d files admitted without being opened, %d files probed",
+                audioFileInspector.getIndexedFiles(),
+                audioFileInspector.getProbedFiles()
+        );
+        System.out.println();
     }
 
     /**
-     * Recursively scans a directory structure using one pool of threads
-     * to read the directories and one pool of threads to send the found audio
-     * files information to the server
+     * Lists a directory, forking a task for each subdirectory and for each block of files.
+     * Returns the number of audio files added to the client collection.
      */
-    private void scanDir(final File path) {
-        /**
-         * Analizza un file, e se si tratta di file audio lo inserisce nella
-         * collezione del client, e ne comunica l'id al server.
-         */
-        class DirectoryEntry implements Runnable {
-            private File entryPath;
-
-            public DirectoryEntry(final File path) {
-                super();
-                entryPath = path;
-                remaining.incrementAndGet();
-            }
-
-            private boolean isAudioFile() {
-                AudioInputStream ais;
-
-                try {
-                    ais = AudioSystem.getAudioInputStream(entryPath);
-                } catch (UnsupportedAudioFileException e1) {
-                    ais = null;
-                    System.err.printf(
-                            "File %s is not an audio file or has an unsupported format",
-                            entryPath
-                    );
-                    System.err.println();
-                } catch (IOException e1) {
-                    ais = null;
-                    System.err.printf(
-                            "File %s can't be opened",
-                            entryPath
-                    );
-                    System.err.println();
-                }
+    private class ScanDirectory extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 3920472265198335410L;
 
-                return ais != null;
-            }
+        private final Path directory;
 
-            @Override
-            public void run() {
-                ClientAudioFile audioFile;
+        ScanDirectory(final Path directory) {
+            super();
+            this.directory = directory;
+        }
 
-                if (!isAudioFile()) {
-                    if (remaining.decrementAndGet() == 0) {
-                        synchronized (remaining) {
-                            remaining.notify();
-                        }
-                    }
-                    return;
-                }
-                audioFile = new ClientAudioFile(entryPath);
-                if (mainClient.putAudioFile(audioFile)) {
+        @Override
+        protected Integer compute() {
+            ArrayList<RecursiveTask<Integer>> subtasks = new ArrayList<>();
+            ArrayList<File> files = new ArrayList<>(FILES_PER_TASK);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
                     try {
-                        mainClient.notifyNewAudioFile(audioFile);
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
                     } catch (IOException e) {
-                        e.printStackTrace();
-                        mainClient.removeAudioFile(audioFile);
+                        continue;
                     }
-                }
-                System.err.printf(
-                        "Server was notified about audio file: '%s'",
-                        audioFile.getMusicTitle()
-                );
-                System.err.println();
-                if (remaining.decrementAndGet() == 0) {
-                    synchronized (remaining) {
-                        remaining.notify();
+                    if (attributes.isDirectory()) {
+                        // Linked directories are not followed, as they may create cycles
+                        if (!Files.isSymbolicLink(entry)) {
+                            subtasks.add(new ScanDirectory(entry));
+                            subtasks.get(subtasks.size() - 1).fork();
+                        }
+                    } else if (attributes.isRegularFile()) {
+                        visitedFiles.incrementAndGet();
+                        if (AudioFileInspector.hasAudioFileExtension(entry.toFile())) {
+                            files.add(entry.toFile());
+                        }
+                        if (files.size() == FILES_PER_TASK) {
+                            subtasks.add(new InspectFiles(files));
+                            subtasks.get(subtasks.size() - 1).fork();
+                            files = new ArrayList<>(FILES_PER_TASK);
+                        }
                     }
                 }
+            } catch (IOException e) {
+                System.err.printf("Could not scan directory %s: %s", directory, e.getMessage());
+                System.err.println();
             }
+            int result = new InspectFiles(files).compute();
+            for (RecursiveTask<Integer> subtask : subtasks) {
+                result += subtask.join();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Inspects a block of files, and adds to the client collection and announces to the
+     * server the ones that are audio files.
+     * Returns the number of audio files added.
+     */
+    private class InspectFiles extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = -5186419236950712043L;
+
+        private final List<File> files;
 
+        InspectFiles(final List<File> files) {
+            super();
+            this.files = files;
         }
 
-        if (path != null) {
-            for (final File entry : path.listFiles()) {
-                if (entry.isDirectory()) {
-                    remaining.incrementAndGet();
-                    scannerThreadPool.submit(() -> scanDir(entry));
-                } else {
-                    senderThreadPool.submit(new DirectoryEntry(entry));
+        @Override
+        protected Integer compute() {
+            int result = 0;
+            for (File file : files) {
+                ClientAudioFile audioFile = audioFileInspector.inspect(file);
+                if (audioFile != null && mainClient.putAudioFile(audioFile)) {
+                    result++;
+                    try {
+                        mainClient.notifyNewAudioFile(audioFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
-        }
-        if (remaining.decrementAndGet() == 0) {
-            synchronized (remaining) {
-                remaining.notify();
-            }
+            return result;
         }
     }
 }
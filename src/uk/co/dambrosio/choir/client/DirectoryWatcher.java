@@ -0,0 +1,397 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the catalog of a client up to date with the content of its audio directory.
+ * Changes are detected through a {@link WatchService} or, on network file systems (where
+ * change notifications are not reliable) and where a watch service is not available, by
+ * periodically comparing snapshots of the directory tree.
+ * Bursts of changes are debounced, then the new audio files are announced to the server and
+ * the deleted ones withdrawn.
+ * <p>
+ * The system property <code>choir.watch</code> selects the mode: <code>auto</code> (default),
+ * <code>poll</code> or <code>off</code>.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class DirectoryWatcher implements Runnable {
+    /**
+     * Changes are processed when no new change has been detected for this number of milliseconds
+     */
+    private static final int DEBOUNCE_INTERVAL_MILLISECONDS = 1000;
+
+    /**
+     * Changes are processed at least once every this number of milliseconds, even during a long burst
+     */
+    private static final int MAXIMUM_DEBOUNCE_DELAY_MILLISECONDS = 5000;
+
+    private static final int POLLING_INTERVAL_MILLISECONDS = 15 * 1000;
+
+    private final Client mainClient;
+
+    private final Path watchedPath;
+
+    private final AudioFileInspector audioFileInspector;
+
+    private final ScheduledExecutorService scheduler;
+
+    private WatchService watchService = null;
+
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+    /**
+     * Last snapshot of the directory tree: size and last modification time by path
+     */
+    private Map<Path, List<Long>> snapshot = null;
+
+    /**
+     * Paths changed since the last time changes were processed
+     */
+    private final Set<Path> changedPaths = new HashSet<>();
+
+    private long firstPendingChangeNanos = 0L;
+
+    private long lastChangeNanos = 0L;
+
+    private ScheduledFuture<?> pendingChangesProcessing = null;
+
+    private volatile boolean alive = true;
+
+    private Thread runningThread = null;
+
+    public DirectoryWatcher(final Client mainClient, final File watchedPath, final AudioFileInspector audioFileInspector) {
+        super();
+        this.mainClient = mainClient;
+        this.watchedPath = watchedPath.toPath();
+        this.audioFileInspector = audioFileInspector;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DirectoryWatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts watching the directory, using the mode selected by the <code>choir.watch</code> property
+     */
+    public final void start() {
+        String mode = System.getProperty("choir.watch", "auto");
+        if ("off".equals(mode)) {
+            return;
+        }
+        if ("auto".equals(mode) && !DirectoryScanner.isOnNetworkFileStore(watchedPath)) {
+            try {
+                watchService = watchedPath.getFileSystem().newWatchService();
+                registerDirectoryTree(watchedPath, false);
+                runningThread = new Thread(this, "DirectoryWatcher events");
+                runningThread.setDaemon(true);
+                runningThread.start();
+                System.out.printf("Watching %s for changes", watchedPath);
+                System.out.println();
+                return;
+            } catch (IOException e) {
+                System.err.printf(
+                        "Could not watch %s for changes (%s): polling it instead",
+                        watchedPath,
+                        e.getMessage()
+                );
+                System.err.println();
+                closeWatchService();
+            }
+        }
+        snapshot = takeSnapshot();
+        scheduler.scheduleWithFixedDelay(this::compareSnapshots,
+                POLLING_INTERVAL_MILLISECONDS, POLLING_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+        System.out.printf("Polling %s for changes every %d seconds", watchedPath, POLLING_INTERVAL_MILLISECONDS / 1000);
+        System.out.println();
+    }
+
+    public final void stop() {
+        alive = false;
+        scheduler.shutdownNow();
+        closeWatchService();
+    }
+
+    /**
+     * Waits for file system events and collects the changed paths
+     */
+    @Override
+    public final void run() {
+        while (alive) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            Path directory;
+            synchronized (watchedDirectories) {
+                directory = watchedDirectories.get(key);
+            }
+            if (directory == null) {
+                key.cancel();
+                continue;
+            }
+            ArrayList<Path> changed = new ArrayList<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Some events were lost: the whole tree has to be checked
+                    changed.addAll(listRegularFiles(directory));
+                    changed.addAll(getAudioFilePaths(directory));
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    try {
+                        registerDirectoryTree(path, true);
+                    } catch (IOException e) {
+                        System.err.printf("Could not watch %s for changes: %s", path, e.getMessage());
+                        System.err.println();
+                    }
+                    changed.addAll(listRegularFiles(path));
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    // The path may have been a directory
+                    changed.add(path);
+                    changed.addAll(getAudioFilePaths(path));
+                } else {
+                    changed.add(path);
+                }
+            }
+            if (!key.reset()) {
+                synchronized (watchedDirectories) {
+                    watchedDirectories.remove(key);
+                }
+            }
+            changesDetected(changed);
+        }
+    }
+
+    private void registerDirectoryTree(final Path root, final boolean ignoreErrors) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (watchedDirectories) {
+                    watchedDirectories.put(key, dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (ignoreErrors) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    private void changesDetected(final List<Path> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        synchronized (changedPaths) {
+            long now = System.nanoTime();
+            if (changedPaths.isEmpty()) {
+                firstPendingChangeNanos = now;
+            }
+            changedPaths.addAll(paths);
+            lastChangeNanos = now;
+            if (pendingChangesProcessing == null) {
+                pendingChangesProcessing = scheduler.schedule(this::debounceExpired,
+                        DEBOUNCE_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Processes the pending changes, unless new changes keep arriving: in that case waits
+     * for the burst to end, for at most {@link #MAXIMUM_DEBOUNCE_DELAY_MILLISECONDS}.
+     */
+    private void debounceExpired() {
+        ArrayList<Path> paths;
+        synchronized (changedPaths) {
+            long now = System.nanoTime();
+            long quietMilliseconds = TimeUnit.NANOSECONDS.toMillis(now - lastChangeNanos);
+            long pendingMilliseconds = TimeUnit.NANOSECONDS.toMillis(now - firstPendingChangeNanos);
+            if (quietMilliseconds < DEBOUNCE_INTERVAL_MILLISECONDS
+                    && pendingMilliseconds < MAXIMUM_DEBOUNCE_DELAY_MILLISECONDS) {
+                long delay = Math.min(DEBOUNCE_INTERVAL_MILLISECONDS - quietMilliseconds,
+                        MAXIMUM_DEBOUNCE_DELAY_MILLISECONDS - pendingMilliseconds);
+                pendingChangesProcessing = scheduler.schedule(this::debounceExpired, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+            paths = new ArrayList<>(changedPaths);
+            changedPaths.clear();
+            pendingChangesProcessing = null;
+        }
+        processChanges(paths);
+    }
+
+    /**
+     * Polling mode: compares the directory tree with the last snapshot
+     */
+    private void compareSnapshots() {
+        Map<Path, List<Long>> currentSnapshot = takeSnapshot();
+        ArrayList<Path> changed = new ArrayList<>();
+        for (Map.Entry<Path, List<Long>> entry : currentSnapshot.entrySet()) {
+            if (!entry.getValue().equals(snapshot.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (Path path : snapshot.keySet()) {
+            if (!currentSnapshot.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        snapshot = currentSnapshot;
+        processChanges(changed);
+    }
+
+    /**
+     * Announces the new audio files to the server, and withdraws the ones that don't exist anymore
+     */
+    private void processChanges(final List<Path> paths) {
+        ArrayList<Long> withdrawnMusicIds = new ArrayList<>();
+        int added = 0;
+        if (!alive || paths.isEmpty()) {
+            return;
+        }
+        for (Path path : paths) {
+            File file = path.toFile();
+            ClientAudioFile previousAudioFile = mainClient.getAudioFile(file);
+            ClientAudioFile audioFile = file.isFile() ? audioFileInspector.inspect(file) : null;
+            if (previousAudioFile != null
+                    && (audioFile == null || audioFile.getMusicId() != previousAudioFile.getMusicId())) {
+                mainClient.removeAudioFile(previousAudioFile);
+                withdrawnMusicIds.add(previousAudioFile.getMusicId());
+                previousAudioFile = null;
+            }
+            if (audioFile != null && previousAudioFile == null && mainClient.putAudioFile(audioFile)) {
+                try {
+                    mainClient.notifyNewAudioFile(audioFile);
+                    added++;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        try {
+            mainClient.withdrawAudioFiles(withdrawnMusicIds);
+            mainClient.flushAudioFileAnnouncements();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        audioFileInspector.flushIndex();
+        if (added > 0 || withdrawnMusicIds.size() > 0) {
+            System.out.printf(
+                    "Changes in %s: %d audio files added, %d removed",
+                    watchedPath,
+                    added,
+                    withdrawnMusicIds.size()
+            );
+            System.out.println();
+        }
+    }
+
+    private Map<Path, List<Long>> takeSnapshot() {
+        HashMap<Path, List<Long>> result = new HashMap<>();
+        try {
+            Files.walkFileTree(watchedPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        result.put(file, Arrays.asList(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.printf("Could not scan %s: %s", watchedPath, e.getMessage());
+            System.err.println();
+        }
+        return result;
+    }
+
+    /**
+     * @return the regular files under a directory
+     */
+    private List<Path> listRegularFiles(final Path directory) {
+        ArrayList<Path> result = new ArrayList<>();
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        result.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // The directory may have been deleted in the meantime
+        }
+        return result;
+    }
+
+    /**
+     * @return the paths of the shared audio files under a directory
+     */
+    private List<Path> getAudioFilePaths(final Path directory) {
+        ArrayList<Path> result = new ArrayList<>();
+        for (ClientAudioFile audioFile : mainClient.getAudioFilesUnder(directory.toFile())) {
+            result.add(audioFile.getFile().toPath());
+        }
+        return result;
+    }
+
+    private void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
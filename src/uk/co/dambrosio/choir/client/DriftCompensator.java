@@ -0,0 +1,255 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Keeps the playout on the group timeline despite the difference between the rate of the sound
+ * card and the rate of the clock the audio is streamed with.
+ * <p>
+ * The skew between the played position and the timeline is smoothed, and a proportional-integral
+ * controller turns it into a playback rate: the integral part is the estimate of the drift of
+ * the sound card, the proportional part brings the skew back to zero. The PCM frames are then
+ * resampled at that rate with linear interpolation, which changes the pitch by a few cents at
+ * most instead of skipping audio or inserting silence.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class DriftCompensator {
+    /**
+     * Largest deviation of the playback rate from the nominal one: 1000 ppm is below two cents
+     * of pitch, and well above the drift of a sound card crystal
+     */
+    private static final double MAXIMUM_RATE_DEVIATION = 1000e-6d;
+
+    /**
+     * Time in which the proportional part of the controller corrects a skew
+     */
+    private static final double PROPORTIONAL_SECONDS = 5d;
+
+    /**
+     * Time constant of the integral part of the controller, which estimates the drift
+     */
+    private static final double INTEGRAL_SECONDS = 30d;
+
+    /**
+     * Weight of a new skew sample in the smoothed skew: one second of blocks of 20 ms
+     */
+    private static final double SKEW_SMOOTHING = 1d / 50d;
+
+    private final int channels;
+
+    private final int frameSize;
+
+    private final int bytesPerSample;
+
+    private final boolean bigEndian;
+
+    private final boolean unsigned;
+
+    /**
+     * Last input frame of the previous block, interpolated with the first of the next one
+     */
+    private final int[] previousFrame;
+
+    private boolean hasPreviousFrame = false;
+
+    /**
+     * Position of the next output frame, in input frames from the previous frame
+     */
+    private double position = 1d;
+
+    private byte[] output = new byte[0];
+
+    private long inputFrames = 0L;
+
+    private long outputFrames = 0L;
+
+    private double smoothedSkewSeconds = 0d;
+
+    private boolean hasSkew = false;
+
+    private long lastSkewNanos = 0L;
+
+    /**
+     * Estimated correction of the rate that cancels the drift of the sound card: negative when
+     * the sound card is faster than the group timeline
+     */
+    private double drift;
+
+    /**
+     * Input frames consumed for each output frame
+     */
+    private double step = 1d;
+
+    private DriftCompensator(final AudioFormat format, final double drift) {
+        super();
+        this.channels = format.getChannels();
+        this.frameSize = format.getFrameSize();
+        this.bytesPerSample = format.getSampleSizeInBits() / 8;
+        this.bigEndian = format.isBigEndian();
+        this.unsigned = format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+        this.previousFrame = new int[channels];
+        this.drift = clamp(drift);
+        this.step = 1d + this.drift;
+    }
+
+    /**
+     * @param format format of the audio to play
+     * @param drift  correction of the drift estimated on the previous tracks
+     * @return a compensator for the audio format, or null if the format can't be resampled
+     */
+    public static DriftCompensator of(final AudioFormat format, final double drift) {
+        boolean pcm = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                || format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+        int sampleSize = format.getSampleSizeInBits();
+        if (!pcm || (sampleSize != 8 && sampleSize != 16) || format.getChannels() < 1
+                || format.getFrameSize() != format.getChannels() * sampleSize / 8) {
+            return null;
+        }
+        return new DriftCompensator(format, drift);
+    }
+
+    /**
+     * Adds a measure of the skew between the played position and the group timeline, and updates
+     * the playback rate
+     *
+     * @param skewNanos     played position minus expected position: positive when playing ahead
+     * @param measuredNanos time of the measure, as given by {@link System#nanoTime()}
+     */
+    public final void skewMeasured(final long skewNanos, final long measuredNanos) {
+        double skewSeconds = skewNanos / 1e9d;
+        if (!hasSkew) {
+            smoothedSkewSeconds = skewSeconds;
+            hasSkew = true;
+        } else {
+            smoothedSkewSeconds += (skewSeconds - smoothedSkewSeconds) * SKEW_SMOOTHING;
+            double elapsedSeconds = (measuredNanos - lastSkewNanos) / 1e9d;
+            drift = clamp(drift - smoothedSkewSeconds * elapsedSeconds / (INTEGRAL_SECONDS * INTEGRAL_SECONDS));
+        }
+        lastSkewNanos = measuredNanos;
+        // Playing ahead: fewer input frames for each output frame, to slow down
+        step = 1d + clamp(drift - smoothedSkewSeconds / PROPORTIONAL_SECONDS);
+    }
+
+    /**
+     * Forgets the smoothed skew, which has been invalidated by skipping audio or inserting
+     * silence. The estimate of the drift is kept.
+     */
+    public final void skewCorrected() {
+        hasSkew = false;
+        step = 1d + drift;
+    }
+
+    /**
+     * Resamples a block of audio frames at the current playback rate
+     *
+     * @param input  the frames
+     * @param offset offset of the first frame in input
+     * @param length length of the frames in bytes
+     * @return length in bytes of the resampled frames, which are in {@link #getOutput()}
+     */
+    public final int resample(final byte[] input, final int offset, final int length) {
+        int frames = length / frameSize;
+        if (frames == 0) {
+            return 0;
+        }
+        int maximumLength = ((int) (frames / (1d - MAXIMUM_RATE_DEVIATION)) + 2) * frameSize;
+        if (output.length < maximumLength) {
+            output = new byte[maximumLength];
+        }
+        if (!hasPreviousFrame) {
+            readFrame(input, offset, previousFrame);
+            hasPreviousFrame = true;
+            position = 1d;
+        }
+        // Input frame i of the block is at position i + 1: position 0 is the previous frame
+        int outputLength = 0;
+        while (position <= frames) {
+            int index = (int) position;
+            double fraction = position - index;
+            for (int channel = 0; channel < channels; channel++) {
+                int from = index == 0 ? previousFrame[channel]
+                        : readSample(input, offset + (index - 1) * frameSize, channel);
+                int value = from;
+                if (fraction > 0d && index < frames) {
+                    value = (int) Math.round(from + (readSample(input, offset + index * frameSize, channel) - from) * fraction);
+                }
+                writeSample(output, outputLength, channel, value);
+            }
+            outputLength += frameSize;
+            position += step;
+        }
+        readFrame(input, offset + (frames - 1) * frameSize, previousFrame);
+        position -= frames;
+        inputFrames += frames;
+        outputFrames += outputLength / frameSize;
+        return outputLength;
+    }
+
+    public final byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * @return frames written in addition to the input ones, negative if frames have been removed
+     */
+    public final long getInsertedFrames() {
+        return outputFrames - inputFrames;
+    }
+
+    /**
+     * @return the estimated correction of the drift of the sound card
+     */
+    public final double getDrift() {
+        return drift;
+    }
+
+    public String toString() {
+        return String.format(
+                "rate %+.1f ppm, drift %+.1f ppm, %+d frames inserted",
+                (step - 1d) * 1e6d,
+                drift * 1e6d,
+                getInsertedFrames()
+        );
+    }
+
+    private static double clamp(final double deviation) {
+        return Math.max(-MAXIMUM_RATE_DEVIATION, Math.min(MAXIMUM_RATE_DEVIATION, deviation));
+    }
+
+    private void readFrame(final byte[] input, final int frameOffset, final int[] samples) {
+        for (int channel = 0; channel < channels; channel++) {
+            samples[channel] = readSample(input, frameOffset, channel);
+        }
+    }
+
+    private int readSample(final byte[] input, final int frameOffset, final int channel) {
+        int offset = frameOffset + channel * bytesPerSample;
+        if (bytesPerSample == 1) {
+            return unsigned ? (input[offset] & 0xff) - 0x80 : input[offset];
+        }
+        int value = bigEndian
+                ? (input[offset] << 8) | (input[offset + 1] & 0xff)
+                : (input[offset + 1] << 8) | (input[offset] & 0xff);
+        return unsigned ? (value & 0xffff) - 0x8000 : value;
+    }
+
+    private void writeSample(final byte[] output, final int frameOffset, final int channel, final int value) {
+        int offset = frameOffset + channel * bytesPerSample;
+        if (bytesPerSample == 1) {
+            output[offset] = (byte) (unsigned ? value + 0x80 : value);
+            return;
+        }
+        int sample = unsigned ? value + 0x8000 : value;
+        if (bigEndian) {
+            output[offset] = (byte) (sample >> 8);
+            output[offset + 1] = (byte) sample;
+        } else {
+            output[offset] = (byte) sample;
+            output[offset + 1] = (byte) (sample >> 8);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes the audio of a track to a WAV file in the directory of the choir.sink.dir system property,
+ * at the pace of a {@link NullAudioSink}. Each playback gets a new file. Formats that can't be stored in a WAV file are written
+ * as raw data.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class FileAudioSink extends NullAudioSink {
+    private static final int WAV_HEADER_LENGTH = 44;
+
+    private final File file;
+
+    private final RandomAccessFile output;
+
+    /**
+     * True if the audio is PCM, written to a WAV file
+     */
+    private final boolean wav;
+
+    private final int bytesPerSample;
+
+    private byte[] converted = new byte[0];
+
+    private long dataLength = 0L;
+
+    public FileAudioSink(final AudioFormat format, final File directory, final String musicTitle) throws IOException {
+        super(format);
+        int sampleSize = format.getSampleSizeInBits();
+        wav = (format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                || format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED)
+                && sampleSize > 0 && sampleSize % 8 == 0
+                && format.getFrameSize() == format.getChannels() * sampleSize / 8;
+        bytesPerSample = wav ? sampleSize / 8 : 1;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the audio sink directory " + directory);
+        }
+        // Ogni riproduzione in un file diverso: il nome è riservato creando il file, così che
+        // più riceventi nello stesso processo non scrivano nello stesso file
+        String name = musicTitle.replaceAll("[^\\w .()\\[\\]-]", "_");
+        String extension = wav ? ".wav" : ".raw";
+        File candidate = new File(directory, name + extension);
+        for (int copy = 2; !candidate.createNewFile(); copy++) {
+            candidate = new File(directory, name + "-" + copy + extension);
+        }
+        file = candidate;
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0L);
+        if (wav) {
+            output.write(new byte[WAV_HEADER_LENGTH]);
+        }
+    }
+
+    /**
+     * Writes the audio as WAV stores it: 8 bit samples unsigned, wider ones signed little endian
+     */
+    @Override
+    protected final void consume(final byte[] data, final int offset, final int length) {
+        byte[] block = data;
+        int blockOffset = offset;
+        AudioFormat format = getFormat();
+        boolean flipSign = bytesPerSample == 1 ? format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+                : format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+        boolean swap = bytesPerSample > 1 && format.isBigEndian();
+        if (wav && (flipSign || swap)) {
+            if (converted.length < length) {
+                converted = new byte[length];
+            }
+            for (int sample = 0; sample + bytesPerSample <= length; sample += bytesPerSample) {
+                for (int i = 0; i < bytesPerSample; i++) {
+                    converted[sample + i] = data[offset + sample + (swap ? bytesPerSample - 1 - i : i)];
+                }
+                if (flipSign) {
+                    converted[sample + bytesPerSample - 1] ^= (byte) 0x80;
+                }
+            }
+            block = converted;
+            blockOffset = 0;
+        }
+        try {
+            output.write(block, blockOffset, length);
+            dataLength += length;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected final void released() {
+        try {
+            if (wav) {
+                output.seek(0L);
+                output.write(wavHeader());
+            }
+            output.close();
+            System.err.printf("Audio written to %s", file);
+            System.err.println();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] wavHeader() {
+        AudioFormat format = getFormat();
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) (WAV_HEADER_LENGTH - 8 + dataLength));
+        header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(16);
+        header.putShort((short) 1);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * channels * bytesPerSample);
+        header.putShort((short) (channels * bytesPerSample));
+        header.putShort((short) (bytesPerSample * 8));
+        header.put("data".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) dataLength);
+        return header.array();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimate of the clock of the server, which is the timeline shared by the group: the
+ * presentation timestamps of the audio packets are instants of this timeline.
+ * <p>
+ * The offset between the local clock and the server clock is measured as in NTP, with the
+ * {@link uk.co.dambrosio.choir.data.packet.stream.PacketTime} exchange. The offset of the
+ * sample with the shortest round trip among the last {@link #SAMPLE_WINDOW} is used, as it
+ * is the one least disturbed by queueing.
+ * <p>
+ * When the server changes the timeline changes with it. The instants taken with
+ * {@link #anchor(long)} are moved by the difference between the two timelines, so that the
+ * streams in progress keep their pace across the change.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class GroupClock {
+    /**
+     * How long after being streamed an audio packet is played, from the choir.playout.delay.ms
+     * system property: the same for every client, it is the room the receivers have to buffer
+     */
+    public static final long PLAYOUT_DELAY_NANOSECONDS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("choir.playout.delay.ms", 2000L));
+
+    private static final int SAMPLE_WINDOW = 8;
+
+    /**
+     * Last samples, as pairs of offset and round trip time
+     */
+    private final ArrayDeque<long[]> samples = new ArrayDeque<>(SAMPLE_WINDOW);
+
+    private long offsetNanos = 0L;
+
+    private long roundTripNanos = 0L;
+
+    /**
+     * True until the first sample of a new timeline arrives
+     */
+    private boolean timelineChanged = true;
+
+    /**
+     * Sum of the differences between the timelines followed so far
+     */
+    private long timelineShiftNanos = 0L;
+
+    /**
+     * Forgets the samples: the server has changed, and the next sample starts a new timeline
+     */
+    public final synchronized void reset() {
+        samples.clear();
+        timelineChanged = true;
+    }
+
+    /**
+     * Adds a sample of the clock synchronization exchange
+     *
+     * @param clientSentNanos     time the request was sent, by the local clock
+     * @param serverReceivedNanos time the request was received, by the server clock
+     * @param serverSentNanos     time the answer was sent, by the server clock
+     * @param clientReceivedNanos time the answer was received, by the local clock
+     */
+    public final synchronized void sampleArrived(final long clientSentNanos, final long serverReceivedNanos,
+                                                 final long serverSentNanos, final long clientReceivedNanos) {
+        long roundTrip = (clientReceivedNanos - clientSentNanos) - (serverSentNanos - serverReceivedNanos);
+        long offset = ((serverReceivedNanos - clientSentNanos) + (serverSentNanos - clientReceivedNanos)) / 2;
+        if (roundTrip < 0L) {
+            return;
+        }
+        if (samples.size() == SAMPLE_WINDOW) {
+            samples.removeFirst();
+        }
+        samples.addLast(new long[]{offset, roundTrip});
+        long[] best = samples.getFirst();
+        for (long[] sample : samples) {
+            if (sample[1] < best[1]) {
+                best = sample;
+            }
+        }
+        if (timelineChanged) {
+            timelineShiftNanos += best[0] - offsetNanos;
+            timelineChanged = false;
+        }
+        offsetNanos = best[0];
+        roundTripNanos = best[1];
+    }
+
+    /**
+     * @return the current instant of the group timeline
+     */
+    public final long now() {
+        return toGroupNanos(System.nanoTime());
+    }
+
+    public final synchronized long toGroupNanos(final long localNanos) {
+        return localNanos + offsetNanos;
+    }
+
+    public final synchronized long toLocalNanos(final long groupNanos) {
+        return groupNanos - offsetNanos;
+    }
+
+    /**
+     * @return true once the offset has been measured with the current server
+     */
+    public final synchronized boolean isSynchronized() {
+        return !timelineChanged;
+    }
+
+    /**
+     * @return an instant of the group timeline that follows the changes of timeline
+     */
+    public final synchronized Anchor anchor(final long groupNanos) {
+        return new Anchor(groupNanos, timelineShiftNanos);
+    }
+
+    public synchronized String toString() {
+        return String.format(
+                "offset %.3f ms, round trip %.3f ms",
+                offsetNanos / 1e6d,
+                roundTripNanos / 1e6d
+        );
+    }
+
+    /**
+     * An instant of the group timeline that is moved together with the timeline when the server
+     * changes, so that it stays at the same local time
+     */
+    public final class Anchor {
+        private final long groupNanos;
+
+        private final long timelineShiftNanosAtAnchor;
+
+        private Anchor(final long groupNanos, final long timelineShiftNanosAtAnchor) {
+            this.groupNanos = groupNanos;
+            this.timelineShiftNanosAtAnchor = timelineShiftNanosAtAnchor;
+        }
+
+        public long getGroupNanos() {
+            synchronized (GroupClock.this) {
+                return groupNanos + timelineShiftNanos - timelineShiftNanosAtAnchor;
+            }
+        }
+    }
+}
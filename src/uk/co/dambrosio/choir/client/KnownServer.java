@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Remembers, in the state directory of the peer, the address of the last server it connected to.
+ * At startup the client tries it straight away, before looking for a server in the group.
+ *
+ * @author Giulio D'Ambrosio
+ */
+final class KnownServer {
+    private static final String KNOWN_SERVER_FILE = "server";
+
+    private KnownServer() {
+    }
+
+    /**
+     * @return the address of the last known server, or null
+     */
+    static InetSocketAddress load(final File stateDirectory) {
+        File file = getFile(stateDirectory);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            if (fields.length != 2) {
+                return null;
+            }
+            return new InetSocketAddress(InetAddress.getByName(fields[0]), Integer.parseInt(fields[1]));
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the address of the server. Failures are ignored: the server will be looked
+     * for in the group next time.
+     */
+    static void save(final File stateDirectory, final InetAddress serverAddress, final char serverPort) {
+        InetSocketAddress knownServer = load(stateDirectory);
+        if (knownServer != null && knownServer.getAddress().equals(serverAddress)
+                && knownServer.getPort() == serverPort) {
+            return;
+        }
+        File file = getFile(stateDirectory);
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(temporaryFile.toPath(),
+                    (serverAddress.getHostAddress() + " " + (int) serverPort).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.printf("Could not remember the server address: %s", e.getMessage());
+            System.err.println();
+        }
+    }
+
+    private static File getFile(final File stateDirectory) {
+        return new File(stateDirectory, KNOWN_SERVER_FILE);
+    }
+}
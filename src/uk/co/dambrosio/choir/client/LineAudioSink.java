@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the audio on a sound card, with a line of the {@link SourceDataLineManager}
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class LineAudioSink implements AudioSink {
+    private final SourceDataLine line;
+
+    private final SourceDataLineManager lineManager;
+
+    public LineAudioSink(final SourceDataLine line, final SourceDataLineManager lineManager) {
+        super();
+        this.line = line;
+        this.lineManager = lineManager;
+    }
+
+    @Override
+    public final AudioFormat getFormat() {
+        return line.getFormat();
+    }
+
+    @Override
+    public final void start() {
+        line.start();
+    }
+
+    @Override
+    public final int write(final byte[] data, final int offset, final int length) {
+        return line.write(data, offset, length);
+    }
+
+    @Override
+    public final void drain() {
+        line.drain();
+    }
+
+    @Override
+    public final long getLongFramePosition() {
+        return line.getLongFramePosition();
+    }
+
+    @Override
+    public final int getBufferSize() {
+        return line.getBufferSize();
+    }
+
+    @Override
+    public final boolean hasOwnClock() {
+        return true;
+    }
+
+    /**
+     * Gives back the line to the {@link SourceDataLineManager}, which keeps it open for the next track
+     */
+    @Override
+    public final void release() {
+        lineManager.release(line);
+    }
+}
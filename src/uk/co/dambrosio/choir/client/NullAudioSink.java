@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Discards the audio, consuming it at the frame rate of its format as a sound card would:
+ * the writes block while half a second of audio is buffered, and the position stops when
+ * the buffer runs empty. The pace is given by the system clock, so the sink doesn't drift.
+ * <p>
+ * Subclasses receive the audio in {@link #consume(byte[], int, int)}, as it is written.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class NullAudioSink implements AudioSink {
+    private static final int BUFFER_MILLISECONDS = 500;
+
+    private final AudioFormat format;
+
+    private final int frameSize;
+
+    private final float frameRate;
+
+    private final long bufferFrames;
+
+    private boolean running = false;
+
+    private long writtenFrames = 0L;
+
+    private double consumedFrames = 0d;
+
+    private long lastUpdateNanos = 0L;
+
+    public NullAudioSink(final AudioFormat format) {
+        super();
+        this.format = format;
+        this.frameSize = Math.max(1, format.getFrameSize());
+        this.frameRate = format.getFrameRate();
+        this.bufferFrames = frameRate == AudioSystem.NOT_SPECIFIED ? 0L
+                : (long) (frameRate * BUFFER_MILLISECONDS / 1000f);
+    }
+
+    @Override
+    public final AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public final synchronized void start() {
+        running = true;
+        lastUpdateNanos = System.nanoTime();
+    }
+
+    @Override
+    public final int write(final byte[] data, final int offset, final int length) {
+        consume(data, offset, length);
+        synchronized (this) {
+            writtenFrames += length / frameSize;
+            if (frameRate == AudioSystem.NOT_SPECIFIED) {
+                // Nessun ritmo da seguire: l'audio è consumato subito
+                consumedFrames = writtenFrames;
+                return length;
+            }
+        }
+        long excessFrames;
+        while (isRunning() && (excessFrames = getBufferedFrames() - bufferFrames) > 0) {
+            if (!sleepFor(excessFrames)) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public final void drain() {
+        long bufferedFrames;
+        while (isRunning() && (bufferedFrames = getBufferedFrames()) > 0) {
+            if (!sleepFor(bufferedFrames)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public final synchronized long getLongFramePosition() {
+        update();
+        return (long) consumedFrames;
+    }
+
+    @Override
+    public final int getBufferSize() {
+        return (int) (bufferFrames * frameSize);
+    }
+
+    @Override
+    public final boolean hasOwnClock() {
+        return false;
+    }
+
+    @Override
+    public final void release() {
+        synchronized (this) {
+            update();
+            running = false;
+        }
+        released();
+    }
+
+    /**
+     * Receives the audio written to the sink
+     */
+    protected void consume(final byte[] data, final int offset, final int length) {
+    }
+
+    /**
+     * Called once the sink has been released
+     */
+    protected void released() {
+    }
+
+    private synchronized boolean isRunning() {
+        return running;
+    }
+
+    private synchronized long getBufferedFrames() {
+        update();
+        return writtenFrames - (long) consumedFrames;
+    }
+
+    /**
+     * Advances the consumed frames by the time elapsed, up to the written ones
+     */
+    private void update() {
+        long now = System.nanoTime();
+        if (running) {
+            consumedFrames = Math.min(writtenFrames, consumedFrames + (now - lastUpdateNanos) * frameRate / 1e9d);
+        }
+        lastUpdateNanos = now;
+    }
+
+    /**
+     * @return false if the thread has been interrupted
+     */
+    private boolean sleepFor(final long frames) {
+        try {
+            Thread.sleep(Math.max(1L, (long) (frames * 1000d / frameRate)));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
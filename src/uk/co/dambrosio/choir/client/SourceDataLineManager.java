@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Keeps the audio lines open across tracks: opening a line can take hundreds of milliseconds on
+ * some mixers, and would add up to every transition between tracks.
+ * <p>
+ * A line released at the end of a track stays open, stopped, and is handed to the next player
+ * whose audio format matches. At most {@link #MAXIMUM_IDLE_LINES} idle lines are kept, the least
+ * recently released is closed first, and they are all closed if a line for another format can't
+ * be opened while they are held. At start, lines for the {@link #COMMON_FORMATS} are opened
+ * in the background, so that the first track does not wait for them either.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class SourceDataLineManager {
+    /**
+     * Idle lines kept open, from the choir.lines.idle system property
+     */
+    private static final int MAXIMUM_IDLE_LINES = Integer.getInteger("choir.lines.idle", 2);
+
+    /**
+     * Formats of most audio files: CD audio and 48 kHz, 16 bit stereo
+     */
+    private static final AudioFormat[] COMMON_FORMATS = {
+            new AudioFormat(44100f, 16, 2, true, false),
+            new AudioFormat(48000f, 16, 2, true, false),
+    };
+
+    /**
+     * Open lines not in use, the most recently released last
+     */
+    private final ArrayDeque<SourceDataLine> idleLines = new ArrayDeque<>();
+
+    private boolean closed = false;
+
+    private int reusedLines = 0;
+
+    private int openedLines = 0;
+
+    /**
+     * Opens, in the background, the lines for the common formats
+     */
+    public final void warmUp() {
+        Thread warmer = new Thread(() -> {
+            for (AudioFormat format : COMMON_FORMATS) {
+                try {
+                    release(open(format));
+                } catch (LineUnavailableException | IllegalArgumentException e) {
+                    // Nessuna periferica per questo formato
+                }
+            }
+        }, "SourceDataLineManager warm up");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * @param format format of the audio to play
+     * @return an open, stopped line for the format: an idle one if there is one
+     * @throws LineUnavailableException if a new line can't be opened
+     */
+    public final SourceDataLine acquire(final AudioFormat format) throws LineUnavailableException {
+        synchronized (this) {
+            Iterator<SourceDataLine> lines = idleLines.descendingIterator();
+            while (lines.hasNext()) {
+                SourceDataLine line = lines.next();
+                if (line.getFormat().matches(format) && format.matches(line.getFormat())) {
+                    lines.remove();
+                    if (line.isOpen()) {
+                        reusedLines++;
+                        return line;
+                    }
+                }
+            }
+            openedLines++;
+        }
+        try {
+            return open(format);
+        } catch (LineUnavailableException e) {
+            // The idle lines may hold a device that can't be shared
+            closeIdleLines();
+            return open(format);
+        }
+    }
+
+    /**
+     * Gives back a line that is no longer in use: it is stopped, its buffered audio discarded,
+     * and kept open for the next track
+     */
+    public final void release(final SourceDataLine line) {
+        line.stop();
+        line.flush();
+        SourceDataLine evicted = null;
+        synchronized (this) {
+            if (closed || !line.isOpen()) {
+                evicted = line;
+            } else {
+                idleLines.addLast(line);
+                if (idleLines.size() > MAXIMUM_IDLE_LINES) {
+                    evicted = idleLines.removeFirst();
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes the idle lines: the lines released from now on are closed
+     */
+    public final void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        closeIdleLines();
+    }
+
+    private void closeIdleLines() {
+        ArrayDeque<SourceDataLine> lines;
+        synchronized (this) {
+            lines = new ArrayDeque<>(idleLines);
+            idleLines.clear();
+        }
+        for (SourceDataLine line : lines) {
+            line.close();
+        }
+    }
+
+    public synchronized String toString() {
+        return String.format(
+                "%d lines reused, %d opened, %d idle",
+                reusedLines,
+                openedLines,
+                idleLines.size()
+        );
+    }
+
+    private SourceDataLine open(final AudioFormat format) throws LineUnavailableException {
+        long startNanos = System.nanoTime();
+        SourceDataLine line = AudioSystem.getSourceDataLine(format);
+        line.open(format);
+        System.err.printf(
+                "Audio line opened for %s in %d ms",
+                format,
+                (System.nanoTime() - startNanos) / 1000000L
+        );
+        System.err.println();
+        return line;
+    }
+}
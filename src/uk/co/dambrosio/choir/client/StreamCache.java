@@ -0,0 +1,513 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.client;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import uk.co.dambrosio.choir.common.AudioBeginPacketListener;
+import uk.co.dambrosio.choir.common.AudioDataPacketListener;
+import uk.co.dambrosio.choir.common.AudioEndPacketListener;
+import uk.co.dambrosio.choir.common.PacketDispatcher;
+import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketBegin;
+import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketDataChunk;
+import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd;
+
+/**
+ * On-disk cache of the audio files received from the multicast group, so that this peer can
+ * share them too: a track that comes back in the rotation can be streamed, or handed over,
+ * even if its original owner has gone.
+ * <p>
+ * Streams are recorded as they arrive, by a single writer thread appending to a file per
+ * stream, so the packet dispatcher never waits for the disk. A recorded stream is kept only if
+ * the id computed from its content matches the id of the stream: a stream that lost a packet is
+ * thrown away. The cache is bounded in size, and the least recently played audio files are
+ * evicted first; the order survives restarts through the modification time of the files.
+ * <p>
+ * The cache is enabled by the choir.cache.dir system property, and bounded by choir.cache.mb
+ * (1024 by default).
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class StreamCache implements AudioBeginPacketListener, AudioDataPacketListener, AudioEndPacketListener {
+    private static final String CACHE_DIRECTORY = System.getProperty("choir.cache.dir");
+
+    private static final long CACHE_SIZE_BYTES = Math.max(0L, Long.getLong("choir.cache.mb", 1024L)) * 1024L * 1024L;
+
+    private static final String RECORDING_SUFFIX = ".part";
+
+    /**
+     * Separates the id of the audio file from its title in the name of a cached file
+     */
+    private static final char NAME_SEPARATOR = '-';
+
+    private static final int MUSIC_ID_HEX_DIGITS = 16;
+
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A recording that received no packet for this long is abandoned
+     */
+    private static final long IDLE_RECORDING_TIMEOUT_MILLISECONDS = 30000L;
+
+    /**
+     * Receives the changes of the cache. Called by the writer thread.
+     */
+    public interface Listener {
+        /**
+         * @return true if the audio file is already shared by this peer, and must not be cached
+         */
+        boolean isShared(long musicId);
+
+        /**
+         * @return true if the audio file is being streamed or prepared by this peer, and must
+         * not be evicted yet
+         */
+        boolean isInUse(long musicId);
+
+        void audioFileCached(ClientAudioFile audioFile);
+
+        void audioFileEvicted(ClientAudioFile audioFile);
+    }
+
+    private final File directory;
+
+    private final PacketDispatcher packetDispatcher;
+
+    /**
+     * Cached audio files, from the least recently played one. Guarded by itself.
+     */
+    private final LinkedHashMap<Long, ClientAudioFile> cachedAudioFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Bytes used by {@link #cachedAudioFiles}. Guarded by {@link #cachedAudioFiles}.
+     */
+    private long usedBytes = 0L;
+
+    /**
+     * Recordings in progress, by id of the audio file
+     */
+    private final ConcurrentHashMap<Long, Recording> recordings = new ConcurrentHashMap<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StreamCache writer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final AtomicLong hits = new AtomicLong(0L);
+
+    private final AtomicLong misses = new AtomicLong(0L);
+
+    private final AtomicLong discarded = new AtomicLong(0L);
+
+    private volatile Listener listener = null;
+
+    /**
+     * Opens the cache, if it is enabled
+     *
+     * @return the cache, or null if it is not enabled
+     */
+    public static StreamCache open(final PacketDispatcher packetDispatcher) {
+        if (CACHE_DIRECTORY == null || CACHE_SIZE_BYTES == 0L) {
+            return null;
+        }
+        File directory = new File(CACHE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.printf("Stream cache disabled: %s can't be created", directory);
+            System.err.println();
+            return null;
+        }
+        return new StreamCache(directory, packetDispatcher);
+    }
+
+    private StreamCache(final File directory, final PacketDispatcher packetDispatcher) {
+        super();
+        this.directory = directory;
+        this.packetDispatcher = packetDispatcher;
+        load();
+        packetDispatcher.registerListener((AudioBeginPacketListener) this);
+        packetDispatcher.registerListener((AudioDataPacketListener) this);
+        packetDispatcher.registerListener((AudioEndPacketListener) this);
+    }
+
+    /**
+     * Sets who is told about the changes of the cache, replacing the previous one
+     */
+    public final void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the cached audio files, from the least recently played one
+     */
+    public final List<ClientAudioFile> getAudioFiles() {
+        synchronized (cachedAudioFiles) {
+            return new ArrayList<>(cachedAudioFiles.values());
+        }
+    }
+
+    /**
+     * @return true if the file belongs to the cache
+     */
+    public final boolean contains(final File file) {
+        return directory.equals(file.getParentFile());
+    }
+
+    /**
+     * @return the ratio of the received audio files that were already in the cache
+     */
+    public final double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0L ? 0.0d : hits.get() / (double) total;
+    }
+
+    public final long getUsedBytes() {
+        synchronized (cachedAudioFiles) {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * Stops recording. The recordings in progress are thrown away.
+     */
+    public final void close() {
+        packetDispatcher.unregisterListener((AudioBeginPacketListener) this);
+        packetDispatcher.unregisterListener((AudioDataPacketListener) this);
+        packetDispatcher.unregisterListener((AudioEndPacketListener) this);
+        for (Recording recording : recordings.values()) {
+            recording.abandon();
+        }
+        writer.shutdown();
+    }
+
+    @Override
+    public final void packetArrived(final PacketBegin packet) {
+        ClientAudioFile audioFile;
+        Listener currentListener = listener;
+        abandonIdleRecordings();
+        synchronized (cachedAudioFiles) {
+            audioFile = cachedAudioFiles.get(packet.musicId);
+        }
+        if (audioFile != null) {
+            hits.incrementAndGet();
+            writer.execute(() -> touch(audioFile));
+            return;
+        }
+        if (currentListener != null && currentListener.isShared(packet.musicId)) {
+            return;
+        }
+        misses.incrementAndGet();
+        Recording previous = recordings.put(packet.musicId, new Recording(packet.musicId, packet.musicTitle));
+        if (previous != null) {
+            previous.abandon();
+        }
+    }
+
+    @Override
+    public final void packetArrived(final PacketDataChunk packet) {
+        Recording recording = recordings.get(packet.musicId);
+        if (recording != null) {
+            recording.append(packet);
+        }
+    }
+
+    @Override
+    public final void packetArrived(final PacketEnd packet) {
+        Recording recording = recordings.remove(packet.musicId);
+        if (recording != null) {
+            recording.complete();
+        }
+    }
+
+    public String toString() {
+        synchronized (cachedAudioFiles) {
+            return String.format(
+                    "%d audio files, %.1f of %d MB, hit ratio %.2f, %d incomplete streams discarded",
+                    cachedAudioFiles.size(),
+                    usedBytes / (1024.0d * 1024.0d),
+                    CACHE_SIZE_BYTES / (1024L * 1024L),
+                    getHitRatio(),
+                    discarded.get()
+            );
+        }
+    }
+
+    private void abandonIdleRecordings() {
+        long now = System.nanoTime();
+        Iterator<Recording> iterator = recordings.values().iterator();
+        while (iterator.hasNext()) {
+            Recording recording = iterator.next();
+            if (TimeUnit.NANOSECONDS.toMillis(now - recording.lastAppendNanos) > IDLE_RECORDING_TIMEOUT_MILLISECONDS) {
+                iterator.remove();
+                recording.abandon();
+            }
+        }
+    }
+
+    /**
+     * Marks an audio file as played now, so that it is the last one to be evicted
+     */
+    private void touch(final ClientAudioFile audioFile) {
+        //noinspection ResultOfMethodCallIgnored
+        audioFile.getFile().setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Finds the audio files cached by a previous run, and throws away the incomplete recordings
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(RECORDING_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            long musicId;
+            try {
+                musicId = parseMusicId(file.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            ClientAudioFile audioFile = probe(file, musicId);
+            if (audioFile != null) {
+                add(audioFile);
+            }
+        }
+        evict();
+        System.err.printf("Stream cache in %s: %s", directory, this);
+        System.err.println();
+    }
+
+    private static long parseMusicId(final String name) {
+        if (name.length() <= MUSIC_ID_HEX_DIGITS || name.charAt(MUSIC_ID_HEX_DIGITS) != NAME_SEPARATOR) {
+            throw new NumberFormatException(name);
+        }
+        return Long.parseUnsignedLong(name.substring(0, MUSIC_ID_HEX_DIGITS), 16);
+    }
+
+    /**
+     * @return the cached audio file, or null if it can't be played
+     */
+    private static ClientAudioFile probe(final File file, final long musicId) {
+        AudioFileFormat audioFileFormat;
+        try {
+            audioFileFormat = AudioHeaderSniffer.sniff(file);
+            if (audioFileFormat == null) {
+                audioFileFormat = AudioSystem.getAudioFileFormat(file);
+            }
+        } catch (IOException | UnsupportedAudioFileException e) {
+            return null;
+        }
+        ClientAudioFile audioFile = new ClientAudioFile(file, musicId);
+        audioFile.setMusicTitle(file.getName().substring(MUSIC_ID_HEX_DIGITS + 1));
+        audioFile.setAudioFormat(audioFileFormat.getFormat());
+        audioFile.setFrameLength(audioFileFormat.getFrameLength());
+        audioFile.setByteLength(file.length());
+        return audioFile;
+    }
+
+    private void add(final ClientAudioFile audioFile) {
+        synchronized (cachedAudioFiles) {
+            cachedAudioFiles.put(audioFile.getMusicId(), audioFile);
+            usedBytes += audioFile.getByteLength();
+        }
+    }
+
+    /**
+     * Evicts the least recently played audio files until the cache fits its size. The audio
+     * files in use are skipped: they are evicted by a later call, once they are no longer used.
+     */
+    private void evict() {
+        ArrayList<ClientAudioFile> evicted = new ArrayList<>();
+        Listener currentListener = listener;
+        synchronized (cachedAudioFiles) {
+            Iterator<Map.Entry<Long, ClientAudioFile>> iterator = cachedAudioFiles.entrySet().iterator();
+            while (usedBytes > CACHE_SIZE_BYTES && iterator.hasNext()) {
+                ClientAudioFile audioFile = iterator.next().getValue();
+                if (currentListener != null && currentListener.isInUse(audioFile.getMusicId())) {
+                    continue;
+                }
+                iterator.remove();
+                usedBytes -= audioFile.getByteLength();
+                evicted.add(audioFile);
+            }
+        }
+        for (ClientAudioFile audioFile : evicted) {
+            if (currentListener != null) {
+                currentListener.audioFileEvicted(audioFile);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            audioFile.getFile().delete();
+        }
+    }
+
+    /**
+     * A stream being written to disk. Every operation runs on the writer thread, in order.
+     */
+    private final class Recording {
+        private final long musicId;
+
+        private final String musicTitle;
+
+        private final File file;
+
+        private OutputStream outputStream = null;
+
+        /**
+         * False once writing failed or the recording has been abandoned
+         */
+        private boolean writing = true;
+
+        private volatile long lastAppendNanos = System.nanoTime();
+
+        /**
+         * End of the data appended so far, as a byte of the stream. Only used by the packet
+         * dispatcher thread
+         */
+        private long appendedBytes = 0L;
+
+        private Recording(final long musicId, final String musicTitle) {
+            this.musicId = musicId;
+            this.musicTitle = musicTitle;
+            file = new File(directory, String.format("%016x", musicId) + RECORDING_SUFFIX);
+        }
+
+        /**
+         * Appends the data not recorded yet: a stream handed over to another peer may send some
+         * of it again. A lost packet makes the recording useless, so it is abandoned.
+         *
+         * @param packet received audio packet, not modified afterwards
+         */
+        private void append(final PacketDataChunk packet) {
+            lastAppendNanos = System.nanoTime();
+            if (packet.streamOffset + packet.audioData.length <= appendedBytes) {
+                return;
+            }
+            if (packet.streamOffset > appendedBytes) {
+                // Nothing more is appended
+                appendedBytes = Long.MAX_VALUE;
+                abandon();
+                return;
+            }
+            final byte[] audioData = packet.streamOffset == appendedBytes ? packet.audioData
+                    : Arrays.copyOfRange(packet.audioData, (int) (appendedBytes - packet.streamOffset), packet.audioData.length);
+            appendedBytes = packet.streamOffset + packet.audioData.length;
+            writer.execute(() -> {
+                if (!writing) {
+                    return;
+                }
+                try {
+                    if (outputStream == null) {
+                        outputStream = new BufferedOutputStream(new FileOutputStream(file), WRITER_BUFFER_SIZE);
+                    }
+                    outputStream.write(audioData);
+                } catch (IOException e) {
+                    System.err.printf("Stream cache: could not write %s: %s", file, e.getMessage());
+                    System.err.println();
+                    discard();
+                }
+            });
+        }
+
+        private void abandon() {
+            writer.execute(this::discard);
+        }
+
+        /**
+         * Keeps the recorded stream if its content matches its id
+         */
+        private void complete() {
+            writer.execute(() -> {
+                if (!writing || outputStream == null) {
+                    discard();
+                    return;
+                }
+                try {
+                    outputStream.close();
+                    outputStream = null;
+                    if (ContentHash.of(file) != musicId) {
+                        discarded.incrementAndGet();
+                        discard();
+                        return;
+                    }
+                } catch (IOException e) {
+                    discard();
+                    return;
+                }
+                File cachedFile = new File(directory, String.format("%016x", musicId) + NAME_SEPARATOR + getCachedName());
+                ClientAudioFile audioFile;
+                if (!file.renameTo(cachedFile) || (audioFile = probe(cachedFile, musicId)) == null) {
+                    discard();
+                    //noinspection ResultOfMethodCallIgnored
+                    cachedFile.delete();
+                    return;
+                }
+                add(audioFile);
+                Listener currentListener = listener;
+                if (currentListener != null) {
+                    currentListener.audioFileCached(audioFile);
+                }
+                evict();
+                System.err.printf("Stream cache: cached '%s'. %s", musicTitle, StreamCache.this);
+                System.err.println();
+            });
+        }
+
+        /**
+         * @return the title of the audio file, made safe to be used as a file name, with the
+         * extension of its type so that it is recognised as an audio file
+         */
+        private String getCachedName() {
+            String name = musicTitle.replaceAll("[^\\w .()\\[\\]-]", "_");
+            if (!AudioFileInspector.hasAudioFileExtension(new File(name))) {
+                try {
+                    name += "." + AudioSystem.getAudioFileFormat(file).getType().getExtension();
+                } catch (IOException | UnsupportedAudioFileException e) {
+                    // Left without extension: the cached file is identified by its header
+                }
+            }
+            return name;
+        }
+
+        private void discard() {
+            writing = false;
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    // Deleted anyway
+                }
+                outputStream = null;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.dambrosio.choir.client;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+
+/**
+ * Format and pacing parameters used to stream an audio file.
+ * They only depend on the audio format of the file, so they are computed once per
+ * file and then reused by every {@link AudioFileStreamingPlan} of the same file.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class StreamingParameters {
+    private static final int AUDIO_PACKET_PAYLOAD_TARGET_SIZE = 1000;
+
+    final AudioFormat audioFormat;
+
+    /**
+     * Audio bytes in a second
+     */
+    final int audioFrameSize;
+
+    final double targetAudioBytesPerMsec;
+
+    final int targetPacketsPerSecond;
+
+    final int actualPacketPayloadSize;
+
+    final int targetPauseBetweenPackets;
+
+    /**
+     * Initial adjustment of the pause between packets, spreading the rounding of the payload size
+     */
+    final double initialAdjustmentToPauseBetweenPackets;
+
+    private StreamingParameters(final AudioFormat audioFormat) throws UnsupportedAudioFileException {
+        if (audioFormat.getFrameSize() == AudioSystem.NOT_SPECIFIED) {
+            throw new UnsupportedAudioFileException("Frame size is not specified in the audio file");
+        }
+        this.audioFormat = audioFormat;
+        int bytesPerSecond = audioFormat.getFrameSize();
+        if (audioFormat.getFrameRate() != AudioSystem.NOT_SPECIFIED) {
+            bytesPerSecond *= (int) audioFormat.getFrameRate();
+        }
+        audioFrameSize = bytesPerSecond;
+        targetAudioBytesPerMsec = audioFrameSize / AudioFileStreamingPlan.MILLISECONDS_IN_A_SECOND;
+
+        // This is to keep each packet size the same...
+        targetPacketsPerSecond = Math.max(1, (int) Math.round(((double) audioFrameSize) / AUDIO_PACKET_PAYLOAD_TARGET_SIZE));
+        actualPacketPayloadSize = (int) Math.ceil(((double) audioFrameSize) / targetPacketsPerSecond);
+        targetPauseBetweenPackets = (int) Math.floor(AudioFileStreamingPlan.MILLISECONDS_IN_A_SECOND / targetPacketsPerSecond);
+        initialAdjustmentToPauseBetweenPackets =
+                (((targetPacketsPerSecond * actualPacketPayloadSize - audioFrameSize) / targetAudioBytesPerMsec)) / targetPacketsPerSecond;
+    }
+
+    /**
+     * Computes the parameters for an audio file, using the audio format found when the
+     * file was inspected; the file is parsed again only if the format is not known.
+     */
+    public static StreamingParameters forAudioFile(final ClientAudioFile audioFile)
+            throws UnsupportedAudioFileException, IOException {
+        AudioFormat audioFormat = audioFile.getAudioFormat();
+        if (audioFormat == null) {
+            try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(audioFile.getFile())) {
+                audioFormat = audioInputStream.getFormat();
+            }
+        }
+        return new StreamingParameters(audioFormat);
+    }
+}
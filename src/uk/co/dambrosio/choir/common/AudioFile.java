@@ -5,35 +5,54 @@ package uk.co.dambrosio.choir.common;
 
 import java.net.InetAddress;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
 /**
  * @author Giulio D'Ambrosio
  */
 public class AudioFile {
-    protected char musicId = 0;
+    /**
+     * Id that no audio file can have
+     */
+    public static final long NO_MUSIC_ID = -1L;
+
+    protected long musicId = NO_MUSIC_ID;
 
     protected String musicTitle = "";
 
+    /**
+     * Format of the audio data, or null if not known
+     */
+    protected AudioFormat audioFormat = null;
+
+    /**
+     * Duration in microseconds, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    protected long durationMicroseconds = AudioSystem.NOT_SPECIFIED;
+
+    /**
+     * Size of the file in bytes, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    protected long byteLength = AudioSystem.NOT_SPECIFIED;
+
     public int hashCode() {
-        int result;
-        result = musicId;
-        return result & 0xffff;
+        return Long.hashCode(musicId);
     }
 
-    public static int hashCode(final InetAddress clientAddress, final char musicId) {
-        int result = clientAddress.toString().hashCode() + (int) musicId;
-        result = (result >> 16) + (result & 0xffff);
-        return result & 0xffff;
+    public static int hashCode(final InetAddress clientAddress, final long musicId) {
+        return 31 * clientAddress.toString().hashCode() + Long.hashCode(musicId);
     }
 
     public final boolean equals(final AudioFile audioFile) {
         return audioFile != null && hashCode() == audioFile.hashCode();
     }
 
-    public char getMusicId() {
+    public long getMusicId() {
         return musicId;
     }
 
-    public void setMusicId(char musicId) {
+    public void setMusicId(long musicId) {
         this.musicId = musicId;
     }
 
@@ -44,4 +63,54 @@ public class AudioFile {
     public void setMusicTitle(String musicTitle) {
         this.musicTitle = musicTitle;
     }
+
+    public AudioFormat getAudioFormat() {
+        return audioFormat;
+    }
+
+    public void setAudioFormat(AudioFormat audioFormat) {
+        this.audioFormat = audioFormat;
+    }
+
+    /**
+     * @return the duration in microseconds, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    public long getDurationMicroseconds() {
+        return durationMicroseconds;
+    }
+
+    public void setDurationMicroseconds(long durationMicroseconds) {
+        this.durationMicroseconds = durationMicroseconds;
+    }
+
+    public long getByteLength() {
+        return byteLength;
+    }
+
+    public void setByteLength(long byteLength) {
+        this.byteLength = byteLength;
+    }
+
+    /**
+     * @return the average bit rate of the file in bits per second, or {@link AudioSystem#NOT_SPECIFIED}
+     */
+    public long getBitRate() {
+        long duration = getDurationMicroseconds();
+        if (byteLength > 0 && duration > 0) {
+            return byteLength * 8L * 1000000L / duration;
+        }
+        if (audioFormat != null && audioFormat.getFrameSize() > 0 && audioFormat.getFrameRate() > 0) {
+            return (long) (audioFormat.getFrameSize() * 8L * audioFormat.getFrameRate());
+        }
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    /**
+     * Copies format, duration and length from another instance describing the same audio file
+     */
+    public void copyMetadata(final AudioFile audioFile) {
+        setAudioFormat(audioFile.getAudioFormat());
+        setDurationMicroseconds(audioFile.getDurationMicroseconds());
+        setByteLength(audioFile.getByteLength());
+    }
 }
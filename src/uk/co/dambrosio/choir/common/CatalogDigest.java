@@ -0,0 +1,38 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+/**
+ * Order independent digest of a catalog of audio files.
+ * The digest is the (wrapping) sum of a 64 bits hash of each entry, so that it can be
+ * updated incrementally when entries are added or removed. Client and server compute it
+ * the same way, and compare it to find out whether they agree on a catalog content.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class CatalogDigest {
+    /**
+     * Digest of an empty catalog
+     */
+    public static final long EMPTY = 0L;
+
+    private CatalogDigest() {
+    }
+
+    public static long add(final long digest, final AudioFile audioFile) {
+        return digest + entryHash(audioFile.getMusicId(), audioFile.getMusicTitle());
+    }
+
+    public static long remove(final long digest, final AudioFile audioFile) {
+        return digest - entryHash(audioFile.getMusicId(), audioFile.getMusicTitle());
+    }
+
+    public static long entryHash(final long musicId, final String musicTitle) {
+        long h = musicId ^ (musicTitle.hashCode() * 0x9e3779b97f4a7c15L);
+        // splitmix64 finalizer
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+/**
+ * Rules of the election of the server among peers that start together.
+ * <p>
+ * Every peer announces, in its join packets, its priority (system property choir.priority,
+ * 0 by default) and its random peer id. After a short listening window, a peer that has not heard
+ * any server becomes the server only if it has not heard a join packet from a peer that outranks it.
+ * A server that hears the hello packet of a server that outranks it steps down.
+ * The ranking is total, so two peers never both win.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class Election {
+    public static final int LOCAL_PRIORITY = Integer.getInteger("choir.priority", 0);
+
+    /**
+     * Priority of a standby peer that took over from a server that went away: it outranks
+     * any peer that may have started an election in the meantime, so that the replicated
+     * state is not lost
+     */
+    public static final int STANDBY_PRIORITY = Integer.MAX_VALUE;
+
+    private Election() {
+    }
+
+    /**
+     * @return true if the first peer outranks the second one: the priority is compared
+     * first, and the peer id breaks the ties
+     */
+    public static boolean outranks(final int priority, final long peerId,
+                                   final int otherPriority, final long otherPeerId) {
+        if (priority != otherPriority) {
+            return priority > otherPriority;
+        }
+        return peerId > otherPeerId;
+    }
+}
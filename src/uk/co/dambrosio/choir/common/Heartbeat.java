@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+/**
+ * Settings of the heartbeat exchanged on the control connection between the server and each client.
+ * <p>
+ * The server sends a ping every {@link #INTERVAL_MILLISECONDS} (system property
+ * choir.heartbeat.interval.ms) and drops a client that misses {@link #MAXIMUM_MISSED_PONGS}
+ * answers in a row (system property choir.heartbeat.misses). A client that receives nothing from
+ * the server for {@link #getTimeoutMilliseconds()} considers the server gone.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class Heartbeat {
+    public static final int INTERVAL_MILLISECONDS =
+            Math.max(100, Integer.getInteger("choir.heartbeat.interval.ms", 2000));
+
+    public static final int MAXIMUM_MISSED_PONGS =
+            Math.max(1, Integer.getInteger("choir.heartbeat.misses", 3));
+
+    private Heartbeat() {
+    }
+
+    /**
+     * @return how long a peer may stay silent before being considered gone
+     */
+    public static int getTimeoutMilliseconds() {
+        return INTERVAL_MILLISECONDS * (MAXIMUM_MISSED_PONGS + 1);
+    }
+}
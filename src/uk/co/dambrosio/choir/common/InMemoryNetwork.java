@@ -0,0 +1,431 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network within the process, for running many peers in the same JVM: each peer gets a
+ * {@link Transport} from {@link #newPeer()}, with an address of its own in 10.0.0.0/8.
+ * <p>
+ * A datagram sent to a group is copied once and queued to every member, the sender included,
+ * as multicast loopback does. When the queue of a member is full the datagram is dropped for
+ * that member, as UDP would. The control connections are pairs of in-memory pipes.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class InMemoryNetwork {
+    /**
+     * Datagrams queued to a group member that has not received them yet
+     */
+    private static final int GROUP_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Bytes buffered in each direction of a control connection
+     */
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    private final ConcurrentHashMap<InetSocketAddress, CopyOnWriteArrayList<Member>> groups = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<InetSocketAddress, MemoryListener> listeners = new ConcurrentHashMap<>();
+
+    private final AtomicInteger peers = new AtomicInteger();
+
+    private final AtomicInteger nextEphemeralPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+
+    private final AtomicLong deliveredDatagrams = new AtomicLong();
+
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+
+    /**
+     * @return the transport of a new peer, with its own address
+     */
+    public final Transport newPeer() throws UnknownHostException {
+        int peer = peers.incrementAndGet();
+        return new Peer(InetAddress.getByAddress(new byte[]{
+                10, (byte) (peer >> 16), (byte) (peer >> 8), (byte) peer
+        }));
+    }
+
+    public String toString() {
+        return String.format(
+                "%d peers, %d datagrams delivered, %d dropped",
+                peers.get(),
+                deliveredDatagrams.get(),
+                droppedDatagrams.get()
+        );
+    }
+
+    /**
+     * A datagram in the queue of a group member
+     */
+    private static final class Datagram {
+        final byte[] data;
+
+        final InetAddress address;
+
+        final int port;
+
+        Datagram(final byte[] data, final InetAddress address, final int port) {
+            this.data = data;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    private final class Peer implements Transport {
+        private final InetAddress address;
+
+        Peer(final InetAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public Group joinGroup(final InetAddress groupAddress, final char groupPort) {
+            InetSocketAddress group = new InetSocketAddress(groupAddress, groupPort);
+            Member member = new Member(address, group);
+            groups.computeIfAbsent(group, key -> new CopyOnWriteArrayList<>()).add(member);
+            return member;
+        }
+
+        @Override
+        public Listener listen(final char port) throws IOException {
+            InetSocketAddress localAddress = new InetSocketAddress(address, port);
+            MemoryListener listener = new MemoryListener(localAddress);
+            if (listeners.putIfAbsent(localAddress, listener) != null) {
+                throw new BindException("Address already in use: " + localAddress);
+            }
+            return listener;
+        }
+
+        @Override
+        public Connection connect(final InetSocketAddress remoteAddress, final int timeoutMilliseconds) throws IOException {
+            MemoryListener listener = listeners.get(remoteAddress);
+            if (listener == null) {
+                throw new ConnectException("Connection refused: " + remoteAddress);
+            }
+            Pipe toServer = new Pipe();
+            Pipe toClient = new Pipe();
+            listener.pendingConnections.add(new MemoryConnection(toServer, toClient,
+                    address, nextEphemeralPort.getAndIncrement()));
+            return new MemoryConnection(toClient, toServer, remoteAddress.getAddress(), remoteAddress.getPort());
+        }
+    }
+
+    private final class Member implements Transport.Group {
+        private final InetAddress address;
+
+        private final InetSocketAddress group;
+
+        private final BlockingQueue<Datagram> queue = new ArrayBlockingQueue<>(GROUP_QUEUE_CAPACITY);
+
+        private volatile int timeoutMilliseconds = 0;
+
+        private volatile boolean closed = false;
+
+        Member(final InetAddress address, final InetSocketAddress group) {
+            this.address = address;
+            this.group = group;
+        }
+
+        @Override
+        public void send(final DatagramPacket datagram) throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            Datagram sent = new Datagram(
+                    Arrays.copyOfRange(datagram.getData(), datagram.getOffset(), datagram.getOffset() + datagram.getLength()),
+                    address,
+                    group.getPort()
+            );
+            CopyOnWriteArrayList<Member> members = groups.get(group);
+            if (members == null) {
+                return;
+            }
+            for (Member member : members) {
+                if (member.queue.offer(sent)) {
+                    deliveredDatagrams.incrementAndGet();
+                } else {
+                    droppedDatagrams.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void receive(final DatagramPacket datagram) throws IOException {
+            Datagram received;
+            try {
+                received = timeoutMilliseconds > 0
+                        ? queue.poll(timeoutMilliseconds, TimeUnit.MILLISECONDS)
+                        : queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (received == null) {
+                throw new SocketTimeoutException("Receive timed out");
+            }
+            int length = Math.min(received.data.length, datagram.getData().length - datagram.getOffset());
+            System.arraycopy(received.data, 0, datagram.getData(), datagram.getOffset(), length);
+            datagram.setLength(length);
+            datagram.setAddress(received.address);
+            datagram.setPort(received.port);
+        }
+
+        @Override
+        public void setSoTimeout(final int timeoutMilliseconds) {
+            this.timeoutMilliseconds = timeoutMilliseconds;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            CopyOnWriteArrayList<Member> members = groups.get(group);
+            if (members != null) {
+                members.remove(this);
+            }
+        }
+    }
+
+    private final class MemoryListener implements Transport.Listener {
+        private final InetSocketAddress localAddress;
+
+        private final BlockingQueue<Transport.Connection> pendingConnections = new LinkedBlockingQueue<>();
+
+        private volatile int timeoutMilliseconds = 0;
+
+        private volatile boolean closed = false;
+
+        MemoryListener(final InetSocketAddress localAddress) {
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        public Transport.Connection accept() throws IOException {
+            Transport.Connection connection;
+            try {
+                connection = timeoutMilliseconds > 0
+                        ? pendingConnections.poll(timeoutMilliseconds, TimeUnit.MILLISECONDS)
+                        : pendingConnections.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (connection == null) {
+                throw new SocketTimeoutException("Accept timed out");
+            }
+            return connection;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return localAddress.getAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return localAddress.getPort();
+        }
+
+        @Override
+        public void setSoTimeout(final int timeoutMilliseconds) {
+            this.timeoutMilliseconds = timeoutMilliseconds;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            listeners.remove(localAddress, this);
+            Transport.Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * One direction of a control connection: a bounded byte buffer, which reads as the end of
+     * the stream once closed and drained
+     */
+    private static final class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+
+        private int start = 0;
+
+        private int length = 0;
+
+        private boolean closed = false;
+
+        synchronized int read(final byte[] data, final int offset, final int maxLength,
+                              final int timeoutMilliseconds) throws IOException {
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds);
+            while (length == 0 && !closed) {
+                long waitMilliseconds = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (timeoutMilliseconds > 0 && waitMilliseconds <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                try {
+                    wait(timeoutMilliseconds > 0 ? waitMilliseconds : 0L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+            }
+            if (length == 0) {
+                return -1;
+            }
+            int read = 0;
+            while (read < maxLength && length > 0) {
+                int chunk = Math.min(maxLength - read, Math.min(length, buffer.length - start));
+                System.arraycopy(buffer, start, data, offset + read, chunk);
+                start = (start + chunk) % buffer.length;
+                length -= chunk;
+                read += chunk;
+            }
+            notifyAll();
+            return read;
+        }
+
+        synchronized void write(final byte[] data, final int offset, final int dataLength) throws IOException {
+            int written = 0;
+            while (written < dataLength) {
+                while (length == buffer.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException("Interrupted");
+                    }
+                }
+                if (closed) {
+                    throw new SocketException("Connection closed");
+                }
+                int end = (start + length) % buffer.length;
+                int chunk = Math.min(dataLength - written, Math.min(buffer.length - length, buffer.length - end));
+                System.arraycopy(data, offset + written, buffer, end, chunk);
+                length += chunk;
+                written += chunk;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private static final class MemoryConnection implements Transport.Connection {
+        private final Pipe input;
+
+        private final Pipe output;
+
+        private final InetAddress remoteAddress;
+
+        private final int remotePort;
+
+        private volatile int timeoutMilliseconds = 0;
+
+        private final InputStream inputStream = new InputStream() {
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] data, final int offset, final int length) throws IOException {
+                return length == 0 ? 0 : input.read(data, offset, length, timeoutMilliseconds);
+            }
+
+            @Override
+            public void close() {
+                MemoryConnection.this.close();
+            }
+        };
+
+        private final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                output.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] data, final int offset, final int length) throws IOException {
+                output.write(data, offset, length);
+            }
+
+            @Override
+            public void close() {
+                MemoryConnection.this.close();
+            }
+        };
+
+        MemoryConnection(final Pipe input, final Pipe output, final InetAddress remoteAddress, final int remotePort) {
+            this.input = input;
+            this.output = output;
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public int getPort() {
+            return remotePort;
+        }
+
+        @Override
+        public void setSoTimeout(final int timeoutMilliseconds) {
+            this.timeoutMilliseconds = timeoutMilliseconds;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+            output.close();
+        }
+    }
+}
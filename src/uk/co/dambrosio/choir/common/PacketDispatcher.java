@@ -5,7 +5,6 @@ package uk.co.dambrosio.choir.common;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -15,9 +14,12 @@ import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketDataChunk;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd;
 import uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket;
 import uk.co.dambrosio.choir.data.packet.datagram.PacketHello;
+import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
+import uk.co.dambrosio.choir.data.packet.exceptions.UnknownPacketException;
 
 /**
- * This class deals with receiving and sending packets using a multicast group.
+ * This class deals with receiving and sending packets using a multicast group, joined
+ * through a {@link Transport}.
  * The incoming packets are notified using the observer pattern.
  *
  * @author Giulio D'Ambrosio
@@ -31,9 +33,7 @@ public class PacketDispatcher implements Runnable {
      */
     private static final int HEARTBEAT_INTERVAL_MILLISECONDS = 10 * 1000;
 
-    private MulticastSocket multicastSocket;
-
-    private InetAddress multicastGroupAddress;
+    private Transport.Group multicastGroup;
 
     /**
      * Flag: se false il thread è chiuso o in chiusura
@@ -57,20 +57,14 @@ public class PacketDispatcher implements Runnable {
 
     public PacketDispatcher(InetAddress multicastGroupAddress,
                             char multicastGroupPort) throws IOException {
-        this(multicastGroupAddress, multicastGroupPort, null);
+        this(new SocketTransport(), multicastGroupAddress, multicastGroupPort);
     }
 
-    public PacketDispatcher(InetAddress multicastGroupAddress,
-                            char multicastGroupPort, MulticastSocket multicastSocket) throws IOException {
+    public PacketDispatcher(Transport transport, InetAddress multicastGroupAddress,
+                            char multicastGroupPort) throws IOException {
         super();
-        this.multicastGroupAddress = multicastGroupAddress;
-        if (multicastSocket == null) {
-            multicastSocket = new MulticastSocket(multicastGroupPort);
-            multicastSocket.joinGroup(multicastGroupAddress);
-            // multicastSocket.setLoopbackMode(true);
-        }
-        multicastSocket.setSoTimeout(HEARTBEAT_INTERVAL_MILLISECONDS);
-        this.multicastSocket = multicastSocket;
+        multicastGroup = transport.joinGroup(multicastGroupAddress, multicastGroupPort);
+        multicastGroup.setSoTimeout(HEARTBEAT_INTERVAL_MILLISECONDS);
 
         audioBeginListeners = new ConcurrentLinkedQueue<>();
         audioDataListeners = new ConcurrentLinkedQueue<>();
@@ -81,8 +75,8 @@ public class PacketDispatcher implements Runnable {
 
     protected void finalize() throws Throwable {
         super.finalize();
-        if (multicastSocket != null) {
-            multicastSocket.leaveGroup(multicastGroupAddress);
+        if (multicastGroup != null) {
+            multicastGroup.close();
         }
     }
 
@@ -97,12 +91,14 @@ public class PacketDispatcher implements Runnable {
         DatagramPacket packet;
 
         while (alive) try {
-            multicastSocket.receive(dp);
+            multicastGroup.receive(dp);
             packet = DatagramPacket.fromDatagram(dp);
             notifyAvailablePacket(packet);
         } catch (SocketTimeoutException e) {
             // This is the heartbeat: a chance to check that the thread is still alive
             // even if no packet are received
+        } catch (UnknownPacketException | UnexpectedPacketException e) {
+            // A malformed or foreign packet must not stop the multicast group for everybody
         } catch (IOException e) {
             e.printStackTrace();
             alive = false;
@@ -116,7 +112,7 @@ public class PacketDispatcher implements Runnable {
      * @throws IOException
      */
     public synchronized void send(DatagramPacket p) throws IOException {
-        multicastSocket.send(p.getRawPacket());
+        multicastGroup.send(p.getRawPacket());
     }
 
     /**
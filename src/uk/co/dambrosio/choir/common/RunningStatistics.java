@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+/**
+ * Count, mean, standard deviation, minimum and maximum of a series of samples, updated
+ * one sample at a time (Welford's algorithm) without keeping the samples.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class RunningStatistics {
+    private long count = 0L;
+
+    private double mean = 0.0d;
+
+    /**
+     * Sum of the squared differences from the mean
+     */
+    private double squaredDifferences = 0.0d;
+
+    private double minimum = Double.NaN;
+
+    private double maximum = Double.NaN;
+
+    public synchronized void add(final double sample) {
+        count++;
+        double delta = sample - mean;
+        mean += delta / count;
+        squaredDifferences += delta * (sample - mean);
+        if (count == 1 || sample < minimum) {
+            minimum = sample;
+        }
+        if (count == 1 || sample > maximum) {
+            maximum = sample;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean of the samples, or NaN if there are none
+     */
+    public synchronized double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return the sample standard deviation, or NaN if there are less than two samples
+     */
+    public synchronized double getStandardDeviation() {
+        return count > 1 ? Math.sqrt(squaredDifferences / (count - 1)) : Double.NaN;
+    }
+
+    public synchronized double getMinimum() {
+        return minimum;
+    }
+
+    public synchronized double getMaximum() {
+        return maximum;
+    }
+
+    public synchronized String toString() {
+        return String.format("n=%d, mean=%.2f, sd=%.2f, min=%.2f, max=%.2f",
+                count, getMean(), getStandardDeviation(), minimum, maximum);
+    }
+}
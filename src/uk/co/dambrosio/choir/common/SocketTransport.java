@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The {@link Transport} of a peer on a real network: a multicast socket for the group, and TCP
+ * connections bound to the address of the local host for the control channel.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class SocketTransport implements Transport {
+    private static final int LISTEN_BACKLOG = 10;
+
+    @Override
+    public final Group joinGroup(final InetAddress groupAddress, final char groupPort) throws IOException {
+        MulticastSocket multicastSocket = new MulticastSocket(groupPort);
+        multicastSocket.joinGroup(groupAddress);
+        return new Group() {
+            @Override
+            public void send(final DatagramPacket datagram) throws IOException {
+                multicastSocket.send(datagram);
+            }
+
+            @Override
+            public void receive(final DatagramPacket datagram) throws IOException {
+                multicastSocket.receive(datagram);
+            }
+
+            @Override
+            public void setSoTimeout(final int timeoutMilliseconds) throws IOException {
+                multicastSocket.setSoTimeout(timeoutMilliseconds);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    multicastSocket.leaveGroup(groupAddress);
+                } finally {
+                    multicastSocket.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public final Listener listen(final char port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, LISTEN_BACKLOG, InetAddress.getLocalHost());
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                return connection(serverSocket.accept());
+            }
+
+            @Override
+            public InetAddress getInetAddress() {
+                return serverSocket.getInetAddress();
+            }
+
+            @Override
+            public int getLocalPort() {
+                return serverSocket.getLocalPort();
+            }
+
+            @Override
+            public void setSoTimeout(final int timeoutMilliseconds) throws IOException {
+                serverSocket.setSoTimeout(timeoutMilliseconds);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public final Connection connect(final InetSocketAddress address, final int timeoutMilliseconds) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, timeoutMilliseconds);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return connection(socket);
+    }
+
+    private static Connection connection(final Socket socket) throws IOException {
+        // Control packets are small and answered at once: Nagle's algorithm would delay the
+        // clock synchronization answers by a delayed acknowledgement
+        socket.setTcpNoDelay(true);
+        return new Connection() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public InetAddress getInetAddress() {
+                return socket.getInetAddress();
+            }
+
+            @Override
+            public int getPort() {
+                return socket.getPort();
+            }
+
+            @Override
+            public void setSoTimeout(final int timeoutMilliseconds) throws IOException {
+                socket.setSoTimeout(timeoutMilliseconds);
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+/**
+ * Rate limiter: the bucket holds up to {@code capacity} tokens and is refilled at a
+ * constant rate. Every action consumes a token, and is refused when the bucket is empty.
+ * Bursts up to the capacity are allowed, while the long term rate never exceeds the refill rate.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class TokenBucket {
+    private final double capacity;
+
+    private final double tokensPerNanosecond;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    /**
+     * @param capacity        maximum number of tokens, i.e. the largest burst allowed
+     * @param tokensPerSecond refill rate
+     */
+    public TokenBucket(final double capacity, final double tokensPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerNanosecond = tokensPerSecond / 1000000000.0d;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Consumes a token, if there is one
+     *
+     * @return false if the bucket is empty, and the action should be refused
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNanosecond);
+        lastRefillNanos = now;
+        if (tokens < 1.0d) {
+            return false;
+        }
+        tokens -= 1.0d;
+        return true;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * The network as seen by a peer: the multicast group the audio travels on, and the control
+ * connections between the clients and the server. {@link SocketTransport} uses real sockets,
+ * {@link InMemoryNetwork} connects many peers within the same process.
+ * <p>
+ * The methods follow the socket ones they replace: a timed out receive or accept throws
+ * {@link java.net.SocketTimeoutException}, and a closed connection reads as the end of the stream.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public interface Transport {
+    /**
+     * Joins a multicast group
+     */
+    Group joinGroup(InetAddress groupAddress, char groupPort) throws IOException;
+
+    /**
+     * Listens for control connections on a port of the local address
+     */
+    Listener listen(char port) throws IOException;
+
+    /**
+     * Opens a control connection
+     *
+     * @param timeoutMilliseconds connection timeout, 0 to wait indefinitely
+     */
+    Connection connect(InetSocketAddress address, int timeoutMilliseconds) throws IOException;
+
+    /**
+     * Membership of a multicast group
+     */
+    interface Group {
+        void send(DatagramPacket datagram) throws IOException;
+
+        /**
+         * Waits for the next datagram sent to the group, by any member including this one
+         */
+        void receive(DatagramPacket datagram) throws IOException;
+
+        void setSoTimeout(int timeoutMilliseconds) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * A control connection between a client and the server
+     */
+    interface Connection {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * @return the address of the other end
+         */
+        InetAddress getInetAddress();
+
+        /**
+         * @return the port of the other end
+         */
+        int getPort();
+
+        void setSoTimeout(int timeoutMilliseconds) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Accepts the control connections of the clients
+     */
+    interface Listener {
+        Connection accept() throws IOException;
+
+        InetAddress getInetAddress();
+
+        int getLocalPort();
+
+        void setSoTimeout(int timeoutMilliseconds) throws IOException;
+
+        void close() throws IOException;
+    }
+}
@@ -5,9 +5,13 @@ package uk.co.dambrosio.choir.data.packet;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.sampled.AudioFormat;
 
 /**
  * @author Giulio D'Ambrosio
@@ -26,11 +30,15 @@ abstract public class Packet {
     }
 
     public static String readPacketCode(final InputStream is) throws IOException {
-        String pt = "";
+        char[] pt = new char[4];
         for (int i = 0; i < 4; i++) {
-            pt += String.valueOf((char) is.read());
+            int c = is.read();
+            if (c < 0) {
+                throw new EOFException("End of stream while reading a packet code");
+            }
+            pt[i] = (char) c;
         }
-        return pt;
+        return new String(pt);
     }
 
     public static void writePacketCode(final OutputStream os, final String code)
@@ -47,20 +55,107 @@ abstract public class Packet {
         dos.writeShort(word);
     }
 
+    public static long read64BitsWord(final DataInputStream dis) throws IOException {
+        return dis.readLong();
+    }
+
+    public static void write64BitsWord(final DataOutputStream dos, final long word)
+            throws IOException {
+        dos.writeLong(word);
+    }
+
     public static String readZeroTerminatedString(final InputStream is) throws IOException {
-        String res = "";
+        StringBuilder res = new StringBuilder();
         int c;
-        while ((c = is.read()) != 0) {
-            res += String.valueOf((char) c);
+        while ((c = is.read()) > 0) {
+            res.append((char) c);
         }
-        return res;
+        return res.toString();
     }
 
     public static void writeZeroTerminatedString(final OutputStream out, final String str)
             throws IOException {
+        byte[] buf = new byte[str.length() + 1];
         for (int i = 0; i < str.length(); i++) {
-            out.write(str.charAt(i));
+            buf[i] = (byte) str.charAt(i);
+        }
+        out.write(buf, 0, buf.length);
+    }
+
+    /**
+     * Reads an audio format written by {@link #writeAudioFormat(DataOutputStream, AudioFormat)}
+     *
+     * @return the audio format, or null
+     */
+    public static AudioFormat readAudioFormat(final DataInputStream dis) throws IOException {
+        if (!dis.readBoolean()) {
+            return null;
+        }
+        return new AudioFormat(
+                readEncoding(dis),
+                dis.readFloat(),
+                dis.readInt(),
+                dis.readInt(),
+                dis.readInt(),
+                dis.readFloat(),
+                dis.readBoolean()
+        );
+    }
+
+    /**
+     * Reads the name of an audio encoding, mapping it to the predefined instance if there is one
+     */
+    private static AudioFormat.Encoding readEncoding(final DataInputStream dis) throws IOException {
+        String name = readLengthPrefixedString(dis);
+        for (AudioFormat.Encoding encoding : new AudioFormat.Encoding[]{
+                AudioFormat.Encoding.PCM_SIGNED,
+                AudioFormat.Encoding.PCM_UNSIGNED,
+                AudioFormat.Encoding.PCM_FLOAT,
+                AudioFormat.Encoding.ULAW,
+                AudioFormat.Encoding.ALAW
+        }) {
+            if (encoding.toString().equals(name)) {
+                return encoding;
+            }
         }
-        out.write(0);
+        return new AudioFormat.Encoding(name);
+    }
+
+    /**
+     * Writes an audio format, or its absence if null
+     */
+    public static void writeAudioFormat(final DataOutputStream dos, final AudioFormat audioFormat)
+            throws IOException {
+        dos.writeBoolean(audioFormat != null);
+        if (audioFormat != null) {
+            writeLengthPrefixedString(dos, audioFormat.getEncoding().toString());
+            dos.writeFloat(audioFormat.getSampleRate());
+            dos.writeInt(audioFormat.getSampleSizeInBits());
+            dos.writeInt(audioFormat.getChannels());
+            dos.writeInt(audioFormat.getFrameSize());
+            dos.writeFloat(audioFormat.getFrameRate());
+            dos.writeBoolean(audioFormat.isBigEndian());
+        }
+    }
+
+    /**
+     * Reads an UTF-8 string prefixed by its length in bytes (16 bits)
+     */
+    public static String readLengthPrefixedString(final DataInputStream dis) throws IOException {
+        byte[] buf = new byte[dis.readUnsignedShort()];
+        dis.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an UTF-8 string prefixed by its length in bytes (16 bits).
+     * Strings longer than 65535 bytes are truncated.
+     */
+    public static void writeLengthPrefixedString(final DataOutputStream dos, final String str)
+            throws IOException {
+        byte[] buf = str.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(buf.length, 0xffff);
+        dos.writeShort(length);
+        dos.write(buf, 0, length);
     }
 }
@@ -91,12 +91,18 @@ abstract public class DatagramPacket extends Packet {
     /**
      * This packet is used to join a group. The client sends this packet and, if any server is listening,
      * a PacketHello packet is sent back.
+     * The packet carries the election rank of the client, so that peers starting together
+     * can agree on which one becomes the server, see {@link uk.co.dambrosio.choir.common.Election}.
      *
      * @author Giulio D'Ambrosio
      */
     public static class PacketJoin extends DatagramPacket {
         public static final String packetCode = "JOIN";
-        private static final int PACKET_LEN = 4;
+        private static final int PACKET_LEN = 16;
+
+        public int priority = 0;
+
+        public long peerId = 0L;
 
         /**
          * Crea il pacchetto in lettura, a partire da un pacchetto udp ricevuto
@@ -113,22 +119,30 @@ abstract public class DatagramPacket extends Packet {
             if (!actualPacketCode.equals(packetCode)) {
                 throw new UnexpectedPacketException(packetCode,actualPacketCode);
             }
+            priority = dis.readInt();
+            peerId = read64BitsWord(dis);
         }
 
         /**
          * Crea un pacchetto di richiesta inserimento nel gruppo di ascolto.
          *
+         * @param priority     Priorità del client nell'elezione del server
+         * @param peerId       Identificativo del client
          * @param groupAddress Indirizzo del gruppo multicast
          * @param groupPort    Porta del gruppo multicast
          * @throws java.io.IOException
          */
-        public PacketJoin(InetAddress groupAddress, int groupPort)
+        public PacketJoin(int priority, long peerId, InetAddress groupAddress, int groupPort)
                 throws IOException {
             byte[] buf;
             ByteArrayOutputStream out = new ByteArrayOutputStream(PACKET_LEN);
             DataOutputStream dos = new DataOutputStream(out);
 
+            this.priority = priority;
+            this.peerId = peerId;
             writePacketCode(dos, packetCode);
+            dos.writeInt(priority);
+            write64BitsWord(dos, peerId);
             dos.flush();
             buf = out.toByteArray();
 
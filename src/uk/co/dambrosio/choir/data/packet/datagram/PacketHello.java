@@ -10,16 +10,19 @@ import java.io.*;
 
 /**
  * A welcome packet. When the server hears a join request answers back with this packet
- * to accept the join request.
+ * to accept the join request. The packet is also sent periodically, as a beacon.
+ * It carries the election rank of the server, see {@link uk.co.dambrosio.choir.common.Election}.
  *
  * @author Giulio D'Ambrosio
  */
 public class PacketHello extends uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket {
     public static final String packetCode = "HELO";
-    public int PACKET_LEN = 10;
+    public int PACKET_LEN = 22;
 
     public InetAddress serverAddress = null;
     public char serverPort = 0;
+    public int priority = 0;
+    public long peerId = 0L;
 
     public PacketHello(java.net.DatagramPacket rawPacket) throws IOException {
         super(rawPacket);
@@ -36,19 +39,25 @@ public class PacketHello extends uk.co.dambrosio.choir.data.packet.datagram.Data
         dis.read(rawAddress, 0, 4);
         serverAddress = InetAddress.getByAddress(rawAddress);
         serverPort = read16BitsWord(dis);
+        priority = dis.readInt();
+        peerId = read64BitsWord(dis);
     }
 
-    public PacketHello(InetAddress serverAddress, char serverPort,
+    public PacketHello(InetAddress serverAddress, char serverPort, int priority, long peerId,
                        InetAddress groupAddress, char groupPort) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream(PACKET_LEN);
         DataOutputStream dos = new DataOutputStream(out);
 
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.priority = priority;
+        this.peerId = peerId;
 
         writePacketCode(dos, packetCode);
         dos.write(serverAddress.getAddress(), 0, 4);
         write16BitsWord(dos, serverPort);
+        dos.writeInt(priority);
+        write64BitsWord(dos, peerId);
         dos.flush();
         rawPacket = new java.net.DatagramPacket(out.toByteArray(), PACKET_LEN, groupAddress, groupPort);
     }
@@ -21,9 +21,9 @@ import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
  */
 public class PacketBegin extends DatagramPacket {
     public static final String packetCode = "BEGI";
-    private static final int PACKET_LEN = 7;
+    private static final int PACKET_LEN = 13;
 
-    public char musicId = 0;
+    public long musicId = AudioFile.NO_MUSIC_ID;
     public String musicTitle = "";
 
     /**
@@ -42,7 +42,7 @@ public class PacketBegin extends DatagramPacket {
             throw new UnexpectedPacketException(packetCode, actualPacketCode);
         }
 
-        musicId = read16BitsWord(dis);
+        musicId = read64BitsWord(dis);
         musicTitle = readZeroTerminatedString(dis);
     }
 
@@ -67,7 +67,7 @@ public class PacketBegin extends DatagramPacket {
         dos = new DataOutputStream(out);
 
         writePacketCode(dos, packetCode);
-        write16BitsWord(dos, musicId);
+        write64BitsWord(dos, musicId);
         writeZeroTerminatedString(dos, musicTitle);
         dos.flush();
 
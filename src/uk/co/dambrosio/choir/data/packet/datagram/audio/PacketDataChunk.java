@@ -10,6 +10,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket;
 import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
 
@@ -19,10 +20,22 @@ import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
  */
 public class PacketDataChunk extends DatagramPacket {
     public static final String packetCode = "DATA";
-    private static final char PACKET_LEN = 8;
+    private static final char PACKET_LEN = 30;
 
     protected char totLength = PACKET_LEN;
-    public char musicId = 0;
+    public long musicId = AudioFile.NO_MUSIC_ID;
+
+    /**
+     * Instant of the group timeline at which the first byte of {@link #audioData} is to be played
+     */
+    public long presentationNanos = 0L;
+
+    /**
+     * Byte of the stream at which {@link #audioData} starts: receivers use it to drop the data
+     * they already have and to detect lost packets, also when the stream is handed over
+     */
+    public long streamOffset = 0L;
+
     public byte[] audioData = null;
 
     /**
@@ -42,8 +55,10 @@ public class PacketDataChunk extends DatagramPacket {
             throw new UnexpectedPacketException(packetCode,actualPacketCode);
         }
 
-        musicId = read16BitsWord(dis);
+        musicId = read64BitsWord(dis);
         totLength = read16BitsWord(dis);
+        presentationNanos = read64BitsWord(dis);
+        streamOffset = read64BitsWord(dis);
         audioData = new byte[totLength - PACKET_LEN];
         //noinspection ResultOfMethodCallIgnored
         in.read(audioData);
@@ -52,14 +67,16 @@ public class PacketDataChunk extends DatagramPacket {
     /**
      * Crea un pacchetto da spedire.
      *
-     * @param musicId      id del brano
+     * @param musicId           id del brano
+     * @param presentationNanos istante della timeline del gruppo in cui riprodurre i dati
+     * @param streamOffset      posizione dei dati nello stream, in bytes
      * @param audioData    buffer dei dati del file audio
      * @param size         numero di bytes del buffer audioData da spedire
      * @param groupPort    porta del gruppo multicast
      * @param groupAddress indirizzo del gruppo multicast
      * @throws IOException
      */
-    public PacketDataChunk(char musicId, byte[] audioData, char size,
+    public PacketDataChunk(long musicId, long presentationNanos, long streamOffset, byte[] audioData, char size,
                            InetAddress groupAddress, int groupPort) throws IOException {
         super();
         byte[] buf;
@@ -67,11 +84,15 @@ public class PacketDataChunk extends DatagramPacket {
         DataOutputStream dos = new DataOutputStream(out);
 
         this.musicId = musicId;
+        this.presentationNanos = presentationNanos;
+        this.streamOffset = streamOffset;
         this.audioData = audioData;
 
         writePacketCode(dos, packetCode);
-        write16BitsWord(dos, musicId);
+        write64BitsWord(dos, musicId);
         write16BitsWord(dos, totLength);
+        write64BitsWord(dos, presentationNanos);
+        write64BitsWord(dos, streamOffset);
         dos.write(audioData, 0, size);
         out.flush();
 
@@ -10,6 +10,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket;
 import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
 
@@ -20,8 +21,8 @@ import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
  */
 public class PacketEnd extends DatagramPacket {
     public static final String packetCode = "ENDF";
-    private static final int PACKET_LEN = 6;
-    public char musicId = 0;
+    private static final int PACKET_LEN = 12;
+    public long musicId = AudioFile.NO_MUSIC_ID;
 
     /**
      * Costruttore. Legge i dati del pacchetto dal pacchetto grezzo udp.
@@ -39,7 +40,7 @@ public class PacketEnd extends DatagramPacket {
             throw new UnexpectedPacketException(packetCode,actualPacketCode);
         }
 
-        musicId = read16BitsWord(dis);
+        musicId = read64BitsWord(dis);
     }
 
     /**
@@ -47,7 +48,7 @@ public class PacketEnd extends DatagramPacket {
      *
      * @throws IOException
      */
-    public PacketEnd(char musicId, InetAddress groupAddress, int groupPort)
+    public PacketEnd(long musicId, InetAddress groupAddress, int groupPort)
             throws IOException {
         super();
 
@@ -57,7 +58,7 @@ public class PacketEnd extends DatagramPacket {
         this.musicId = musicId;
 
         writePacketCode(dos, packetCode);
-        write16BitsWord(dos, musicId);
+        write64BitsWord(dos, musicId);
         dos.flush();
 
         rawPacket = new java.net.DatagramPacket(out.toByteArray(), PACKET_LEN, groupAddress, groupPort);
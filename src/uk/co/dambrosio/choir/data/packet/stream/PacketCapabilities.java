@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Informs the server about the audio formats a client can render.
+ * Each format is a template, as in {@link AudioFormat#matches(AudioFormat)}: fields with
+ * value {@link javax.sound.sampled.AudioSystem#NOT_SPECIFIED} match any value.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketCapabilities extends StreamPacket {
+    public static final String packetCode = "CAPS";
+
+    public static final int MAX_FORMATS_PER_PACKET = 4096;
+
+    /**
+     * True if the client can render any audio format
+     */
+    public boolean anyAudioFormat = false;
+
+    public final ArrayList<AudioFormat> audioFormats = new ArrayList<>();
+
+    public PacketCapabilities() {
+        super();
+    }
+
+    public PacketCapabilities(boolean anyAudioFormat, Collection<AudioFormat> audioFormats) {
+        super();
+        if (audioFormats.size() > MAX_FORMATS_PER_PACKET) {
+            throw new IllegalArgumentException("Too many formats for a single capabilities packet: " + audioFormats.size());
+        }
+        this.anyAudioFormat = anyAudioFormat;
+        this.audioFormats.addAll(audioFormats);
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        anyAudioFormat = dis.readBoolean();
+        int count = read16BitsWord(dis);
+        audioFormats.clear();
+        audioFormats.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            AudioFormat audioFormat = readAudioFormat(dis);
+            if (audioFormat != null) {
+                audioFormats.add(audioFormat);
+            }
+        }
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        dos.writeBoolean(anyAudioFormat);
+        write16BitsWord(dos, (char) audioFormats.size());
+        for (AudioFormat audioFormat : audioFormats) {
+            writeAudioFormat(dos, audioFormat);
+        }
+    }
+
+    /**
+     * @return true if the client can render an audio format
+     */
+    public boolean canRender(final AudioFormat audioFormat) {
+        if (anyAudioFormat || audioFormat == null) {
+            return true;
+        }
+        for (AudioFormat renderableFormat : audioFormats) {
+            if (audioFormat.matches(renderableFormat)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() {
+        return super.toString() + ", any:" + anyAudioFormat + ", formats:" + audioFormats.size();
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+
+/**
+ * Informs the server about a batch of files available for sharing.
+ * This is the batched version of {@link PacketMusic}: a single packet carries up to
+ * {@link #MAX_ENTRIES_PER_PACKET} entries, and titles are length-prefixed UTF-8 strings.
+ * Each entry also carries the audio format, duration and length of the file.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketCatalog extends StreamPacket {
+    public static final String packetCode = "CATL";
+
+    public static final int MAX_ENTRIES_PER_PACKET = 1024;
+
+    public final ArrayList<AudioFile> audioFiles = new ArrayList<>();
+
+    public PacketCatalog() {
+        super();
+    }
+
+    /**
+     * Creates a packet for a batch of audio files
+     */
+    public PacketCatalog(Collection<? extends AudioFile> audioFiles) {
+        super();
+        if (audioFiles.size() > MAX_ENTRIES_PER_PACKET) {
+            throw new IllegalArgumentException("Too many entries for a single catalog packet: " + audioFiles.size());
+        }
+        this.audioFiles.addAll(audioFiles);
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        int count = read16BitsWord(dis);
+        audioFiles.clear();
+        audioFiles.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            AudioFile audioFile = new AudioFile();
+            audioFile.setMusicId(read64BitsWord(dis));
+            audioFile.setMusicTitle(readLengthPrefixedString(dis));
+            readAudioFileMetadata(dis, audioFile);
+            audioFiles.add(audioFile);
+        }
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write16BitsWord(dos, (char) audioFiles.size());
+        for (AudioFile audioFile : audioFiles) {
+            write64BitsWord(dos, audioFile.getMusicId());
+            writeLengthPrefixedString(dos, audioFile.getMusicTitle());
+            writeAudioFileMetadata(dos, audioFile);
+        }
+    }
+
+    public String toString() {
+        return super.toString() + ", entries:" + audioFiles.size();
+    }
+
+}
@@ -10,15 +10,20 @@ import java.io.IOException;
 import uk.co.dambrosio.choir.common.AudioFile;
 
 /**
- * Informs the server about a file available for sharing.
+ * Informs the server about a file available for sharing, with its format, duration and length.
  *
  * @author Giulio D'Ambrosio
  */
 public class PacketMusic extends StreamPacket {
     public static final String packetCode = "MUSI";
-    public char musicId = 0;
+    public long musicId = AudioFile.NO_MUSIC_ID;
     public String musicTitle = "";
 
+    /**
+     * Format, duration and length of the audio file
+     */
+    private final AudioFile metadata = new AudioFile();
+
     public PacketMusic() {
         super();
     }
@@ -29,22 +34,40 @@ public class PacketMusic extends StreamPacket {
         super();
         musicId = audioFile.getMusicId();
         musicTitle = audioFile.getMusicTitle();
+        metadata.copyMetadata(audioFile);
+    }
+
+    /**
+     * @return the audio file described by this packet
+     */
+    public AudioFile toAudioFile() {
+        AudioFile audioFile = new AudioFile();
+        audioFile.setMusicId(musicId);
+        audioFile.setMusicTitle(musicTitle);
+        audioFile.copyMetadata(metadata);
+        return audioFile;
     }
 
     public void fromStream(DataInputStream dis) throws IOException {
         super.fromStream(dis, packetCode);
-        musicId = read16BitsWord(dis);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        musicId = read64BitsWord(dis);
         musicTitle = readZeroTerminatedString(dis);
+        readAudioFileMetadata(dis, metadata);
     }
 
     public void toStream(DataOutputStream dos) throws IOException {
         super.toStream(dos, packetCode);
-        write16BitsWord(dos, musicId);
+        write64BitsWord(dos, musicId);
         writeZeroTerminatedString(dos, musicTitle);
+        writeAudioFileMetadata(dos, metadata);
     }
 
     public String toString() {
-        return super.toString() + ", id:" + musicId + ", title:" + musicTitle;
+        return super.toString() + ", id:" + Long.toHexString(musicId) + ", title:" + musicTitle;
     }
 
 }
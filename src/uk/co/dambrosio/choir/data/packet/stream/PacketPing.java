@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Heartbeat sent by the server on the control connection. The client answers
+ * with a {@link PacketPong} carrying the same sequence number and timestamp.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketPing extends StreamPacket {
+    public static final String packetCode = "PING";
+    public long sequence = 0L;
+
+    /**
+     * Time the ping has been sent, as given by {@link System#nanoTime()} on the server
+     */
+    public long sentNanos = 0L;
+
+    public PacketPing() {
+        super();
+    }
+
+    public PacketPing(long sequence, long sentNanos) {
+        super();
+        this.sequence = sequence;
+        this.sentNanos = sentNanos;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        sequence = read64BitsWord(dis);
+        sentNanos = read64BitsWord(dis);
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write64BitsWord(dos, sequence);
+        write64BitsWord(dos, sentNanos);
+    }
+
+    public String toString() {
+        return super.toString() + ",seq:" + sequence;
+    }
+
+}
@@ -7,36 +7,70 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import uk.co.dambrosio.choir.common.AudioFile;
+
 /**
- * Instructs a client to play an audio file
+ * Instructs a client to play an audio file.
+ * A non zero {@link #offset} asks the client to take over a stream interrupted on another peer:
+ * the streaming starts from that byte of the file, without a begin packet.
  * @author Giulio D'Ambrosio
  */
 public class PacketPlay extends StreamPacket {
     public static final String packetCode = "PLAY";
-    public char musicId = 0;
+    public long musicId = AudioFile.NO_MUSIC_ID;
+
+    /**
+     * Byte of the audio file the streaming starts from
+     */
+    public long offset = 0L;
+
+    /**
+     * A byte of the stream already sent by the previous peer, and the instant of the group
+     * timeline at which it is played: the stream taken over goes on on the same timeline
+     */
+    public long timelineOffset = 0L;
+
+    public long timelineNanos = 0L;
 
     public PacketPlay() {
         super();
     }
 
-    public PacketPlay(char musicId) {
+    public PacketPlay(long musicId) {
         super();
         this.musicId = musicId;
     }
 
+    public PacketPlay(long musicId, long offset, long timelineOffset, long timelineNanos) {
+        super();
+        this.musicId = musicId;
+        this.offset = offset;
+        this.timelineOffset = timelineOffset;
+        this.timelineNanos = timelineNanos;
+    }
+
     public void fromStream(DataInputStream dis) throws IOException {
         super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
 
-        musicId = read16BitsWord(dis);
+    protected void readPayload(DataInputStream dis) throws IOException {
+        musicId = read64BitsWord(dis);
+        offset = read64BitsWord(dis);
+        timelineOffset = read64BitsWord(dis);
+        timelineNanos = read64BitsWord(dis);
     }
 
     public void toStream(DataOutputStream dos) throws IOException {
         super.toStream(dos, packetCode);
-        write16BitsWord(dos, musicId);
+        write64BitsWord(dos, musicId);
+        write64BitsWord(dos, offset);
+        write64BitsWord(dos, timelineOffset);
+        write64BitsWord(dos, timelineNanos);
     }
 
     public String toString() {
-        return super.toString() + ",id:" + musicId;
+        return super.toString() + ",id:" + Long.toHexString(musicId) + ",offset:" + offset;
     }
 
 }
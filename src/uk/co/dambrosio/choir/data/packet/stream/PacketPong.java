@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Answer of the client to a {@link PacketPing}: it carries back the sequence number
+ * and the timestamp of the ping, so that the server can measure the round trip time.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketPong extends StreamPacket {
+    public static final String packetCode = "PONG";
+    public long sequence = 0L;
+
+    /**
+     * Time the ping has been sent, copied from the {@link PacketPing}
+     */
+    public long sentNanos = 0L;
+
+    public PacketPong() {
+        super();
+    }
+
+    public PacketPong(long sequence, long sentNanos) {
+        super();
+        this.sequence = sequence;
+        this.sentNanos = sentNanos;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        sequence = read64BitsWord(dis);
+        sentNanos = read64BitsWord(dis);
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write64BitsWord(dos, sequence);
+        write64BitsWord(dos, sentNanos);
+    }
+
+    public String toString() {
+        return super.toString() + ",seq:" + sequence;
+    }
+
+}
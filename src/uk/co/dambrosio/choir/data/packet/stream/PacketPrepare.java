@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+
+/**
+ * Tells a client that one of its audio files will be played next, so that it can get
+ * ready to stream it as soon as the {@link PacketPlay} arrives
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketPrepare extends StreamPacket {
+    public static final String packetCode = "PREP";
+    public long musicId = AudioFile.NO_MUSIC_ID;
+
+    public PacketPrepare() {
+        super();
+    }
+
+    public PacketPrepare(long musicId) {
+        super();
+        this.musicId = musicId;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        musicId = read64BitsWord(dis);
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write64BitsWord(dos, musicId);
+    }
+
+    public String toString() {
+        return super.toString() + ",id:" + Long.toHexString(musicId);
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+
+/**
+ * Replication stream from the server to the standby peer, the one that takes over if the
+ * server goes away.
+ * Every packet lists all the peers connected to the server with the version of their state.
+ * The catalog and the shuffle bag of a peer are only included when they changed since the
+ * previous packet, so that a quiet group costs a few bytes per peer.
+ * A packet with {@link #standby} false tells the peer that it is not the standby anymore.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketReplica extends StreamPacket {
+    public static final String packetCode = "RPLC";
+
+    /**
+     * Maximum number of peers, and of entries per peer, accepted when reading a packet
+     */
+    public static final int MAX_ENTRIES = 1 << 20;
+
+    public boolean standby = false;
+
+    public long currentMusicId = AudioFile.NO_MUSIC_ID;
+
+    public long nextMusicId = AudioFile.NO_MUSIC_ID;
+
+    public final ArrayList<PeerState> peers = new ArrayList<>();
+
+    /**
+     * State of a peer as known by the server
+     */
+    public static class PeerState {
+        public long peerId;
+
+        public long version;
+
+        public long catalogDigest;
+
+        /**
+         * The audio files of the peer, or null if they did not change since the previous packet
+         */
+        public ArrayList<AudioFile> audioFiles = null;
+
+        /**
+         * Ids of the audio files not played yet since the last shuffle, or null together with
+         * {@link #audioFiles}
+         */
+        public ArrayList<Long> neverPlayedMusicIds = null;
+    }
+
+    public PacketReplica() {
+        super();
+    }
+
+    public PacketReplica(boolean standby) {
+        super();
+        this.standby = standby;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        standby = dis.readBoolean();
+        currentMusicId = read64BitsWord(dis);
+        nextMusicId = read64BitsWord(dis);
+        int peerCount = readCount(dis);
+        peers.clear();
+        peers.ensureCapacity(peerCount);
+        for (int i = 0; i < peerCount; i++) {
+            PeerState peer = new PeerState();
+            peer.peerId = read64BitsWord(dis);
+            peer.version = read64BitsWord(dis);
+            peer.catalogDigest = read64BitsWord(dis);
+            if (dis.readBoolean()) {
+                int audioFileCount = readCount(dis);
+                peer.audioFiles = new ArrayList<>(audioFileCount);
+                for (int j = 0; j < audioFileCount; j++) {
+                    AudioFile audioFile = new AudioFile();
+                    audioFile.setMusicId(read64BitsWord(dis));
+                    audioFile.setMusicTitle(readLengthPrefixedString(dis));
+                    readAudioFileMetadata(dis, audioFile);
+                    peer.audioFiles.add(audioFile);
+                }
+                int neverPlayedCount = readCount(dis);
+                peer.neverPlayedMusicIds = new ArrayList<>(neverPlayedCount);
+                for (int j = 0; j < neverPlayedCount; j++) {
+                    peer.neverPlayedMusicIds.add(read64BitsWord(dis));
+                }
+            }
+            peers.add(peer);
+        }
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        dos.writeBoolean(standby);
+        write64BitsWord(dos, currentMusicId);
+        write64BitsWord(dos, nextMusicId);
+        dos.writeInt(peers.size());
+        for (PeerState peer : peers) {
+            write64BitsWord(dos, peer.peerId);
+            write64BitsWord(dos, peer.version);
+            write64BitsWord(dos, peer.catalogDigest);
+            dos.writeBoolean(peer.audioFiles != null);
+            if (peer.audioFiles != null) {
+                dos.writeInt(peer.audioFiles.size());
+                for (AudioFile audioFile : peer.audioFiles) {
+                    write64BitsWord(dos, audioFile.getMusicId());
+                    writeLengthPrefixedString(dos, audioFile.getMusicTitle());
+                    writeAudioFileMetadata(dos, audioFile);
+                }
+                dos.writeInt(peer.neverPlayedMusicIds.size());
+                for (long musicId : peer.neverPlayedMusicIds) {
+                    write64BitsWord(dos, musicId);
+                }
+            }
+        }
+    }
+
+    private static int readCount(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("Invalid number of entries in replica packet: " + count);
+        }
+        return count;
+    }
+
+    public String toString() {
+        return super.toString() + ",standby:" + standby + ",peers:" + peers.size();
+    }
+
+}
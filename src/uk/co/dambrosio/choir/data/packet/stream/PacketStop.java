@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+
+/**
+ * Tells a client to stop streaming an audio file that has been handed over to another peer.
+ * The client does not send the end of stream packet, as the stream goes on from the other peer.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketStop extends StreamPacket {
+    public static final String packetCode = "STOP";
+    public long musicId = AudioFile.NO_MUSIC_ID;
+
+    public PacketStop() {
+        super();
+    }
+
+    public PacketStop(long musicId) {
+        super();
+        this.musicId = musicId;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        musicId = read64BitsWord(dis);
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write64BitsWord(dos, musicId);
+    }
+
+    public String toString() {
+        return super.toString() + ",id:" + Long.toHexString(musicId);
+    }
+
+}
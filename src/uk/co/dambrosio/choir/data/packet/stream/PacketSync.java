@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Catalog synchronization handshake.
+ * The client sends this packet as soon as it connects, with the digest of the catalog it
+ * announced the last time it was connected. The server answers with the same packet, carrying
+ * the digest of the catalog it still remembers for that peer: if the two digests match, the
+ * client only needs to announce the changes.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketSync extends StreamPacket {
+    public static final String packetCode = "SYNC";
+
+    /**
+     * Random identifier of the peer, stable across reconnections
+     */
+    public long peerId = 0L;
+
+    public long catalogDigest = 0L;
+
+    public PacketSync() {
+        super();
+    }
+
+    public PacketSync(long peerId, long catalogDigest) {
+        super();
+        this.peerId = peerId;
+        this.catalogDigest = catalogDigest;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        peerId = dis.readLong();
+        catalogDigest = dis.readLong();
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        dos.writeLong(peerId);
+        dos.writeLong(catalogDigest);
+    }
+
+    public String toString() {
+        return super.toString() + ", peer:" + Long.toHexString(peerId) + ", digest:" + Long.toHexString(catalogDigest);
+    }
+
+}
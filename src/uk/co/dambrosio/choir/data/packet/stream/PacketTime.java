@@ -0,0 +1,67 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Clock synchronization exchange between a client and the server, as in NTP.
+ * The client sends the packet with the time it has been sent; the server sends it back with
+ * the times it has been received and answered, measured by the server clock, which is the
+ * timeline shared by the group.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketTime extends StreamPacket {
+    public static final String packetCode = "TIME";
+
+    /**
+     * Time the request has been sent, measured by the client clock
+     */
+    public long clientSentNanos = 0L;
+
+    /**
+     * Time the request has been received, measured by the server clock
+     */
+    public long serverReceivedNanos = 0L;
+
+    /**
+     * Time the answer has been sent, measured by the server clock
+     */
+    public long serverSentNanos = 0L;
+
+    public PacketTime() {
+        super();
+    }
+
+    public PacketTime(long clientSentNanos) {
+        super();
+        this.clientSentNanos = clientSentNanos;
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        clientSentNanos = read64BitsWord(dis);
+        serverReceivedNanos = read64BitsWord(dis);
+        serverSentNanos = read64BitsWord(dis);
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write64BitsWord(dos, clientSentNanos);
+        write64BitsWord(dos, serverReceivedNanos);
+        write64BitsWord(dos, serverSentNanos);
+    }
+
+    public String toString() {
+        return super.toString() + ",sent:" + clientSentNanos;
+    }
+
+}
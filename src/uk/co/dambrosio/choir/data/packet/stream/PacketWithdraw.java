@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.data.packet.stream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Informs the server that a batch of previously announced files is not available anymore.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public class PacketWithdraw extends StreamPacket {
+    public static final String packetCode = "WTHD";
+
+    public static final int MAX_ENTRIES_PER_PACKET = 8192;
+
+    public final ArrayList<Long> musicIds = new ArrayList<>();
+
+    public PacketWithdraw() {
+        super();
+    }
+
+    public PacketWithdraw(Collection<Long> musicIds) {
+        super();
+        if (musicIds.size() > MAX_ENTRIES_PER_PACKET) {
+            throw new IllegalArgumentException("Too many entries for a single withdraw packet: " + musicIds.size());
+        }
+        this.musicIds.addAll(musicIds);
+    }
+
+    public void fromStream(DataInputStream dis) throws IOException {
+        super.fromStream(dis, packetCode);
+        readPayload(dis);
+    }
+
+    protected void readPayload(DataInputStream dis) throws IOException {
+        int count = read16BitsWord(dis);
+        musicIds.clear();
+        musicIds.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            musicIds.add(read64BitsWord(dis));
+        }
+    }
+
+    public void toStream(DataOutputStream dos) throws IOException {
+        super.toStream(dos, packetCode);
+        write16BitsWord(dos, (char) musicIds.size());
+        for (long musicId : musicIds) {
+            write64BitsWord(dos, musicId);
+        }
+    }
+
+    public String toString() {
+        return super.toString() + ", entries:" + musicIds.size();
+    }
+
+}
@@ -3,8 +3,10 @@
  */
 package uk.co.dambrosio.choir.data.packet.stream;
 
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.data.packet.Packet;
 import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
+import uk.co.dambrosio.choir.data.packet.exceptions.UnknownPacketException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -14,6 +16,59 @@ import java.io.IOException;
  * @author Giulio D'Ambrosio
  */
 public abstract class StreamPacket extends Packet {
+    /**
+     * Reads the next packet from a stream, whatever its type is
+     *
+     * @return Istanza di una delle classi discendenti da questa, in base al codice del pacchetto
+     * @throws IOException
+     */
+    static public StreamPacket readStreamPacket(DataInputStream dis) throws IOException {
+        StreamPacket packet;
+        String packetCode = readPacketCode(dis);
+        switch (packetCode) {
+            case PacketMusic.packetCode:
+                packet = new PacketMusic();
+                break;
+            case PacketCatalog.packetCode:
+                packet = new PacketCatalog();
+                break;
+            case PacketWithdraw.packetCode:
+                packet = new PacketWithdraw();
+                break;
+            case PacketSync.packetCode:
+                packet = new PacketSync();
+                break;
+            case PacketPlay.packetCode:
+                packet = new PacketPlay();
+                break;
+            case PacketPrepare.packetCode:
+                packet = new PacketPrepare();
+                break;
+            case PacketStop.packetCode:
+                packet = new PacketStop();
+                break;
+            case PacketCapabilities.packetCode:
+                packet = new PacketCapabilities();
+                break;
+            case PacketPing.packetCode:
+                packet = new PacketPing();
+                break;
+            case PacketPong.packetCode:
+                packet = new PacketPong();
+                break;
+            case PacketReplica.packetCode:
+                packet = new PacketReplica();
+                break;
+            case PacketTime.packetCode:
+                packet = new PacketTime();
+                break;
+            default:
+                throw new UnknownPacketException(packetCode);
+        }
+        packet.readPayload(dis);
+        return packet;
+    }
+
     public void fromStream(DataInputStream dis, String packetCode)
             throws IOException {
         String actualPacketCode = readPacketCode(dis);
@@ -26,4 +81,34 @@ public abstract class StreamPacket extends Packet {
             throws IOException {
         writePacketCode(dos, packetCode);
     }
+
+    /**
+     * Reads format, duration and length of an audio file
+     */
+    protected static void readAudioFileMetadata(final DataInputStream dis, final AudioFile audioFile)
+            throws IOException {
+        audioFile.setAudioFormat(readAudioFormat(dis));
+        audioFile.setDurationMicroseconds(dis.readLong());
+        audioFile.setByteLength(dis.readLong());
+    }
+
+    /**
+     * Writes format, duration and length of an audio file
+     */
+    protected static void writeAudioFileMetadata(final DataOutputStream dos, final AudioFile audioFile)
+            throws IOException {
+        writeAudioFormat(dos, audioFile.getAudioFormat());
+        dos.writeLong(audioFile.getDurationMicroseconds());
+        dos.writeLong(audioFile.getByteLength());
+    }
+
+    /**
+     * Writes the whole packet, code included
+     */
+    public abstract void toStream(DataOutputStream dos) throws IOException;
+
+    /**
+     * Reads the packet content following the packet code
+     */
+    protected abstract void readPayload(DataInputStream dis) throws IOException;
 }
@@ -0,0 +1,70 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+import uk.co.dambrosio.choir.data.packet.stream.PacketReplica;
+
+/**
+ * The state of the server as followed by the standby peer through the {@link PacketReplica}
+ * stream. If the server goes away, the standby starts a new server from this state: the
+ * catalogs of the peers are retained, so that they don't have to announce them again.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class ReplicatedState {
+    private HashMap<Long, PacketReplica.PeerState> peers = new HashMap<>();
+
+    private long currentMusicId = AudioFile.NO_MUSIC_ID;
+
+    private long nextMusicId = AudioFile.NO_MUSIC_ID;
+
+    /**
+     * Applies a packet of the replication stream. Peers not listed in the packet are forgotten.
+     */
+    public synchronized void apply(final PacketReplica packet) {
+        HashMap<Long, PacketReplica.PeerState> updatedPeers = new HashMap<>(packet.peers.size() * 2);
+        for (PacketReplica.PeerState peer : packet.peers) {
+            if (peer.audioFiles != null) {
+                updatedPeers.put(peer.peerId, peer);
+            } else {
+                PacketReplica.PeerState knownPeer = peers.get(peer.peerId);
+                if (knownPeer != null && knownPeer.version == peer.version) {
+                    updatedPeers.put(peer.peerId, knownPeer);
+                }
+            }
+        }
+        peers = updatedPeers;
+        currentMusicId = packet.currentMusicId;
+        nextMusicId = packet.nextMusicId;
+    }
+
+    /**
+     * @return the replicated state of each peer, with its catalog and shuffle bag
+     */
+    public synchronized ArrayList<PacketReplica.PeerState> getPeers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /**
+     * @return the id of the audio file being streamed when the state was last replicated
+     */
+    public synchronized long getCurrentMusicId() {
+        return currentMusicId;
+    }
+
+    /**
+     * @return the id of the audio file chosen to be streamed next
+     */
+    public synchronized long getNextMusicId() {
+        return nextMusicId;
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+}
@@ -17,7 +17,7 @@ public final class ServerAudioFile extends AudioFile {
 
     private boolean isBeingStreamed = false;
 
-    public ServerAudioFile(final char musicId, final String musicTitle,
+    public ServerAudioFile(final long musicId, final String musicTitle,
                            final ServerClientHandler ownerClientHandler) {
         super();
         if (ownerClientHandler == null) {
@@ -76,6 +76,36 @@ public final class ServerAudioFile extends AudioFile {
         ownerClientHandler.requestClientForAudioStreaming(this);
     }
 
+    /**
+     * Asks the owner client to take over the streaming of this audio file, interrupted on
+     * another client
+     *
+     * @param offset         how many bytes of the file have already been streamed
+     * @param timelineOffset a byte already streamed
+     * @param timelineNanos  instant of the group timeline at which timelineOffset is played
+     */
+    public void requestClientForAudioStreaming(final long offset, final long timelineOffset, final long timelineNanos)
+            throws Exception {
+        ownerClientHandler.requestClientForAudioStreaming(this, offset, timelineOffset, timelineNanos);
+    }
+
+    /**
+     * Asks the owner client to stop streaming this audio file, handed over to another client
+     */
+    public void requestClientToStop() throws IOException {
+        isBeingStreamed = false;
+        ownerClientHandler.requestClientToStop(this);
+    }
+
+    /**
+     * Asks the owner client to get ready to stream this audio file
+     *
+     * @throws IOException
+     */
+    public void requestClientToPrepare() throws IOException {
+        ownerClientHandler.requestClientToPrepare(this);
+    }
+
     /**
      * Notifica al thread che si occupa di comunicare con il client (ownerClientHandler
      * {@link ServerClientHandler}) che lo streaming di questo brano è
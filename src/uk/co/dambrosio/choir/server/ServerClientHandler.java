@@ -3,43 +3,74 @@
  */
 package uk.co.dambrosio.choir.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
+import javax.sound.sampled.AudioFormat;
+
+import uk.co.dambrosio.choir.common.AudioFile;
+import uk.co.dambrosio.choir.common.CatalogDigest;
+import uk.co.dambrosio.choir.common.Heartbeat;
+import uk.co.dambrosio.choir.common.RunningStatistics;
+import uk.co.dambrosio.choir.common.Transport;
+import uk.co.dambrosio.choir.data.packet.stream.PacketCapabilities;
+import uk.co.dambrosio.choir.data.packet.stream.PacketCatalog;
 import uk.co.dambrosio.choir.data.packet.stream.PacketMusic;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPing;
 import uk.co.dambrosio.choir.data.packet.stream.PacketPlay;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPong;
+import uk.co.dambrosio.choir.data.packet.stream.PacketPrepare;
+import uk.co.dambrosio.choir.data.packet.stream.PacketStop;
+import uk.co.dambrosio.choir.data.packet.stream.PacketTime;
+import uk.co.dambrosio.choir.data.packet.stream.PacketReplica;
+import uk.co.dambrosio.choir.data.packet.stream.PacketSync;
+import uk.co.dambrosio.choir.data.packet.stream.PacketWithdraw;
+import uk.co.dambrosio.choir.data.packet.stream.StreamPacket;
 import uk.co.dambrosio.choir.data.packet.exceptions.UnexpectedPacketException;
+import uk.co.dambrosio.choir.data.packet.exceptions.UnknownPacketException;
 
 /**
  * @author Giulio D'Ambrosio
  */
 public class ServerClientHandler implements Runnable {
 
-    private static final int HEARTBEAT_INTERVAL_MILLISECONDS = 4 * 1000;
+    private static final int CLIENT_STREAM_BUFFER_SIZE = 64 * 1024;
 
     /**
      * Flag: se false il thread che esegue questa istanza è chiuso o in
      * chiusura.
      */
-    private boolean alive = true;
+    private volatile boolean alive = true;
 
     private InetAddress clientAddress;
 
     private int clientPort;
 
-    private Socket socket;
+    private Transport.Connection socket;
 
     /**
      * Input stream derivato da {@link #socket}.
      */
     private DataInputStream dis;
 
+    /**
+     * Output stream derivato da {@link #socket}.
+     */
+    private final DataOutputStream dos;
+
     /**
      * Brano (eventualmente null) attualmente in streaming presso il client.
      */
@@ -50,6 +81,8 @@ public class ServerClientHandler implements Runnable {
      */
     private final ServerPlaylistStreamingManager serverPlaylistManager;
 
+    private final ServerMain mainServer;
+
     /**
      * Thread attualmente in esecuzione associato a questa istanza.
      */
@@ -59,22 +92,86 @@ public class ServerClientHandler implements Runnable {
 
     private ArrayList<ServerAudioFile> neverPlayedAudioFiles;
 
+    private final HashMap<Long, ServerAudioFile> audioFilesById;
+
+    /**
+     * Digest of {@link #availableAudioFiles}, as computed by {@link CatalogDigest}
+     */
+    private long catalogDigest = CatalogDigest.EMPTY;
+
+    /**
+     * Source of the state versions of all the handlers: a client that reconnects gets a new
+     * handler, whose versions must not repeat the ones replicated for the previous one
+     */
+    private static final AtomicLong STATE_VERSIONS = new AtomicLong();
+
+    /**
+     * Changed every time the catalog or the shuffle bag change, so that the replication
+     * stream only carries the peers whose state changed
+     */
+    private long stateVersion = STATE_VERSIONS.incrementAndGet();
+
+    /**
+     * Peer id sent by the client in the {@link PacketSync} handshake, or null
+     */
+    private volatile Long peerId = null;
+
+    /**
+     * Audio formats the client can render, or null until it has declared them
+     */
+    private volatile PacketCapabilities capabilities = null;
+
+    /**
+     * Streaming quality of the client, as measured by the server
+     */
+    private final StreamingQuality streamingQuality = new StreamingQuality();
+
+    /**
+     * Number of times the client could have been chosen to stream an audio file, but was not.
+     * Only accessed while holding the lock of {@link ServerMain}.
+     */
+    private int missedSelections = 0;
+
+    /**
+     * Task sending a {@link PacketPing} every {@link Heartbeat#INTERVAL_MILLISECONDS}
+     */
+    private ScheduledFuture<?> heartbeat = null;
+
+    /**
+     * Sequence number of the next ping. Only accessed by the heartbeat thread.
+     */
+    private long pingSequence = 0L;
+
+    /**
+     * Number of pings sent since the last pong has been received
+     */
+    private volatile int missedPongs = 0;
+
+    /**
+     * Round trip time of the pings, in milliseconds
+     */
+    private final RunningStatistics roundTripStatistics = new RunningStatistics();
+
     /**
      * Thread collegato a singola socket tcp di singolo client.
      *
-     * @param socket Socket tcp già connessa al client
+     * @param socket     Connessione di controllo già stabilita con il client
+     * @param mainServer Istanza del server
      * @throws IOException
      */
-    public ServerClientHandler(final Socket socket, ServerPlaylistStreamingManager serverPlaylistManager)
+    public ServerClientHandler(final Transport.Connection socket, final ServerMain mainServer)
             throws IOException {
         this.socket = socket;
-        this.serverPlaylistManager = serverPlaylistManager;
+        this.mainServer = mainServer;
+        this.serverPlaylistManager = mainServer.getPlaylistManager();
         clientAddress = socket.getInetAddress();
         clientPort = socket.getPort();
-        dis = new DataInputStream(socket.getInputStream());
-        socket.setSoTimeout(HEARTBEAT_INTERVAL_MILLISECONDS * 1000);
+        dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CLIENT_STREAM_BUFFER_SIZE));
+        dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        socket.setSoTimeout(Heartbeat.getTimeoutMilliseconds());
         availableAudioFiles = new ArrayList<>();
         neverPlayedAudioFiles = new ArrayList<>();
+        audioFilesById = new HashMap<>();
     }
 
     /**
@@ -86,6 +183,19 @@ public class ServerClientHandler implements Runnable {
 
     public final void requestClientForAudioStreaming(final ServerAudioFile audioFile)
             throws Exception {
+        requestClientForAudioStreaming(audioFile, 0L, 0L, 0L);
+    }
+
+    /**
+     * Asks the client to stream an audio file starting from a byte of the file
+     *
+     * @param offset         how many bytes of the file have already been streamed by another client
+     * @param timelineOffset a byte already streamed by the other client
+     * @param timelineNanos  instant of the group timeline at which timelineOffset is played
+     */
+    public final void requestClientForAudioStreaming(final ServerAudioFile audioFile, final long offset,
+                                                     final long timelineOffset, final long timelineNanos)
+            throws Exception {
         PacketPlay p;
 
         if (streamingAudioFile != null) {
@@ -98,10 +208,37 @@ public class ServerClientHandler implements Runnable {
                 audioFile.getMusicTitle()
         );
         System.err.println();
-        p = new PacketPlay(audioFile.getMusicId());
+        p = new PacketPlay(audioFile.getMusicId(), offset, timelineOffset, timelineNanos);
         streamingAudioFile = audioFile;
 
-        p.toStream(new DataOutputStream(socket.getOutputStream()));
+        sendPacket(p);
+    }
+
+    /**
+     * Tells the client to stop streaming an audio file that has been handed over to another client
+     */
+    public final void requestClientToStop(final ServerAudioFile audioFile) throws IOException {
+        streamingEnded(audioFile);
+        sendPacket(new PacketStop(audioFile.getMusicId()));
+    }
+
+    /**
+     * Tells the client that one of its audio files will be streamed next
+     */
+    public final void requestClientToPrepare(final ServerAudioFile audioFile) throws IOException {
+        sendPacket(new PacketPrepare(audioFile.getMusicId()));
+    }
+
+    /**
+     * Sends a packet to the client
+     *
+     * @throws IOException
+     */
+    public final void sendPacket(final StreamPacket packet) throws IOException {
+        synchronized (dos) {
+            packet.toStream(dos);
+            dos.flush();
+        }
     }
 
     public final void streamingEnded(ServerAudioFile audioFile)  {
@@ -113,11 +250,21 @@ public class ServerClientHandler implements Runnable {
     public final void start() {
         this.runningThread = new Thread(this);
         this.runningThread.start();
+        heartbeat = mainServer.getHeartbeatScheduler().scheduleAtFixedRate(
+                this::sendPing,
+                Heartbeat.INTERVAL_MILLISECONDS,
+                Heartbeat.INTERVAL_MILLISECONDS,
+                TimeUnit.MILLISECONDS
+        );
     }
 
     public final void stop() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
         if (alive) {
             alive = false;
+            closeSocket();
             if (runningThread != null && runningThread.isAlive()) {
                 try {
                     runningThread.join();
@@ -130,27 +277,78 @@ public class ServerClientHandler implements Runnable {
 
     /**
      * Picks a random audio file among the ones that have not been yet played ({@link #neverPlayedAudioFiles})
+     * and can be scheduled
+     *
+     * @param schedulable tells which audio files can be scheduled
      */
     @SuppressWarnings("unchecked")
-    public final ServerAudioFile pickRandomAudioFile() throws IOException {
+    public final synchronized ServerAudioFile pickRandomAudioFile(final Predicate<ServerAudioFile> schedulable)
+            throws IOException {
         ServerAudioFile res;
         int i;
         if (!alive || availableAudioFiles.size() == 0) {
             return null;
         }
-        if (neverPlayedAudioFiles.size() == 0) {
+        ArrayList<Integer> candidates = getSchedulableIndexes(neverPlayedAudioFiles, schedulable);
+        if (candidates.size() == 0) {
             neverPlayedAudioFiles = (ArrayList<ServerAudioFile>) availableAudioFiles.clone();
+            candidates = getSchedulableIndexes(neverPlayedAudioFiles, schedulable);
+            if (candidates.size() == 0) {
+                return null;
+            }
         }
-        i = (int) Math.round(Math.random() * (neverPlayedAudioFiles.size() - 1));
+        i = candidates.get((int) Math.round(Math.random() * (candidates.size() - 1)));
         res = neverPlayedAudioFiles.get(i);
         neverPlayedAudioFiles.remove(i);
+        stateVersion = STATE_VERSIONS.incrementAndGet();
         return res;
     }
 
+    private static ArrayList<Integer> getSchedulableIndexes(final ArrayList<ServerAudioFile> audioFiles,
+                                                            final Predicate<ServerAudioFile> schedulable) {
+        ArrayList<Integer> result = new ArrayList<>(audioFiles.size());
+        for (int i = 0; i < audioFiles.size(); i++) {
+            if (schedulable.test(audioFiles.get(i))) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the client is connected and still sharing the audio file
+     */
+    public final synchronized boolean isSharing(final ServerAudioFile audioFile) {
+        return alive && audioFilesById.get(audioFile.getMusicId()) == audioFile;
+    }
+
+    /**
+     * @return true se il client condivide almeno un brano
+     */
+    public final synchronized boolean hasAudioFiles() {
+        return alive && availableAudioFiles.size() > 0;
+    }
+
+    /**
+     * @param schedulable tells which audio files can be scheduled
+     * @return true if the client shares at least an audio file that can be scheduled
+     */
+    public final synchronized boolean hasAudioFiles(final Predicate<ServerAudioFile> schedulable) {
+        if (!alive) {
+            return false;
+        }
+        for (ServerAudioFile audioFile : availableAudioFiles) {
+            if (schedulable.test(audioFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
-     * @return il socket associato a questo client
+     * @return la connessione di controllo associata a questo client
      */
-    public final Socket getSocket() {
+    public final Transport.Connection getSocket() {
         return socket;
     }
 
@@ -158,23 +356,216 @@ public class ServerClientHandler implements Runnable {
     public final void run() {
 
         while (alive) {
-            PacketMusic packetMusic = receiveMusicPacket();
-            if (packetMusic != null) {
-                addAudioFile(packetMusic.musicId, packetMusic.musicTitle);
+            StreamPacket packet = receivePacket();
+            long receivedNanos = System.nanoTime();
+            if (packet instanceof PacketCatalog) {
+                addAudioFiles(((PacketCatalog) packet).audioFiles);
+            } else if (packet instanceof PacketWithdraw) {
+                removeAudioFiles(((PacketWithdraw) packet).musicIds);
+            } else if (packet instanceof PacketMusic) {
+                addAudioFile(((PacketMusic) packet).toAudioFile());
+            } else if (packet instanceof PacketSync) {
+                synchronizeCatalog((PacketSync) packet);
+            } else if (packet instanceof PacketCapabilities) {
+                setCapabilities((PacketCapabilities) packet);
+            } else if (packet instanceof PacketPong) {
+                pongArrived((PacketPong) packet);
+            } else if (packet instanceof PacketTime) {
+                answerTime((PacketTime) packet, receivedNanos);
             }
         }
 
         stop();
+        closeSocket();
+        retainCatalog();
+        serverPlaylistManager.clientHandlerDisconnected(this);
+    }
+
+    /**
+     * Answers the catalog synchronization handshake. If the server remembers a catalog for the
+     * client peer id with the same digest the client expects, the catalog is restored and
+     * the client will only announce the changes.
+     */
+    private void synchronizeCatalog(final PacketSync packet) {
+        ServerMain.RetainedCatalog retainedCatalog = mainServer.takeRetainedCatalog(packet.peerId);
+        boolean restored = retainedCatalog != null && retainedCatalog.digest == packet.catalogDigest;
+        // The reply is written before the peer id and the restored audio files become visible:
+        // until then neither the replication stream nor the playlist manager can write to the client
+        synchronized (this) {
+            if (restored) {
+                for (AudioFile retainedAudioFile : retainedCatalog.audioFiles) {
+                    putAudioFile(retainedAudioFile);
+                }
+                if (retainedCatalog.neverPlayedMusicIds != null) {
+                    restoreNeverPlayedAudioFiles(retainedCatalog.neverPlayedMusicIds);
+                }
+            }
+            try {
+                sendPacket(new PacketSync(packet.peerId, catalogDigest));
+            } catch (IOException e) {
+                alive = false;
+                e.printStackTrace();
+            }
+            peerId = packet.peerId;
+        }
+        if (restored) {
+            System.out.printf(
+                    "[ServerMain] client from %s reconnected: restored its %d audio files",
+                    getAddressAsString(),
+                    retainedCatalog.audioFiles.size()
+            );
+            System.out.println();
+        }
+        if (hasAudioFiles()) {
+            serverPlaylistManager.audioFileAdded();
+        }
+    }
+
+    /**
+     * Asks the server to remember the catalog of this client, in case it reconnects
+     */
+    private void retainCatalog() {
+        ArrayList<AudioFile> audioFiles;
+        ArrayList<Long> neverPlayedMusicIds;
+        if (peerId == null) {
+            return;
+        }
+        synchronized (this) {
+            audioFiles = new ArrayList<>(availableAudioFiles);
+            neverPlayedMusicIds = getNeverPlayedMusicIds();
+        }
+        mainServer.retainCatalog(peerId, getCatalogDigest(), audioFiles, neverPlayedMusicIds);
+    }
+
+    /**
+     * Must be called while holding the lock on this instance.
+     */
+    private ArrayList<Long> getNeverPlayedMusicIds() {
+        ArrayList<Long> musicIds = new ArrayList<>(neverPlayedAudioFiles.size());
+        for (ServerAudioFile audioFile : neverPlayedAudioFiles) {
+            musicIds.add(audioFile.getMusicId());
+        }
+        return musicIds;
+    }
+
+    /**
+     * Restores the shuffle bag, so that the audio files already played are not played again
+     * before the others. Must be called while holding the lock on this instance.
+     */
+    private void restoreNeverPlayedAudioFiles(final ArrayList<Long> neverPlayedMusicIds) {
+        neverPlayedAudioFiles.clear();
+        for (long musicId : neverPlayedMusicIds) {
+            ServerAudioFile audioFile = audioFilesById.get(musicId);
+            if (audioFile != null) {
+                neverPlayedAudioFiles.add(audioFile);
+            }
+        }
+        stateVersion = STATE_VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * @param knownVersion version of the state last replicated to the standby, or -1
+     * @return the state of the client for the replication stream, with its catalog and
+     * shuffle bag only if they changed since knownVersion. Null before the catalog handshake.
+     */
+    public final synchronized PacketReplica.PeerState getReplicaState(final long knownVersion) {
+        if (peerId == null) {
+            return null;
+        }
+        PacketReplica.PeerState state = new PacketReplica.PeerState();
+        state.peerId = peerId;
+        state.version = stateVersion;
+        state.catalogDigest = catalogDigest;
+        if (stateVersion != knownVersion) {
+            state.audioFiles = new ArrayList<>(availableAudioFiles);
+            state.neverPlayedMusicIds = getNeverPlayedMusicIds();
+        }
+        return state;
+    }
+
+    /**
+     * @return the audio file with the given id shared by the client, or null
+     */
+    public final synchronized ServerAudioFile getAudioFile(final long musicId) {
+        return alive ? audioFilesById.get(musicId) : null;
+    }
+
+    /**
+     * Sends the next ping, unless the client has missed too many of them: in that case
+     * the client is evicted straight away and its connection closed.
+     */
+    private void sendPing() {
+        if (!alive) {
+            return;
+        }
+        if (missedPongs >= Heartbeat.MAXIMUM_MISSED_PONGS) {
+            System.err.printf(
+                    "[ServerMain] Client from %s did not answer %d pings: dropping it",
+                    getAddressAsString(),
+                    missedPongs
+            );
+            System.err.println();
+            alive = false;
+            mainServer.removeClient(this);
+            closeSocket();
+            return;
+        }
+        missedPongs++;
+        try {
+            sendPacket(new PacketPing(pingSequence++, System.nanoTime()));
+        } catch (IOException e) {
+            alive = false;
+            closeSocket();
+        }
     }
 
-    private PacketMusic receiveMusicPacket() {
-        PacketMusic packetMusic = null;
+    private void pongArrived(final PacketPong packet) {
+        missedPongs = 0;
+        roundTripStatistics.add((System.nanoTime() - packet.sentNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Answers the clock synchronization request of the client with the server clock, which is
+     * the timeline of the group
+     */
+    private void answerTime(final PacketTime packet, final long receivedNanos) {
+        packet.serverReceivedNanos = receivedNanos;
+        packet.serverSentNanos = System.nanoTime();
+        try {
+            sendPacket(packet);
+        } catch (IOException e) {
+            // The connection is lost: the reading thread will find out
+        }
+    }
+
+    /**
+     * Closes the connection: the thread reading from it, if any, gets an exception and terminates
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private synchronized long getCatalogDigest() {
+        return catalogDigest;
+    }
+
+    private StreamPacket receivePacket() {
+        StreamPacket packet = null;
         try {
-            packetMusic = new PacketMusic();
-            packetMusic.fromStream(dis);
+            packet = StreamPacket.readStreamPacket(dis);
         } catch (SocketTimeoutException e) {
-            // Heartbeat timeout
-        } catch (SocketException e) {
+            System.err.printf(
+                    "[ServerMain] Client from %s has been silent for %d ms: dropping it",
+                    getAddressAsString(),
+                    Heartbeat.getTimeoutMilliseconds()
+            );
+            System.err.println();
+            alive = false;
+        } catch (SocketException | EOFException e) {
             System.err.printf(
                     "[ServerMain] Lost connection with the client from %s. Error: %s",
                     getAddressAsString(),
@@ -182,7 +573,7 @@ public class ServerClientHandler implements Runnable {
             );
             System.err.println();
             alive = false;
-        } catch (UnexpectedPacketException e) {
+        } catch (UnexpectedPacketException | UnknownPacketException e) {
             alive = false;
             System.err.printf(
                     "[ServerMain] Client from %s has sent an unexpected packet. Error: %s",
@@ -194,22 +585,142 @@ public class ServerClientHandler implements Runnable {
             e.printStackTrace();
             alive = false;
         }
-        return packetMusic;
+        return packet;
+    }
+
+    private void addAudioFiles(final ArrayList<AudioFile> audioFiles) {
+        synchronized (this) {
+            for (AudioFile announcedAudioFile : audioFiles) {
+                putAudioFile(announcedAudioFile);
+            }
+        }
+        System.out.printf(
+                "[ServerMain] client from %s added %d audio files",
+                getAddressAsString(),
+                audioFiles.size()
+        );
+        System.out.println();
+        serverPlaylistManager.audioFileAdded();
     }
 
-    private void addAudioFile(char musicId, String musicTitle) {
+    private void addAudioFile(final AudioFile announcedAudioFile) {
         ServerAudioFile audioFile;
-        audioFile = new ServerAudioFile(musicId, musicTitle, this);
-        availableAudioFiles.add(audioFile);
-        neverPlayedAudioFiles.add(audioFile);
+        synchronized (this) {
+            audioFile = putAudioFile(announcedAudioFile);
+        }
         System.out.printf(
                 "[ServerMain] client from %s added an audio file: '%s'",
                 getAddressAsString(),
                 audioFile.getMusicTitle()
         );
         System.out.println();
-        synchronized (serverPlaylistManager) {
-            serverPlaylistManager.notify();
+        serverPlaylistManager.audioFileAdded();
+    }
+
+    private void removeAudioFiles(final ArrayList<Long> musicIds) {
+        int removed = 0;
+        synchronized (this) {
+            for (long musicId : musicIds) {
+                if (removeAudioFile(musicId) != null) {
+                    removed++;
+                }
+            }
+        }
+        System.out.printf(
+                "[ServerMain] client from %s withdrew %d audio files",
+                getAddressAsString(),
+                removed
+        );
+        System.out.println();
+    }
+
+    /**
+     * Records the audio formats the client can render
+     */
+    private void setCapabilities(final PacketCapabilities packet) {
+        capabilities = packet;
+        System.out.printf(
+                "[ServerMain] client from %s can render %s",
+                getAddressAsString(),
+                packet.anyAudioFormat ? "any audio format" : packet.audioFormats.size() + " audio formats"
+        );
+        System.out.println();
+        // Audio files that no client could render may be playable now
+        serverPlaylistManager.audioFileAdded();
+    }
+
+    /**
+     * @return true if the client has declared that it can render the audio format
+     */
+    public final boolean canRender(final AudioFormat audioFormat) {
+        PacketCapabilities currentCapabilities = capabilities;
+        return alive && currentCapabilities != null && currentCapabilities.canRender(audioFormat);
+    }
+
+    /**
+     * @return false if the client has not answered the last pings
+     */
+    public final boolean isResponsive() {
+        return alive && missedPongs <= 1;
+    }
+
+    /**
+     * @return statistics of the round trip time of the heartbeat, in milliseconds
+     */
+    public final RunningStatistics getRoundTripStatistics() {
+        return roundTripStatistics;
+    }
+
+    /**
+     * @return the peer id sent by the client in the catalog handshake, or null
+     */
+    public final Long getPeerId() {
+        return peerId;
+    }
+
+    public final StreamingQuality getStreamingQuality() {
+        return streamingQuality;
+    }
+
+    final int getMissedSelections() {
+        return missedSelections;
+    }
+
+    final void setMissedSelections(final int missedSelections) {
+        this.missedSelections = missedSelections;
+    }
+
+    /**
+     * Adds an audio file to the collection, replacing any previous audio file with the same id.
+     * Must be called while holding the lock on this instance.
+     */
+    private ServerAudioFile putAudioFile(final AudioFile announcedAudioFile) {
+        long musicId = announcedAudioFile.getMusicId();
+        ServerAudioFile audioFile = new ServerAudioFile(musicId, announcedAudioFile.getMusicTitle(), this);
+        audioFile.copyMetadata(announcedAudioFile);
+        removeAudioFile(musicId);
+        audioFilesById.put(musicId, audioFile);
+        availableAudioFiles.add(audioFile);
+        neverPlayedAudioFiles.add(audioFile);
+        catalogDigest = CatalogDigest.add(catalogDigest, audioFile);
+        stateVersion = STATE_VERSIONS.incrementAndGet();
+        return audioFile;
+    }
+
+    /**
+     * Removes an audio file from the collection.
+     * Must be called while holding the lock on this instance.
+     *
+     * @return the removed audio file, or null
+     */
+    private ServerAudioFile removeAudioFile(final long musicId) {
+        ServerAudioFile audioFile = audioFilesById.remove(musicId);
+        if (audioFile != null) {
+            availableAudioFiles.remove(audioFile);
+            neverPlayedAudioFiles.remove(audioFile);
+            catalogDigest = CatalogDigest.remove(catalogDigest, audioFile);
+            stateVersion = STATE_VERSIONS.incrementAndGet();
         }
+        return audioFile;
     }
 }
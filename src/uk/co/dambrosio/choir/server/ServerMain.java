@@ -5,19 +5,31 @@ package uk.co.dambrosio.choir.server;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.sound.sampled.AudioFormat;
 
 import uk.co.dambrosio.choir.client.Client;
+import uk.co.dambrosio.choir.common.AudioFile;
+import uk.co.dambrosio.choir.common.Election;
+import uk.co.dambrosio.choir.common.Heartbeat;
+import uk.co.dambrosio.choir.common.HelloPacketListener;
 import uk.co.dambrosio.choir.common.PacketDispatcher;
 import uk.co.dambrosio.choir.common.JoinPacketListener;
+import uk.co.dambrosio.choir.common.TokenBucket;
+import uk.co.dambrosio.choir.common.Transport;
 import uk.co.dambrosio.choir.data.packet.datagram.DatagramPacket;
 import uk.co.dambrosio.choir.data.packet.datagram.PacketHello;
+import uk.co.dambrosio.choir.data.packet.stream.PacketReplica;
 
 /**
  * Thread principale del server. Ascolta il socket multicast in attesa di
@@ -26,26 +38,54 @@ import uk.co.dambrosio.choir.data.packet.datagram.PacketHello;
  *
  * @author Giulio D'Ambrosio
  */
-public class ServerMain implements JoinPacketListener, Runnable {
+public class ServerMain implements JoinPacketListener, HelloPacketListener, Runnable {
     /**
      * Maximum frequency in sending hello packets, replying to join packets
      * dealing with the same client
      */
     private static final long MAX_HELLO_PACKET_FREQ = 1000L;
 
+    /**
+     * Interval between two hello packets sent to the group even if no client asked for them,
+     * from the choir.beacon.interval.ms system property. Joining clients hear them without
+     * having to send a join packet.
+     */
+    private static final long HELLO_BEACON_INTERVAL_MILLISECONDS =
+            Math.max(100L, Long.getLong("choir.beacon.interval.ms", 3000L));
+
+    /**
+     * Largest burst of hello packets sent in reply to join packets
+     */
+    private static final int HELLO_REPLY_BURST = 4;
+
+    /**
+     * Long term rate of the hello packets sent in reply to join packets
+     */
+    private static final double HELLO_REPLIES_PER_SECOND = 2.0d;
+
+    /**
+     * Maximum number of clients remembered in {@link #lastHelloedClientTimestamps}
+     */
+    private static final int MAX_HELLOED_CLIENTS = 1024;
+
     private static final int HEARTBEAT_INTERVAL_MILLISECONDS = 5 * 1000;
 
+    /**
+     * Maximum number of catalogs of disconnected clients remembered by the server
+     */
+    private static final int MAX_RETAINED_CATALOGS = 256;
+
     /**
      * Flag: se false, il server è chiuso o in chiusura.
      */
-    private boolean alive = true;
+    private volatile boolean alive = true;
 
     /**
      * Thread principale del server.
      */
     private Thread runningThread;
 
-    private ServerSocket serverSocket;
+    private Transport.Listener serverSocket;
 
     private InetAddress multicastGroupAddress;
 
@@ -68,12 +108,78 @@ public class ServerMain implements JoinPacketListener, Runnable {
      */
     private ServerClientHandler lastChosenClient;
 
-    private final ConcurrentHashMap<InetAddress, Long> lastHelloedClientTimestamps;
+    /**
+     * Time of the last hello packet sent in reply to each client, as given by {@link System#nanoTime()}.
+     * The least recently helloed clients are forgotten, and entries older than
+     * {@link #MAX_HELLO_PACKET_FREQ} are ignored and removed.
+     */
+    private final LinkedHashMap<InetAddress, Long> lastHelloedClientTimestamps =
+            new LinkedHashMap<InetAddress, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, Long> eldest) {
+                    return size() > MAX_HELLOED_CLIENTS;
+                }
+            };
+
+    /**
+     * Limits the hello packets sent in reply to join packets, whatever client sent them
+     */
+    private final TokenBucket helloReplyBucket = new TokenBucket(HELLO_REPLY_BURST, HELLO_REPLIES_PER_SECOND);
+
+    /**
+     * Time the last hello packet has been sent to the group, as given by {@link System#nanoTime()}
+     */
+    private volatile long lastHelloNanos = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+
+    /**
+     * Thread sending the heartbeat to all the clients and the hello beacon to the group
+     */
+    private final ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ServerHeartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Catalogs of the clients that lost their connection, by peer id: if the client
+     * reconnects, it only has to announce the changes.
+     */
+    private final LinkedHashMap<Long, RetainedCatalog> retainedCatalogs =
+            new LinkedHashMap<Long, RetainedCatalog>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, RetainedCatalog> eldest) {
+                    return size() > MAX_RETAINED_CATALOGS;
+                }
+            };
 
     private Client localClient;
 
     private char serverSocketPort;
 
+    /**
+     * Priority of this server in the election, see {@link Election}
+     */
+    private int electionPriority = Election.LOCAL_PRIORITY;
+
+    /**
+     * The client that follows the state of this server through the replication stream,
+     * and takes over if this server goes away. Only accessed by the heartbeat thread.
+     */
+    private ServerClientHandler standby = null;
+
+    /**
+     * Version of the state of each peer last replicated to the standby.
+     * Only accessed by the heartbeat thread.
+     */
+    private HashMap<Long, Long> replicatedVersions = new HashMap<>();
+
+    /**
+     * Audio file that was being streamed when this server took over, and the one chosen to follow it
+     */
+    private long adoptedMusicId = AudioFile.NO_MUSIC_ID;
+
+    private long adoptedNextMusicId = AudioFile.NO_MUSIC_ID;
+
     public ServerMain(final String multicastGroupAddress, final char multicastGroupPort,
                       final char serverSocketPort, final Client localClient) throws IOException {
         super();
@@ -85,15 +191,10 @@ public class ServerMain implements JoinPacketListener, Runnable {
 
         tryToCreateServerSocket();
 
-        if ((packetDispatcher = localClient.getPacketDispatcher()) == null) {
-            packetDispatcher = new PacketDispatcher(this.multicastGroupAddress, multicastGroupPort);
-            localClient.setPacketDispatcher(packetDispatcher);
-        }
-
-        packetDispatcher.start();
+        // The multicast group is shared with the local client, which owns it
+        packetDispatcher = localClient.getPacketDispatcher();
 
         clientHandlers = new ArrayList<>();
-        lastHelloedClientTimestamps = new ConcurrentHashMap<>();
     }
 
 
@@ -101,21 +202,55 @@ public class ServerMain implements JoinPacketListener, Runnable {
         return playlistManager;
     }
 
+    public final ScheduledExecutorService getHeartbeatScheduler() {
+        return heartbeatScheduler;
+    }
+
+    /**
+     * Restores the state replicated from a server that went away. Must be called before
+     * {@link #start()}: the catalogs of the peers are retained, so that they are restored
+     * when the peers reconnect, and the audio file being streamed is left to finish.
+     */
+    public final void restore(final ReplicatedState replicatedState) {
+        electionPriority = Election.STANDBY_PRIORITY;
+        for (PacketReplica.PeerState peer : replicatedState.getPeers()) {
+            retainCatalog(peer.peerId, peer.catalogDigest, peer.audioFiles, peer.neverPlayedMusicIds);
+        }
+        adoptedMusicId = replicatedState.getCurrentMusicId();
+        adoptedNextMusicId = replicatedState.getNextMusicId();
+        System.err.printf(
+                "[ServerMain] Taking over: restored the state of %d peers",
+                replicatedState.size()
+        );
+        System.err.println();
+    }
+
     /**
      * Starts all the threads
      * @throws IOException
      */
     public final void start() throws IOException {
-        packetDispatcher.registerListener(this);
         playlistManager = new ServerPlaylistStreamingManager(multicastGroupAddress, multicastGroupPort, this);
 
         runningThread = new Thread(this);
-        playlistManager.setRunningThread(new Thread(playlistManager));
 
         runningThread.start();
-        playlistManager.getRunningThread().start();
-
-        packetDispatcher.start();
+        playlistManager.start(adoptedMusicId, adoptedNextMusicId);
+        heartbeatScheduler.scheduleAtFixedRate(
+                this::sendHelloBeacon,
+                0L,
+                HELLO_BEACON_INTERVAL_MILLISECONDS,
+                TimeUnit.MILLISECONDS
+        );
+        heartbeatScheduler.scheduleAtFixedRate(
+                this::replicateToStandby,
+                Heartbeat.INTERVAL_MILLISECONDS,
+                Heartbeat.INTERVAL_MILLISECONDS,
+                TimeUnit.MILLISECONDS
+        );
+        // Registered last: a server with a higher rank may make this one step down at once
+        packetDispatcher.registerListener((JoinPacketListener) this);
+        packetDispatcher.registerListener((HelloPacketListener) this);
     }
 
     /**
@@ -123,12 +258,74 @@ public class ServerMain implements JoinPacketListener, Runnable {
      *
      * @throws InterruptedException
      */
-    public final synchronized void stop() throws InterruptedException {
+    public final void stop() throws InterruptedException {
+        ArrayList<ServerClientHandler> clients;
         alive = false;
-        packetDispatcher.stop();
-        for (ServerClientHandler c : clientHandlers) {
+        if (playlistManager != null) {
+            playlistManager.stop();
+        }
+        packetDispatcher.unregisterListener((JoinPacketListener) this);
+        packetDispatcher.unregisterListener((HelloPacketListener) this);
+        synchronized (this) {
+            clients = new ArrayList<>(clientHandlers);
+        }
+        // Handlers are stopped without holding the lock, as their threads remove themselves from the registry
+        for (ServerClientHandler c : clients) {
             stopClient(c);
         }
+        heartbeatScheduler.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Another server has been found in the group: if it outranks this one, this server
+     * steps down, and its clients will connect to the other one
+     */
+    @Override
+    public final void packetArrived(final PacketHello packet) {
+        if (!alive || packet.peerId == localClient.getPeerId()
+                || !Election.outranks(packet.priority, packet.peerId, electionPriority, localClient.getPeerId())) {
+            return;
+        }
+        System.err.printf(
+                "[ServerMain] Found a server with higher rank at %s:%d: stepping down",
+                packet.serverAddress,
+                (int) packet.serverPort
+        );
+        System.err.println();
+        alive = false;
+        Thread stepDownThread = new Thread(this::stepDown, "ServerStepDown");
+        stepDownThread.start();
+    }
+
+    /**
+     * Closes the server, leaving the packet dispatcher to the local client. The connections
+     * with the clients are closed, so that they look for the new server.
+     */
+    private void stepDown() {
+        ArrayList<ServerClientHandler> clients;
+        packetDispatcher.unregisterListener((JoinPacketListener) this);
+        packetDispatcher.unregisterListener((HelloPacketListener) this);
+        heartbeatScheduler.shutdownNow();
+        if (playlistManager != null) {
+            playlistManager.stop();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        synchronized (this) {
+            clients = new ArrayList<>(clientHandlers);
+        }
+        // Handlers are stopped without holding the lock, as their threads remove themselves from the registry
+        for (ServerClientHandler client : clients) {
+            client.stop();
+        }
     }
 
     public final void packetArrived(DatagramPacket.PacketJoin packet) {
@@ -137,7 +334,8 @@ public class ServerMain implements JoinPacketListener, Runnable {
         try {
             clientAddress = packet.getRawPacket().getAddress();
 
-            if (hasBeenHelloedMoreThanMillisecondsAgo(clientAddress, MAX_HELLO_PACKET_FREQ)) {
+            if (hasBeenHelloedMoreThanMillisecondsAgo(clientAddress, MAX_HELLO_PACKET_FREQ)
+                    && helloReplyBucket.tryAcquire()) {
                 sayHello(multicastGroupAddress, multicastGroupPort);
                 clientHelloed(clientAddress);
                 System.err.printf(
@@ -167,8 +365,14 @@ public class ServerMain implements JoinPacketListener, Runnable {
                                                                final long milliseconds) {
         synchronized (lastHelloedClientTimestamps) {
             Long lastTimestamp = lastHelloedClientTimestamps.get(clientAddress);
-            return (lastTimestamp == null
-                    || ((Calendar.getInstance().getTimeInMillis() - lastTimestamp) > milliseconds));
+            if (lastTimestamp == null) {
+                return true;
+            }
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastTimestamp) > milliseconds) {
+                lastHelloedClientTimestamps.remove(clientAddress);
+                return true;
+            }
+            return false;
         }
     }
 
@@ -180,11 +384,7 @@ public class ServerMain implements JoinPacketListener, Runnable {
      */
     private void clientHelloed(final InetAddress clientAddress) {
         synchronized (lastHelloedClientTimestamps) {
-            Long lastTimestamp = Calendar.getInstance().getTimeInMillis();
-            if (lastHelloedClientTimestamps.containsKey(clientAddress)) {
-                lastHelloedClientTimestamps.remove(clientAddress);
-            }
-            lastHelloedClientTimestamps.put(clientAddress, lastTimestamp);
+            lastHelloedClientTimestamps.put(clientAddress, System.nanoTime());
         }
     }
 
@@ -197,16 +397,49 @@ public class ServerMain implements JoinPacketListener, Runnable {
         client.start();
     }
 
+    /**
+     * Rimuove dalla lista dei client connessi un client che ha perso la connessione.
+     */
+    public final synchronized void removeClient(final ServerClientHandler client) {
+        clientHandlers.remove(client);
+        if (lastChosenClient == client) {
+            lastChosenClient = null;
+        }
+    }
+
+    /**
+     * Remembers the catalog of a client that lost its connection
+     */
+    public final void retainCatalog(final long peerId, final long digest, final ArrayList<AudioFile> audioFiles,
+                                    final ArrayList<Long> neverPlayedMusicIds) {
+        synchronized (retainedCatalogs) {
+            retainedCatalogs.put(peerId, new RetainedCatalog(digest, audioFiles, neverPlayedMusicIds));
+        }
+    }
+
+    /**
+     * @return the catalog remembered for a peer, or null. The catalog is forgotten by the server.
+     */
+    public final RetainedCatalog takeRetainedCatalog(final long peerId) {
+        synchronized (retainedCatalogs) {
+            return retainedCatalogs.remove(peerId);
+        }
+    }
+
     /**
      * Ferma il thread di un client.
      *
      * @throws InterruptedException
      */
-    private synchronized void stopClient(final ServerClientHandler client)
+    private void stopClient(final ServerClientHandler client)
             throws InterruptedException {
-        clientHandlers.remove(client);
+        boolean noClientsLeft;
+        synchronized (this) {
+            clientHandlers.remove(client);
+            noClientsLeft = clientHandlers.size() == 0;
+        }
         client.stop();
-        if (alive && clientHandlers.size() == 0) {
+        if (alive && noClientsLeft) {
             // Quando termina l'ultimo client, il server chiude anch'esso
             stop();
         }
@@ -234,29 +467,197 @@ public class ServerMain implements JoinPacketListener, Runnable {
      */
     public final void sayHello(final InetAddress groupAddress, final char groupPort)
             throws IOException {
-        packetDispatcher.send(new PacketHello(serverSocket.getInetAddress(), (char) serverSocket.getLocalPort(), groupAddress, groupPort));
+        packetDispatcher.send(new PacketHello(serverSocket.getInetAddress(), (char) serverSocket.getLocalPort(),
+                electionPriority, localClient.getPeerId(), groupAddress, groupPort));
+        lastHelloNanos = System.nanoTime();
+    }
+
+    /**
+     * Sends the periodic hello packet to the group, unless one has just been sent
+     * in reply to a join packet
+     */
+    private void sendHelloBeacon() {
+        if (!alive
+                || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHelloNanos) < HELLO_BEACON_INTERVAL_MILLISECONDS / 2) {
+            return;
+        }
+        try {
+            sayHello(multicastGroupAddress, multicastGroupPort);
+        } catch (IOException e) {
+            System.err.printf("[ServerMain] Could not send the hello beacon: %s", e.getMessage());
+            System.err.println();
+        }
+    }
+
+    /**
+     * @return the audio file with the given id shared by a connected client, or null
+     */
+    public final synchronized ServerAudioFile findAudioFile(final long musicId) {
+        for (ServerClientHandler clientHandler : clientHandlers) {
+            ServerAudioFile audioFile = clientHandler.getAudioFile(musicId);
+            if (audioFile != null) {
+                return audioFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks for a copy of an audio file shared by another client, to hand the streaming over
+     * to it. The audio file id is computed from the content, so the same file found at
+     * different paths on different clients has the same id.
+     *
+     * @param excludedClientHandler the client that is streaming the audio file now
+     * @return the copy shared by the responsive client with the best streaming quality, or null
+     */
+    public final synchronized ServerAudioFile findReplica(final long musicId,
+                                                          final ServerClientHandler excludedClientHandler) {
+        ServerAudioFile res = null;
+        for (ServerClientHandler clientHandler : clientHandlers) {
+            if (clientHandler == excludedClientHandler || !clientHandler.isResponsive()) {
+                continue;
+            }
+            ServerAudioFile audioFile = clientHandler.getAudioFile(musicId);
+            if (audioFile != null && (res == null || clientHandler.getStreamingQuality().getScore()
+                    > res.getOwnerClientHandler().getStreamingQuality().getScore())) {
+                res = audioFile;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Sends the replication stream to the standby, choosing a new standby if there is none.
+     * The standby is the longest connected responsive client, other than the one running on
+     * this host. Only the peers whose state changed since the previous packet carry their catalog.
+     */
+    private void replicateToStandby() {
+        ArrayList<ServerClientHandler> clients;
+        if (!alive) {
+            return;
+        }
+        synchronized (this) {
+            clients = new ArrayList<>(clientHandlers);
+        }
+        if (standby == null || !standby.isResponsive() || !clients.contains(standby)) {
+            chooseStandby(clients);
+        }
+        if (standby == null) {
+            return;
+        }
+        PacketReplica packet = new PacketReplica(true);
+        packet.currentMusicId = playlistManager.getCurrentlyStreamingMusicId();
+        packet.nextMusicId = playlistManager.getNextMusicId();
+        HashMap<Long, Long> versions = new HashMap<>();
+        for (ServerClientHandler client : clients) {
+            Long peerId = client.getPeerId();
+            if (peerId == null) {
+                continue;
+            }
+            Long knownVersion = replicatedVersions.get(peerId);
+            PacketReplica.PeerState state = client.getReplicaState(knownVersion != null ? knownVersion : -1L);
+            if (state != null) {
+                packet.peers.add(state);
+                versions.put(state.peerId, state.version);
+            }
+        }
+        try {
+            standby.sendPacket(packet);
+            replicatedVersions = versions;
+        } catch (IOException e) {
+            standby = null;
+        }
+    }
+
+    private void chooseStandby(final ArrayList<ServerClientHandler> clients) {
+        ServerClientHandler previousStandby = standby;
+        standby = null;
+        for (ServerClientHandler client : clients) {
+            Long peerId = client.getPeerId();
+            if (client.isResponsive() && peerId != null && peerId != localClient.getPeerId()) {
+                standby = client;
+                break;
+            }
+        }
+        if (standby == previousStandby) {
+            return;
+        }
+        replicatedVersions = new HashMap<>();
+        if (previousStandby != null && previousStandby.isResponsive()) {
+            try {
+                previousStandby.sendPacket(new PacketReplica(false));
+            } catch (IOException e) {
+                // The previous standby is going away anyway
+            }
+        }
+        if (standby != null) {
+            System.err.printf("[ServerMain] client from %s is the standby server", standby.getAddressAsString());
+            System.err.println();
+        }
+    }
+
+    /**
+     * @return true if at least one connected client can render the audio format.
+     * Audio files of unknown format are assumed to be renderable.
+     */
+    public final synchronized boolean canBeRendered(final AudioFormat audioFormat) {
+        if (audioFormat == null) {
+            return true;
+        }
+        for (ServerClientHandler clientHandler : clientHandlers) {
+            if (clientHandler.canRender(audioFormat)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Seleziona un client a caso per lo streaming di un brano. Viene fatto un
      * tentativo per evitare di scegliere più volte di seguito lo stesso client.
+     * <p>
+     * The draw is weighted by the {@link StreamingQuality} score of each client, multiplied
+     * by the number of selections the client has missed: a client with a poor network is
+     * chosen less often, but the longer it waits the more likely it is to be chosen.
      *
-     * @return un client scelto a caso
+     * @param schedulable indica quali brani possono essere riprodotti
+     * @return un client scelto a caso tra quelli che condividono almeno un brano
+     * che può essere riprodotto
      */
-    public final ServerClientHandler pickRandomClient() {
-        if (clientHandlers.size() == 0) {
+    public final synchronized ServerClientHandler pickRandomClient(final Predicate<ServerAudioFile> schedulable) {
+        ArrayList<ServerClientHandler> candidates = new ArrayList<>(clientHandlers.size());
+        for (ServerClientHandler clientHandler : clientHandlers) {
+            if (clientHandler.isResponsive() && clientHandler.hasAudioFiles(schedulable)) {
+                candidates.add(clientHandler);
+            }
+        }
+        if (candidates.size() == 0) {
             return null;
         }
-        ServerClientHandler res;
 		/*
-		 * Se è stato scelto l'ultimo client selezionato per la riproduzione ed
-		 * è disponibile più di un client, viene scelto il client successivo a
-		 * quello "sorteggiato"
+		 * Se è disponibile più di un client, l'ultimo client selezionato per la
+		 * riproduzione viene escluso dal sorteggio
 		 */
-        int i = (int) Math.round(Math.random() * (clientHandlers.size() - 1));
-        if ((res = clientHandlers.get(i)) == lastChosenClient
-                && clientHandlers.size() > 1) {
-            res = clientHandlers.get((++i) % clientHandlers.size());
+        if (candidates.size() > 1) {
+            candidates.remove(lastChosenClient);
+        }
+        double[] weights = new double[candidates.size()];
+        double totalWeight = 0.0d;
+        for (int i = 0; i < weights.length; i++) {
+            ServerClientHandler candidate = candidates.get(i);
+            weights[i] = candidate.getStreamingQuality().getScore() * (1 + candidate.getMissedSelections());
+            totalWeight += weights[i];
+        }
+        double draw = Math.random() * totalWeight;
+        ServerClientHandler res = candidates.get(candidates.size() - 1);
+        for (int i = 0; i < weights.length; i++) {
+            if ((draw -= weights[i]) < 0) {
+                res = candidates.get(i);
+                break;
+            }
+        }
+        for (ServerClientHandler candidate : candidates) {
+            candidate.setMissedSelections(candidate == res ? 0 : candidate.getMissedSelections() + 1);
         }
         return (lastChosenClient = res);
     }
@@ -273,15 +674,18 @@ public class ServerMain implements JoinPacketListener, Runnable {
     @Override
     public final void run() {
         while (alive) {
-            Socket newcon;
+            Transport.Connection newcon;
             ServerClientHandler newcli;
             try {
                 newcon = serverSocket.accept();
-                newcli = new ServerClientHandler(newcon, getPlaylistManager());
+                newcli = new ServerClientHandler(newcon, this);
                 startClient(newcli);
             } catch (SocketTimeoutException e) {
                 // Heartbeat check
             } catch (IOException e) {
+                if (!alive) {
+                    break;
+                }
                 System.err.printf(
                         "Error while waiting for client connections: %s. Trying to reset the connection...",
                         e.getMessage()
@@ -294,7 +698,7 @@ public class ServerMain implements JoinPacketListener, Runnable {
 
     private void tryToCreateServerSocket() {
         try {
-            serverSocket = new ServerSocket(serverSocketPort, 10, InetAddress.getLocalHost());
+            serverSocket = localClient.getTransport().listen(serverSocketPort);
             serverSocket.setSoTimeout(HEARTBEAT_INTERVAL_MILLISECONDS);
         } catch (UnknownHostException e) {
             alive = false;
@@ -312,4 +716,25 @@ public class ServerMain implements JoinPacketListener, Runnable {
             System.err.println();
         }
     }
+
+    /**
+     * Catalog of a client that lost its connection
+     */
+    static final class RetainedCatalog {
+        final long digest;
+
+        final ArrayList<AudioFile> audioFiles;
+
+        /**
+         * Ids of the audio files of the shuffle bag, or null
+         */
+        final ArrayList<Long> neverPlayedMusicIds;
+
+        RetainedCatalog(final long digest, final ArrayList<AudioFile> audioFiles,
+                        final ArrayList<Long> neverPlayedMusicIds) {
+            this.digest = digest;
+            this.audioFiles = audioFiles;
+            this.neverPlayedMusicIds = neverPlayedMusicIds;
+        }
+    }
 }
@@ -5,31 +5,157 @@ package uk.co.dambrosio.choir.server;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import javax.sound.sampled.AudioSystem;
+
+import uk.co.dambrosio.choir.client.ClientPlaylistStreamingManager;
 import uk.co.dambrosio.choir.common.AudioBeginPacketListener;
 import uk.co.dambrosio.choir.common.AudioDataPacketListener;
 import uk.co.dambrosio.choir.common.AudioEndPacketListener;
+import uk.co.dambrosio.choir.common.AudioFile;
 import uk.co.dambrosio.choir.common.PacketDispatcher;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketBegin;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketDataChunk;
 import uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd;
 
 /**
+ * Schedules the audio files streamed to the group.
+ * The manager is an event driven state machine: every transition is executed by a single
+ * scheduler thread, in reaction to incoming packets, catalog changes, client departures or
+ * deadline timers. No thread ever polls or sleeps waiting for something to happen.
+ *
  * @author Giulio D'Ambrosio
  */
 public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
-        AudioEndPacketListener, AudioDataPacketListener, Runnable {
+        AudioEndPacketListener, AudioDataPacketListener {
 
-    private static final int PAUSE_BETWEEN_REPRODUCTIONS_IN_SECONDS = 2;
+    private static final int PAUSE_BETWEEN_REPRODUCTIONS_MILLISECONDS = 500;
 
     private static final int MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS = 1500;
 
-    private boolean alive = true;
+    /**
+     * How many times the streaming of an audio file may move from a client to another
+     */
+    private static final int MAXIMUM_HANDOVERS_PER_AUDIO_FILE = 2;
+
+    /**
+     * When the owner of the current audio file disconnects, its stream is considered to be
+     * still going on, without the control connection, if a packet arrived within this time
+     */
+    private static final int DISCONNECTED_OWNER_SILENCE_MILLISECONDS = 250;
+
+    /**
+     * How long a stream may overrun the announced duration of its audio file before being interrupted
+     */
+    private static final int STREAM_END_GRACE_MILLISECONDS = 3000;
+
+    /**
+     * How long before the end of the current audio file the owner of the next one is asked to prepare it
+     */
+    private static final int PREPARE_AHEAD_MILLISECONDS = 10000;
+
+    /**
+     * Maximum bit rate of the scheduled audio files, from the choir.bandwidth.kbps system property.
+     * Zero means no limit.
+     */
+    private static final long BANDWIDTH_BUDGET_BITS_PER_SECOND =
+            Math.max(0L, Long.getLong("choir.bandwidth.kbps", 0L)) * 1000L;
+
+    private enum State {
+        /**
+         * No audio file is available: waiting for a client to share one
+         */
+        WAITING_FOR_AUDIO_FILES,
+        /**
+         * An owner client has been asked to stream {@link #currentlyStreamingAudioFile}
+         */
+        STREAMING,
+        /**
+         * This server has taken over from a server that went away, and the audio file it
+         * scheduled ({@link #currentlyStreamingMusicId}) is still being streamed
+         */
+        ADOPTING,
+        /**
+         * The streaming is over: waiting for the local audio player to complete
+         */
+        FINISHING,
+        /**
+         * Short pause before the next audio file is picked
+         */
+        PAUSING,
+        STOPPED
+    }
+
+    private volatile boolean alive = true;
+
+    /**
+     * Only accessed by the {@link #scheduler} thread
+     */
+    private State state = State.WAITING_FOR_AUDIO_FILES;
 
+    /**
+     * Only accessed by the {@link #scheduler} thread
+     */
     private ServerAudioFile currentlyStreamingAudioFile = null;
 
-    private long lastReceivedAudioPacketTimestamp = 0;
+    /**
+     * The audio file that will be streamed after the current one, whose owner has already
+     * been asked to prepare it. Only accessed by the {@link #scheduler} thread
+     */
+    private ServerAudioFile nextAudioFile = null;
+
+    /**
+     * Id of {@link #nextAudioFile}, readable by the replication thread
+     */
+    private volatile long nextMusicId = AudioFile.NO_MUSIC_ID;
+
+    /**
+     * Id of the audio file the previous server had chosen to be streamed next, when this server
+     * took over. Only accessed by the {@link #scheduler} thread
+     */
+    private long preferredNextMusicId = AudioFile.NO_MUSIC_ID;
+
+    /**
+     * Id of {@link #currentlyStreamingAudioFile}, readable by the packet dispatcher thread
+     */
+    private volatile long currentlyStreamingMusicId = AudioFile.NO_MUSIC_ID;
+
+    private volatile long lastReceivedAudioPacketNanos = 0L;
+
+    /**
+     * Audio packet of the current audio file that ends furthest in the stream: another client
+     * takes the streaming over from its end, on its timeline. Only written by the packet
+     * dispatcher thread
+     */
+    private volatile PacketDataChunk furthestAudioPacket = null;
+
+    /**
+     * How many times the streaming of the current audio file has been handed over.
+     * Only accessed by the {@link #scheduler} thread
+     */
+    private int handOvers = 0;
+
+    /**
+     * Streaming quality of the owner of {@link #currentlyStreamingAudioFile}, readable by the
+     * packet dispatcher thread
+     */
+    private volatile StreamingQuality currentOwnerStreamingQuality = null;
+
+    private ScheduledFuture<?> lagDeadline = null;
+
+    /**
+     * Interrupts the current stream when it lasts longer than its audio file
+     */
+    private ScheduledFuture<?> endDeadline = null;
+
+    /**
+     * Asks the owner of the next audio file to prepare it, near the end of the current one
+     */
+    private ScheduledFuture<?> prepareDeadline = null;
 
     private InetAddress multicastGroupInetAddress;
 
@@ -39,13 +165,18 @@ public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
 
     private ServerMain mainServer;
 
-    private Thread runningThread = null;
+    private final ScheduledExecutorService scheduler;
 
     public ServerPlaylistStreamingManager(final InetAddress multicastGroupInetAddress, final char multicastGroupPort,
                                           final ServerMain mainServer) throws IOException {
         this.multicastGroupInetAddress = multicastGroupInetAddress;
         this.multicastGroupPort = multicastGroupPort;
         this.mainServer = mainServer;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ServerPlaylistStreamingManager");
+            thread.setDaemon(true);
+            return thread;
+        });
         packetDispatcher = mainServer.getDemultiplexer();
         packetDispatcher.registerListener((AudioBeginPacketListener) this);
         packetDispatcher.registerListener((AudioDataPacketListener) this);
@@ -53,14 +184,62 @@ public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
     }
 
     /**
-     * @return Il thread associato a questa istanza
+     * Starts scheduling audio files
      */
-    public final Thread getRunningThread() {
-        return runningThread;
+    public final void start() {
+        start(AudioFile.NO_MUSIC_ID, AudioFile.NO_MUSIC_ID);
     }
 
-    public void setRunningThread(Thread runningThread) {
-        this.runningThread = runningThread;
+    /**
+     * Starts scheduling audio files after taking over from a server that went away.
+     * When the previous server did not replicate its state, the audio file the local client
+     * is playing, if any, is adopted: it was scheduled by the previous server and its owner is
+     * still streaming it, as streams survive the loss of the server.
+     *
+     * @param adoptedMusicId       the audio file the previous server was streaming: it is left to finish
+     * @param preferredNextMusicId the audio file the previous server had chosen to be streamed next
+     */
+    public final void start(final long adoptedMusicId, final long preferredNextMusicId) {
+        execute(() -> {
+            long musicId = adoptedMusicId;
+            this.preferredNextMusicId = preferredNextMusicId;
+            if (musicId == AudioFile.NO_MUSIC_ID) {
+                musicId = mainServer.getLocalClient().getPlaylistStreamingManager().getLastPlayingMusicId();
+            }
+            if (musicId == AudioFile.NO_MUSIC_ID) {
+                selectNextAudioFile();
+                return;
+            }
+            currentlyStreamingMusicId = musicId;
+            lastReceivedAudioPacketNanos = System.nanoTime();
+            state = State.ADOPTING;
+            armLagDeadline(MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS);
+        });
+    }
+
+    /**
+     * @return the id of the audio file being streamed, or {@link AudioFile#NO_MUSIC_ID}
+     */
+    public final long getCurrentlyStreamingMusicId() {
+        return currentlyStreamingMusicId;
+    }
+
+    /**
+     * @return the id of the audio file chosen to be streamed next, or {@link AudioFile#NO_MUSIC_ID}
+     */
+    public final long getNextMusicId() {
+        return nextMusicId;
+    }
+
+    /**
+     * Stops scheduling audio files. The currently streaming audio file, if any, is left to its owner.
+     */
+    public final void stop() {
+        alive = false;
+        packetDispatcher.unregisterListener((AudioBeginPacketListener) this);
+        packetDispatcher.unregisterListener((AudioDataPacketListener) this);
+        packetDispatcher.unregisterListener((AudioEndPacketListener) this);
+        scheduler.shutdownNow();
     }
 
     /**
@@ -69,24 +248,35 @@ public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
      */
     @Override
     public final void packetArrived(final PacketBegin packet) {
-        if (currentlyStreamingAudioFile != null && currentlyStreamingAudioFile.getMusicId() == packet.musicId) {
-            currentlyStreamingAudioFile.setBeingStreamed();
-            lastReceivedAudioPacketTimestamp = Calendar.getInstance().getTimeInMillis();
+        if (currentlyStreamingMusicId == packet.musicId) {
+            lastReceivedAudioPacketNanos = System.nanoTime();
+            execute(() -> {
+                if (currentlyStreamingAudioFile != null && currentlyStreamingAudioFile.getMusicId() == packet.musicId) {
+                    currentlyStreamingAudioFile.setBeingStreamed();
+                }
+            });
         }
     }
 
     /**
      * This method is called by the PacketDispatcher when an audio packet is received.
-     * The server is interested in this kind of packets, for it's its responsibility to check
-     * that the interval between packets is maintained below the maximum delay allowed of
-     * {@link ServerPlaylistStreamingManager#MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS}
-     * seconds
+     * Each packet of the current audio file pushes forward the deadline after which the owner
+     * is considered to be lagging ({@link ServerPlaylistStreamingManager#MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS}).
      * @param packet Il pacchetto arrivato
      */
     @Override
     public final void packetArrived(final PacketDataChunk packet) {
-        if (currentlyStreamingAudioFile != null && currentlyStreamingAudioFile.getMusicId() == packet.musicId) {
-            lastReceivedAudioPacketTimestamp = Calendar.getInstance().getTimeInMillis();
+        if (currentlyStreamingMusicId == packet.musicId) {
+            lastReceivedAudioPacketNanos = System.nanoTime();
+            PacketDataChunk furthest = furthestAudioPacket;
+            if (furthest == null || packet.streamOffset + packet.audioData.length
+                    > furthest.streamOffset + furthest.audioData.length) {
+                furthestAudioPacket = packet;
+            }
+            StreamingQuality streamingQuality = currentOwnerStreamingQuality;
+            if (streamingQuality != null) {
+                streamingQuality.packetArrived(lastReceivedAudioPacketNanos);
+            }
         }
     }
 
@@ -96,115 +286,411 @@ public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
      */
     @Override
     public final void packetArrived(final PacketEnd packet) {
-        synchronized (this) {
-            if (currentlyStreamingAudioFile != null && currentlyStreamingAudioFile.getMusicId() == packet.musicId) {
-                System.out.println("[ServerMain] client from "
-                        + currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString()
-                        + " has finished streaming "
-                        + currentlyStreamingAudioFile.getMusicTitle());
-                try {
-                    currentlyStreamingAudioFile.streamingEnded();
-                } catch (Exception e) {
-                    e.printStackTrace();
+        if (currentlyStreamingMusicId == packet.musicId) {
+            execute(() -> {
+                if (state == State.STREAMING && currentlyStreamingAudioFile.getMusicId() == packet.musicId) {
+                    currentlyStreamingAudioFile.getOwnerClientHandler().getStreamingQuality().streamingCompleted();
                 }
-                currentlyStreamingAudioFile = null;
-                lastReceivedAudioPacketTimestamp = Calendar.getInstance().getTimeInMillis();
-                notify();
-            }
+                audioFileStreamingEnded(packet.musicId);
+            });
         }
     }
 
     /**
-     * Main cycle:
-     * - Picks an audio file to be streamed
-     * - Asks the owner client to start streaming it
-     * - Follows the streaming checking that the client is not lagging too much (i.e.: no packets received for
-     *   {@link ServerPlaylistStreamingManager#MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS} seconds)
-     * - If the client is lagging too much, interrupts the streaming by sending the packet
-     *   {@link uk.co.dambrosio.choir.data.packet.datagram.audio.PacketEnd} that marks the end of the streaming for the current audio file
+     * Called when a client shares a new audio file: if nothing is being streamed
+     * the new file can be scheduled straight away.
      */
-    @Override
-    public final void run() {
-        char lastMusicId = (char) -1;
+    public final void audioFileAdded() {
+        execute(() -> {
+            if (state == State.WAITING_FOR_AUDIO_FILES) {
+                selectNextAudioFile();
+            }
+        });
+    }
 
-        while (alive) {
-            try {
-                followCurrentAudioFileStreaming(lastMusicId);
-                pauseBetweenAudioFiles();
-                lastMusicId = manageNextAudioFileSelection();
-            } catch (InterruptedException e) {
-                alive = false;
-            } catch (Exception e) {
+    /**
+     * Called when the connection with a client is lost: the client is removed from the
+     * registry. If it was streaming the current audio file and its packets stopped, the streaming
+     * is handed over to another client sharing the same audio file, or interrupted. A stream that
+     * is still going on is left to the lag deadline, as streams survive the control connection.
+     */
+    public final void clientHandlerDisconnected(final ServerClientHandler clientHandler) {
+        mainServer.removeClient(clientHandler);
+        execute(() -> {
+            if (state == State.STREAMING && currentlyStreamingAudioFile.getOwnerClientHandler() == clientHandler) {
                 System.err.printf(
-                        "Internal error occurred: %s",
-                        e.getMessage()
+                        "[ServerMain] client %s left while streaming %s",
+                        clientHandler.getAddressAsString(),
+                        currentlyStreamingAudioFile.getMusicTitle()
                 );
                 System.err.println();
-                alive = false;
+                if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceivedAudioPacketNanos)
+                        < DISCONNECTED_OWNER_SILENCE_MILLISECONDS) {
+                    return;
+                }
+                if (!handOverCurrentAudioFileStreaming()) {
+                    interruptCurrentAudioFileStreaming();
+                }
             }
-        }
+        });
     }
 
-    private void pauseBetweenAudioFiles() throws InterruptedException {
+    /**
+     * Picks the next audio file and asks its owner client to start streaming it.
+     * If no audio file is available the manager waits for {@link #audioFileAdded()}.
+     */
+    private void selectNextAudioFile() {
+        ServerAudioFile audioFile;
+        if (!alive) {
+            state = State.STOPPED;
+            return;
+        }
+        audioFile = nextAudioFile;
+        nextAudioFile = null;
+        nextMusicId = AudioFile.NO_MUSIC_ID;
+        if (audioFile == null && preferredNextMusicId != AudioFile.NO_MUSIC_ID) {
+            audioFile = mainServer.findAudioFile(preferredNextMusicId);
+            preferredNextMusicId = AudioFile.NO_MUSIC_ID;
+        }
+        if (audioFile == null || !audioFile.getOwnerClientHandler().isSharing(audioFile) || !isSchedulable(audioFile)) {
+            try {
+                audioFile = pickRandomAudioFile();
+            } catch (IOException e) {
+                audioFile = null;
+            }
+        }
+        if (audioFile == null) {
+            state = State.WAITING_FOR_AUDIO_FILES;
+            return;
+        }
+        try {
+            audioFile.requestClientForAudioStreaming();
+        } catch (Exception e) {
+            System.err.printf(
+                    "[ServerMain] could not request streaming of '%s': %s",
+                    audioFile.getMusicTitle(),
+                    e.getMessage()
+            );
+            System.err.println();
+            pauseBeforeNextAudioFile();
+            return;
+        }
+        currentlyStreamingAudioFile = audioFile;
+        furthestAudioPacket = null;
+        handOvers = 0;
+        currentlyStreamingMusicId = audioFile.getMusicId();
+        currentOwnerStreamingQuality = audioFile.getOwnerClientHandler().getStreamingQuality();
+        lastReceivedAudioPacketNanos = System.nanoTime();
+        state = State.STREAMING;
+        armLagDeadline(MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS);
         System.out.printf(
-                "[ServerMain] Pausing before next file for: %d seconds ",
-                PAUSE_BETWEEN_REPRODUCTIONS_IN_SECONDS
+                "[ServerMain] Next audio file : '%s' from client at %s",
+                audioFile.getMusicTitle(),
+                audioFile.getOwnerClientHandler().getAddressAsString()
         );
         System.err.println();
-        Thread.sleep(PAUSE_BETWEEN_REPRODUCTIONS_IN_SECONDS * 1000);
-    }
-
-    private synchronized void followCurrentAudioFileStreaming(char lastMusicId) throws InterruptedException, IOException {
-        if ((lastMusicId != (char) -1)) {
-            lastReceivedAudioPacketTimestamp = Calendar.getInstance().getTimeInMillis();
-            while (currentlyStreamingAudioFile != null) {
-                wait(1000);
-                if (currentlyStreamingAudioFile != null
-                        && Calendar.getInstance().getTimeInMillis()
-                        - lastReceivedAudioPacketTimestamp > MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS) {
-                    System.out.printf(
-                            "[ServerMain] client %s is lagging while streaming %s. Interrupting by Sending an end of streaming packet.",
-                            currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString(),
-                            currentlyStreamingAudioFile.getMusicTitle()
-                    );
-                    System.err.println();
-                    packetDispatcher.send(new PacketEnd(currentlyStreamingAudioFile.getMusicId(), multicastGroupInetAddress, multicastGroupPort));
-                    mainServer.getLocalClient().getPlaylistStreamingManager().stop(currentlyStreamingAudioFile.getMusicId());
-                }
-            }
-            // Waiting for the local audio player to terminate...
-            System.err.println("[ServerMain] waiting for audio player to complete streaming...");
-            mainServer.getLocalClient().getPlaylistStreamingManager().waitForEndOf(lastMusicId);
+        armDurationDeadlines(audioFile);
+    }
+
+    /**
+     * When the duration of the audio file is known, the stream is interrupted if it overruns it,
+     * and the next audio file is prepared shortly before the end. Otherwise the next audio file
+     * is prepared straight away.
+     */
+    private void armDurationDeadlines(final ServerAudioFile audioFile) {
+        long durationMicroseconds = audioFile.getDurationMicroseconds();
+        if (durationMicroseconds == AudioSystem.NOT_SPECIFIED) {
+            prepareNextAudioFile();
+            return;
         }
+        long durationMilliseconds = TimeUnit.MICROSECONDS.toMillis(durationMicroseconds);
+        endDeadline = scheduler.schedule(
+                () -> endDeadlineExpired(audioFile),
+                durationMilliseconds + STREAM_END_GRACE_MILLISECONDS,
+                TimeUnit.MILLISECONDS
+        );
+        prepareDeadline = scheduler.schedule(
+                () -> {
+                    if (isCurrentlyStreaming(audioFile)) {
+                        prepareNextAudioFile();
+                    }
+                },
+                Math.max(0L, durationMilliseconds - PREPARE_AHEAD_MILLISECONDS),
+                TimeUnit.MILLISECONDS
+        );
     }
 
-    private synchronized char manageNextAudioFileSelection() throws Exception {
-        char result = (char) -1;
-        while (alive && currentlyStreamingAudioFile == null) {
-            currentlyStreamingAudioFile = pickRandomAudioFile();
-            if (currentlyStreamingAudioFile != null) {
-                currentlyStreamingAudioFile.requestClientForAudioStreaming();
-                continue;
-            }
-            wait(2000);
+    private void endDeadlineExpired(final ServerAudioFile audioFile) {
+        if (!isCurrentlyStreaming(audioFile)) {
+            return;
         }
+        System.err.printf(
+                "[ServerMain] client %s is still streaming %s after its end. Interrupting it by sending an end of streaming packet.",
+                currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString(),
+                audioFile.getMusicTitle()
+        );
+        System.err.println();
+        streamingQualityDegraded();
+        interruptCurrentAudioFileStreaming();
+    }
 
-        if (!alive) {
-            return result;
+    /**
+     * Compares by id: after a handover the current audio file is the replica of another client
+     */
+    private boolean isCurrentlyStreaming(final ServerAudioFile audioFile) {
+        return state == State.STREAMING
+                && currentlyStreamingAudioFile != null
+                && currentlyStreamingAudioFile.getMusicId() == audioFile.getMusicId();
+    }
+
+    private void cancelDeadlines() {
+        if (lagDeadline != null) {
+            lagDeadline.cancel(false);
+            lagDeadline = null;
+        }
+        if (endDeadline != null) {
+            endDeadline.cancel(false);
+            endDeadline = null;
+        }
+        if (prepareDeadline != null) {
+            prepareDeadline.cancel(false);
+            prepareDeadline = null;
         }
+    }
 
-        result = currentlyStreamingAudioFile.getMusicId();
-        lastReceivedAudioPacketTimestamp = Calendar.getInstance().getTimeInMillis();
-        System.out.printf(
-                "[ServerMain] Next audio file : '%s' from client at %s",
-                currentlyStreamingAudioFile.getMusicTitle(),
-                currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString()
+    /**
+     * An audio file can be scheduled if its bit rate fits the bandwidth budget and at least
+     * one receiver can render its format
+     */
+    private boolean isSchedulable(final ServerAudioFile audioFile) {
+        long bitRate = audioFile.getBitRate();
+        if (BANDWIDTH_BUDGET_BITS_PER_SECOND > 0
+                && bitRate != AudioSystem.NOT_SPECIFIED
+                && bitRate > BANDWIDTH_BUDGET_BITS_PER_SECOND) {
+            return false;
+        }
+        return mainServer.canBeRendered(audioFile.getAudioFormat());
+    }
+
+    /**
+     * Picks the audio file to be streamed after the current one, and asks its owner to
+     * prepare it while the current one is playing
+     */
+    private void prepareNextAudioFile() {
+        try {
+            nextAudioFile = pickRandomAudioFile();
+        } catch (IOException e) {
+            nextAudioFile = null;
+        }
+        if (nextAudioFile == null || nextAudioFile == currentlyStreamingAudioFile) {
+            nextAudioFile = null;
+            return;
+        }
+        nextMusicId = nextAudioFile.getMusicId();
+        try {
+            nextAudioFile.requestClientToPrepare();
+        } catch (IOException e) {
+            // The file will be streamed without being prepared
+            System.err.printf(
+                    "[ServerMain] could not ask to prepare '%s': %s",
+                    nextAudioFile.getMusicTitle(),
+                    e.getMessage()
+            );
+            System.err.println();
+        }
+    }
+
+    private void armLagDeadline(final long delayMilliseconds) {
+        lagDeadline = scheduler.schedule(this::lagDeadlineExpired, delayMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The deadline is not rescheduled for every audio packet: when it expires it checks the time of the
+     * last received packet, and if the owner is not lagging it is armed again for the remaining time.
+     */
+    private void lagDeadlineExpired() {
+        if (state != State.STREAMING && state != State.ADOPTING) {
+            return;
+        }
+        long elapsedMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceivedAudioPacketNanos);
+        if (elapsedMilliseconds < MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS) {
+            armLagDeadline(MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS - elapsedMilliseconds);
+            return;
+        }
+        if (state == State.ADOPTING) {
+            adoptedStreamingEnded();
+            return;
+        }
+        streamingQualityDegraded();
+        if (handOverCurrentAudioFileStreaming()) {
+            return;
+        }
+        System.err.printf(
+                "[ServerMain] client %s is lagging while streaming %s. Interrupting it by sending an end of streaming packet.",
+                currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString(),
+                currentlyStreamingAudioFile.getMusicTitle()
         );
         System.err.println();
+        interruptCurrentAudioFileStreaming();
+    }
 
-        return result;
+    /**
+     * Hands the streaming of the current audio file over to another client sharing the same
+     * content, from the byte the stream has reached. The receivers see the same stream going
+     * on after a short gap, as no end or begin packet is sent.
+     *
+     * @return false if no other client shares the audio file, or if it has already been
+     * handed over too many times
+     */
+    private boolean handOverCurrentAudioFileStreaming() {
+        ServerAudioFile previousAudioFile = currentlyStreamingAudioFile;
+        ServerAudioFile replica;
+        PacketDataChunk furthest = furthestAudioPacket;
+        long offset = furthest == null ? 0L : furthest.streamOffset + furthest.audioData.length;
+        if (handOvers >= MAXIMUM_HANDOVERS_PER_AUDIO_FILE
+                || (replica = mainServer.findReplica(previousAudioFile.getMusicId(),
+                previousAudioFile.getOwnerClientHandler())) == null) {
+            return false;
+        }
+        try {
+            previousAudioFile.requestClientToStop();
+        } catch (IOException e) {
+            // The previous owner is gone
+        }
+        try {
+            replica.requestClientForAudioStreaming(
+                    offset,
+                    furthest == null ? 0L : furthest.streamOffset,
+                    furthest == null ? 0L : furthest.presentationNanos
+            );
+        } catch (Exception e) {
+            System.err.printf(
+                    "[ServerMain] could not hand the streaming of '%s' over: %s",
+                    previousAudioFile.getMusicTitle(),
+                    e.getMessage()
+            );
+            System.err.println();
+            return false;
+        }
+        handOvers++;
+        if (lagDeadline != null) {
+            lagDeadline.cancel(false);
+        }
+        currentlyStreamingAudioFile = replica;
+        currentOwnerStreamingQuality = replica.getOwnerClientHandler().getStreamingQuality();
+        lastReceivedAudioPacketNanos = System.nanoTime();
+        armLagDeadline(MAXIMUM_CLIENT_DELAY_TIMEOUT_MILLISECONDS);
+        System.err.printf(
+                "[ServerMain] streaming of '%s' handed over from client %s to client %s at byte %d",
+                previousAudioFile.getMusicTitle(),
+                previousAudioFile.getOwnerClientHandler().getAddressAsString(),
+                replica.getOwnerClientHandler().getAddressAsString(),
+                offset
+        );
+        System.err.println();
+        return true;
+    }
+
+    /**
+     * Records that the owner of the current audio file had to be interrupted
+     */
+    private void streamingQualityDegraded() {
+        ServerClientHandler owner = currentlyStreamingAudioFile.getOwnerClientHandler();
+        owner.getStreamingQuality().streamingInterrupted();
+        System.err.printf(
+                "[ServerMain] streaming quality of client %s: %s. Heartbeat round trip ms: %s",
+                owner.getAddressAsString(),
+                owner.getStreamingQuality(),
+                owner.getRoundTripStatistics()
+        );
+        System.err.println();
+    }
+
+    /**
+     * Sends the end of streaming packet on behalf of the owner of the current audio file
+     */
+    private void interruptCurrentAudioFileStreaming() {
+        long musicId = currentlyStreamingAudioFile.getMusicId();
+        try {
+            packetDispatcher.send(new PacketEnd(musicId, multicastGroupInetAddress, multicastGroupPort));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ClientPlaylistStreamingManager localPlaylistStreamingManager = mainServer.getLocalClient().getPlaylistStreamingManager();
+        if (localPlaylistStreamingManager != null) {
+            localPlaylistStreamingManager.stop(musicId);
+        }
+        audioFileStreamingEnded(musicId);
+    }
+
+    /**
+     * The audio file scheduled by the previous server is over, or its owner has gone
+     */
+    private void adoptedStreamingEnded() {
+        cancelDeadlines();
+        currentlyStreamingMusicId = AudioFile.NO_MUSIC_ID;
+        pauseBeforeNextAudioFile();
+    }
+
+    private void audioFileStreamingEnded(final long musicId) {
+        if (state == State.ADOPTING && currentlyStreamingMusicId == musicId) {
+            adoptedStreamingEnded();
+            return;
+        }
+        if (state != State.STREAMING || currentlyStreamingAudioFile.getMusicId() != musicId) {
+            return;
+        }
+        System.out.println("[ServerMain] client from "
+                + currentlyStreamingAudioFile.getOwnerClientHandler().getAddressAsString()
+                + " has finished streaming "
+                + currentlyStreamingAudioFile.getMusicTitle());
+        cancelDeadlines();
+        try {
+            currentlyStreamingAudioFile.streamingEnded();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        currentlyStreamingAudioFile = null;
+        currentlyStreamingMusicId = AudioFile.NO_MUSIC_ID;
+        currentOwnerStreamingQuality = null;
+        state = State.FINISHING;
+
+        ClientPlaylistStreamingManager localPlaylistStreamingManager = mainServer.getLocalClient().getPlaylistStreamingManager();
+        if (localPlaylistStreamingManager != null) {
+            localPlaylistStreamingManager.endOf(musicId).thenRun(() -> execute(this::pauseBeforeNextAudioFile));
+        } else {
+            pauseBeforeNextAudioFile();
+        }
     }
 
+    private void pauseBeforeNextAudioFile() {
+        if (!alive) {
+            state = State.STOPPED;
+            return;
+        }
+        state = State.PAUSING;
+        scheduler.schedule(this::selectNextAudioFile, PAUSE_BETWEEN_REPRODUCTIONS_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a state transition on the scheduler thread
+     */
+    private void execute(final Runnable transition) {
+        if (!alive) {
+            return;
+        }
+        scheduler.execute(() -> {
+            try {
+                transition.run();
+            } catch (Exception e) {
+                System.err.printf(
+                        "Internal error occurred: %s",
+                        e.getMessage()
+                );
+                System.err.println();
+            }
+        });
+    }
 
     /**
      * Chooses pseudo-randomly an audio file to be streamed.
@@ -212,9 +698,10 @@ public class ServerPlaylistStreamingManager implements AudioBeginPacketListener,
      * the random choice.
      * The {@link ServerClientHandler} is then asked to perform a random choice of an audio file
      * to be streamed.
+     * Only audio files that can be scheduled are considered.
      */
     private ServerAudioFile pickRandomAudioFile() throws IOException {
-        ServerClientHandler clientHandler = mainServer.pickRandomClient();
-        return clientHandler != null ? clientHandler.pickRandomAudioFile() : null;
+        ServerClientHandler clientHandler = mainServer.pickRandomClient(this::isSchedulable);
+        return clientHandler != null ? clientHandler.pickRandomAudioFile(this::isSchedulable) : null;
     }
 }
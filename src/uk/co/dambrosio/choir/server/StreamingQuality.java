@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package uk.co.dambrosio.choir.server;
+
+import uk.co.dambrosio.choir.common.RunningStatistics;
+
+/**
+ * Streaming quality of a client, measured by the server while the client streams its audio files.
+ * <p>
+ * Two things are measured: how often the client had to be interrupted because it was lagging or
+ * overrunning, and how regular is the arrival of its audio packets (the coefficient of variation of
+ * the intervals between two packets). Older streams weigh less than recent ones, so a client
+ * that has moved to a better network recovers its score.
+ *
+ * @author Giulio D'Ambrosio
+ */
+public final class StreamingQuality {
+    /**
+     * Weight kept by the past streams every time a new one is recorded
+     */
+    private static final double HISTORY_DECAY = 0.8d;
+
+    /**
+     * Lowest score: even the worst client keeps a chance to be chosen
+     */
+    private static final double MINIMUM_SCORE = 0.05d;
+
+    /**
+     * Intervals longer than this are not counted as jitter, as they are caused by
+     * the pause of the owner between two audio files rather than by the network
+     */
+    private static final double MAXIMUM_PACKET_INTERVAL_MILLISECONDS = 1000.0d;
+
+    /**
+     * Decayed number of streams completed
+     */
+    private double completedStreams = 0.0d;
+
+    /**
+     * Decayed number of streams interrupted by the server
+     */
+    private double interruptedStreams = 0.0d;
+
+    /**
+     * Decayed mean of the coefficient of variation of the packet intervals of each stream
+     */
+    private double packetIntervalVariation = 0.0d;
+
+    /**
+     * Intervals between the audio packets of the stream in progress, in milliseconds
+     */
+    private RunningStatistics currentStreamIntervals = new RunningStatistics();
+
+    private long lastPacketNanos = 0L;
+
+    /**
+     * Called for every audio packet of a stream of the client
+     */
+    public synchronized void packetArrived(final long arrivalNanos) {
+        if (lastPacketNanos != 0L) {
+            double intervalMilliseconds = (arrivalNanos - lastPacketNanos) / 1000000.0d;
+            if (intervalMilliseconds <= MAXIMUM_PACKET_INTERVAL_MILLISECONDS) {
+                currentStreamIntervals.add(intervalMilliseconds);
+            }
+        }
+        lastPacketNanos = arrivalNanos;
+    }
+
+    /**
+     * Called when a stream of the client ends by itself
+     */
+    public synchronized void streamingCompleted() {
+        completedStreams = completedStreams * HISTORY_DECAY + 1.0d;
+        interruptedStreams *= HISTORY_DECAY;
+        streamEnded();
+    }
+
+    /**
+     * Called when a stream of the client has been interrupted because the client was lagging
+     */
+    public synchronized void streamingInterrupted() {
+        completedStreams *= HISTORY_DECAY;
+        interruptedStreams = interruptedStreams * HISTORY_DECAY + 1.0d;
+        streamEnded();
+    }
+
+    /**
+     * @return a score between {@link #MINIMUM_SCORE} and 1: 1 for a client that never lagged and
+     * sends its packets at a perfectly regular rate. A client never measured scores 1.
+     */
+    public synchronized double getScore() {
+        // One completed stream is assumed, so that a single lag does not zero the score
+        double reliability = (completedStreams + 1.0d) / (completedStreams + interruptedStreams + 1.0d);
+        double stability = 1.0d / (1.0d + packetIntervalVariation);
+        return Math.max(MINIMUM_SCORE, reliability * stability);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("score=%.2f, completed=%.1f, interrupted=%.1f, packet interval variation=%.2f",
+                getScore(), completedStreams, interruptedStreams, packetIntervalVariation);
+    }
+
+    private void streamEnded() {
+        double mean = currentStreamIntervals.getMean();
+        double standardDeviation = currentStreamIntervals.getStandardDeviation();
+        if (mean > 0 && !Double.isNaN(standardDeviation)) {
+            packetIntervalVariation = packetIntervalVariation * HISTORY_DECAY
+                    + (standardDeviation / mean) * (1.0d - HISTORY_DECAY);
+        }
+        currentStreamIntervals = new RunningStatistics();
+        lastPacketNanos = 0L;
+    }
+}